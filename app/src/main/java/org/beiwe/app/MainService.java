@@ -15,9 +15,7 @@ import android.content.pm.PackageManager;
 import android.graphics.Color;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
-import android.net.Uri;
 import android.os.Binder;
-import android.os.Handler;
 import android.os.IBinder;
 import android.os.PowerManager;
 import android.os.SystemClock;
@@ -34,11 +32,14 @@ import org.beiwe.app.listeners.AccelerometerListener;
 import org.beiwe.app.listeners.AmbientAudioListener;
 import org.beiwe.app.listeners.BluetoothListener;
 import org.beiwe.app.listeners.CallLogger;
+import org.beiwe.app.listeners.ContentObserverDispatcher;
 import org.beiwe.app.listeners.GPSListener;
 import org.beiwe.app.listeners.GyroscopeListener;
-import org.beiwe.app.listeners.MMSSentLogger;
+import org.beiwe.app.listeners.MotionStateMonitor;
 import org.beiwe.app.listeners.PowerStateListener;
-import org.beiwe.app.listeners.SmsSentLogger;
+import org.beiwe.app.listeners.SensorDiagnostics;
+import org.beiwe.app.listeners.TextsLogger;
+import org.beiwe.app.listeners.TimerWakeupListener;
 import org.beiwe.app.listeners.WifiListener;
 import org.beiwe.app.networking.PostRequest;
 import org.beiwe.app.networking.SurveyDownloader;
@@ -49,7 +50,10 @@ import org.beiwe.app.ui.user.LoginActivity;
 import org.beiwe.app.ui.utils.SurveyNotifications;
 
 import java.util.Calendar;
+import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import io.sentry.Sentry;
 import io.sentry.android.AndroidSentryClientFactory;
@@ -64,10 +68,19 @@ public class MainService extends Service {
 	public AccelerometerListener accelerometerListener;
 	public GyroscopeListener gyroscopeListener;
 	public BluetoothListener bluetoothListener;
+	public MotionStateMonitor motionStateMonitor;
 	public String notificationChannelId = "_service_channel";
 	String channelName = "Beiwe Data Collection"; // user facing name, seen if they hold press the notification
 	public static Timer timer;
 
+	// While the device is stationary the accelerometer off period is multiplied by this, and gyroscope
+	// and GPS sessions are skipped.  The first motion afterwards starts the skipped sessions immediately.
+	private static final long STATIONARY_OFF_DURATION_MULTIPLIER = 4;
+	// When the last GPS session ended in a well known place the GPS off period is multiplied by this.
+	private static final long STABLE_PLACE_GPS_OFF_DURATION_MULTIPLIER = 3;
+	private boolean gyroscopeSessionSkipped = false;
+	private boolean gpsSessionSkipped = false;
+
 	//localHandle is how static functions access the currently instantiated main service.
 	//It is to be used ONLY to register new surveys with the running main service, because
 	//that code needs to be able to update the IntentFilters associated with timerReceiver.
@@ -106,6 +119,7 @@ public class MainService extends Service {
 	public void doSetup () {
 		//Accelerometer and power state don't need permissons
 		startPowerStateListener();
+		if (gpsListener != null) { gpsListener.release(); } // doSetup runs again after registration
 		gpsListener = new GPSListener(appContext); // Permissions are checked in the broadcast receiver
 		WifiListener.initialize(appContext);
 		
@@ -115,6 +129,11 @@ public class MainService extends Service {
 		if (PersistentData.getGyroscopeEnabled())
 			gyroscopeListener = new GyroscopeListener(appContext);
 		
+		if (PersistentData.getMotionGatedDutyCyclingEnabled())
+			startMotionStateMonitor();
+		else
+			stopMotionStateMonitor();
+		
 		//Bluetooth, wifi, gps, calls, and texts need permissions
 		if (PermissionHandler.confirmBluetooth(appContext))
 			startBluetooth();
@@ -122,8 +141,7 @@ public class MainService extends Service {
 		//		if ( PermissionHandler.confirmWifi(appContext) ) { WifiListener.initialize( appContext ); }
 		
 		if (PermissionHandler.confirmTexts(appContext)) {
-			startSmsSentLogger();
-			startMmsSentLogger();
+			startTextsLogger();
 		} else if (PersistentData.getTextsEnabled()) {
 			sendBroadcast(Timer.checkForSMSEnabled);
 		}
@@ -189,19 +207,53 @@ public class MainService extends Service {
 			this.bluetoothListener = null; }
 	}
 	
-	/** Initializes the sms logger. */
-	public void startSmsSentLogger() {
-		SmsSentLogger smsSentLogger = new SmsSentLogger(new Handler(), appContext);
-		this.getContentResolver().registerContentObserver(Uri.parse("content://sms/"), true, smsSentLogger); }
+	/** Initializes the MotionStateMonitor, on the first motion after a stationary period we immediately
+	 * run the sensor sessions that were skipped or delayed while the device was stationary. */
+	private void startMotionStateMonitor() {
+		if (motionStateMonitor != null) { return; }
+		motionStateMonitor = new MotionStateMonitor(appContext, new Runnable() {
+			@Override public void run() {
+				if (PersistentData.getAccelerometerEnabled() && accelerometerListener != null && !accelerometerListener.check_status()) {
+					TextFileManager.writeDebugLogStatement("motion gating: starting accelerometer session on motion.");
+					sendBroadcast(Timer.accelerometerOnIntent); }
+				if (gyroscopeSessionSkipped) {
+					gyroscopeSessionSkipped = false;
+					TextFileManager.writeDebugLogStatement("motion gating: starting skipped gyroscope session on motion.");
+					sendBroadcast(Timer.gyroscopeOnIntent); }
+				if (gpsSessionSkipped) {
+					gpsSessionSkipped = false;
+					TextFileManager.writeDebugLogStatement("motion gating: starting skipped GPS session on motion.");
+					sendBroadcast(Timer.gpsOnIntent); }
+			}
+		} );
+	}
+	
+	/** Unregisters the MotionStateMonitor's sensors, when motion gated duty cycling has been turned off. */
+	private void stopMotionStateMonitor() {
+		if (motionStateMonitor == null) { return; }
+		motionStateMonitor.stop();
+		motionStateMonitor = null;
+	}
+	
+	/** @return true if motion gated duty cycling is enabled and the device is currently stationary. */
+	private boolean deviceIsStationary() {
+		if (!PersistentData.getMotionGatedDutyCyclingEnabled()) {
+			stopMotionStateMonitor(); // the study settings turned it off
+			return false;
+		}
+		return motionStateMonitor != null && motionStateMonitor.isStationary();
+	}
 	
-	public void startMmsSentLogger(){
-		MMSSentLogger mmsMonitor = new MMSSentLogger(new Handler(), appContext);
-		this.getContentResolver().registerContentObserver(Uri.parse("content://mms/"), true, mmsMonitor); }
+	/** Initializes the texts logger, it watches both the sms and the mms databases. */
+	public void startTextsLogger() {
+		TextsLogger textsLogger = new TextsLogger(appContext);
+		ContentObserverDispatcher.register(appContext, TextsLogger.SMS_URI, TextsLogger.COALESCING_WINDOW_MILLISECONDS, textsLogger);
+		ContentObserverDispatcher.register(appContext, TextsLogger.MMS_URI, TextsLogger.COALESCING_WINDOW_MILLISECONDS, textsLogger); }
 
 	/** Initializes the call logger. */
 	private void startCallLogger() {
-		CallLogger callLogger = new CallLogger(new Handler(), appContext);
-		this.getContentResolver().registerContentObserver(Uri.parse("content://call_log/calls/"), true, callLogger); }
+		CallLogger callLogger = new CallLogger(appContext);
+		ContentObserverDispatcher.register(appContext, CallLogger.allCalls, CallLogger.COALESCING_WINDOW_MILLISECONDS, callLogger); }
 	
 	/** Initializes the PowerStateListener. 
 	 * The PowerStateListener requires the ACTION_SCREEN_OFF and ACTION_SCREEN_ON intents
@@ -232,28 +284,9 @@ public class MainService extends Service {
 	@SuppressWarnings("static-access")
 	public static void registerTimers(Context appContext) {
 		localHandle.timer = new Timer(localHandle);
+		if (localHandle.timerActions.isEmpty()) { localHandle.buildTimerActions(appContext); }
 		IntentFilter filter = new IntentFilter();
-		filter.addAction( appContext.getString( R.string.turn_accelerometer_off ) );
-		filter.addAction( appContext.getString( R.string.turn_gyroscope_off ));
-		filter.addAction( appContext.getString( R.string.turn_accelerometer_on ) );
-		filter.addAction( appContext.getString( R.string.turn_gyroscope_on ) );
-		filter.addAction( appContext.getString( R.string.turn_bluetooth_off ) );
-		filter.addAction( appContext.getString( R.string.turn_bluetooth_on ) );
-		filter.addAction( appContext.getString( R.string.turn_gps_off ) );
-		filter.addAction( appContext.getString( R.string.turn_gps_on ) );
-		filter.addAction( appContext.getString( R.string.signout_intent ) );
-		filter.addAction( appContext.getString( R.string.voice_recording ) );
-		filter.addAction( appContext.getString( R.string.run_wifi_log ) );
-		filter.addAction( appContext.getString( R.string.encrypt_ambient_audio_file) );
-		filter.addAction( appContext.getString( R.string.upload_data_files_intent ) );
-		filter.addAction( appContext.getString( R.string.create_new_data_files_intent ) );
-		filter.addAction( appContext.getString( R.string.check_for_new_surveys_intent ) );
-		filter.addAction( appContext.getString( R.string.check_for_sms_enabled ) );
-		filter.addAction( appContext.getString( R.string.check_for_calls_enabled ) );
-		filter.addAction( appContext.getString( R.string.check_if_ambient_audio_recording_is_enabled) );
-		filter.addAction( ConnectivityManager.CONNECTIVITY_ACTION );
-		filter.addAction("crashBeiwe");
-		filter.addAction("enterANR");
+		for (String action : localHandle.timerActions.keySet()) { filter.addAction(action); }
 		List<String> surveyIds = PersistentData.getSurveyIds();
 		for (String surveyId : surveyIds) { filter.addAction(surveyId); }
 		appContext.registerReceiver(localHandle.timerReceiver, filter);
@@ -357,9 +390,9 @@ public class MainService extends Service {
 			timer.setupExactSingleAbsoluteTimeAlarm(PersistentData.getBluetoothTotalDurationMilliseconds(), PersistentData.getBluetoothGlobalOffsetMilliseconds(), Timer.bluetoothOnIntent); }
 		
 		// Functionality timers. We don't need aggressive checking for if these timers have been missed, as long as they run eventually it is fine.
-		if (!timer.alarmIsSet(Timer.uploadDatafilesIntent)) { timer.setupExactSingleAlarm(PersistentData.getUploadDataFilesFrequencyMilliseconds(), Timer.uploadDatafilesIntent); }
-		if (!timer.alarmIsSet(Timer.createNewDataFilesIntent)) { timer.setupExactSingleAlarm(PersistentData.getCreateNewDataFilesFrequencyMilliseconds(), Timer.createNewDataFilesIntent); }
-		if (!timer.alarmIsSet(Timer.checkForNewSurveysIntent)) { timer.setupExactSingleAlarm(PersistentData.getCheckForNewSurveysFrequencyMilliseconds(), Timer.checkForNewSurveysIntent); }
+		if (!timer.alarmIsSet(Timer.uploadDatafilesIntent)) { timer.setupWindowedSingleAlarm(PersistentData.getUploadDataFilesFrequencyMilliseconds(), Timer.uploadDatafilesIntent); }
+		if (!timer.alarmIsSet(Timer.createNewDataFilesIntent)) { timer.setupWindowedSingleAlarm(PersistentData.getCreateNewDataFilesFrequencyMilliseconds(), Timer.createNewDataFilesIntent); }
+		if (!timer.alarmIsSet(Timer.checkForNewSurveysIntent)) { timer.setupWindowedSingleAlarm(PersistentData.getCheckForNewSurveysFrequencyMilliseconds(), Timer.checkForNewSurveysIntent); }
 
 		//checks for the current expected state for survey notifications,
 		for (String surveyId : PersistentData.getSurveyIds() ){
@@ -371,11 +404,25 @@ public class MainService extends Service {
 		for (String surveyId : PersistentData.getSurveyIds() ) {
 			if ( !timer.alarmIsSet( new Intent(surveyId) ) ) { SurveyScheduler.scheduleSurvey(surveyId); } }
 
+		//the timer wakeup starts the service if it is not running, so the keep alive timer replaces the repeating restart
+		// alarm (cancelled here, in case an older version of the app set it) and shares its wakeups with the other timers.
 		Intent restartServiceIntent = new Intent( getApplicationContext(), MainService.class);
 		restartServiceIntent.setPackage( getPackageName() );
 		PendingIntent restartServicePendingIntent = PendingIntent.getService(getApplicationContext(), 1, restartServiceIntent, 0 );
 		AlarmManager alarmService = (AlarmManager) getApplicationContext().getSystemService( Context.ALARM_SERVICE );
-		alarmService.setRepeating(AlarmManager.RTC_WAKEUP, System.currentTimeMillis() + 1000 * 60 * 2, 1000 * 60 * 2, restartServicePendingIntent);
+		alarmService.cancel(restartServicePendingIntent);
+		if (!timer.alarmIsSet(Timer.keepAliveIntent)) {
+			timer.setupSingleAlarm(Timer.KEEP_ALIVE_PERIOD_MILLISECONDS, Timer.KEEP_ALIVE_TOLERANCE_MILLISECONDS, WakeupScheduler.Exactness.WINDOWED, Timer.keepAliveIntent); }
+	}
+	
+	/** Runs every timer that is due, the WakeupScheduler batched them into the wakeup that started this.
+	 * Then releases the TimerWakeupListener's wake lock. */
+	private void runDueTimers() {
+		try {
+			if (timer == null) { return; }
+			List<Intent> dueIntents = timer.takeDueIntents();
+			for (Intent dueIntent : dueIntents) { timerReceiver.onReceive(appContext, dueIntent); }
+		} finally { TimerWakeupListener.releaseWakeLock(); }
 	}
 	
 	/**Refreshes the logout timer.
@@ -400,158 +447,224 @@ public class MainService extends Service {
 
 	public static void cancelSurveyAlarm(String surveyId) { timer.cancelAlarm(new Intent(surveyId)); }
 	
+	/** A handler for one timerReceiver action.  Handlers that do file, network, or crypto work are run in the
+	 * background, in order, on the timerExecutor; the rest (sensor toggles, permission checks) run on the main thread.
+	 * A background handler holds the timerActionWakeLock from when it is queued until it has run, the wakeup's own
+	 * wake lock is released as soon as the handlers have been queued. */
+	private abstract class TimerAction {
+		final boolean inBackground;
+		TimerAction(boolean inBackground) { this.inBackground = inBackground; }
+		abstract void run(Context appContext, Intent intent);
+	}
+
+	// every timer action's handler, keyed by the action.  Built once, by registerTimers, so that the timerReceiver
+	// dispatches with a single lookup instead of comparing against every action string.
+	private final HashMap<String, TimerAction> timerActions = new HashMap<String, TimerAction>();
+	private static final ExecutorService timerExecutor = Executors.newSingleThreadExecutor();
+	// reference counted, one count per queued or running background handler.
+	private static PowerManager.WakeLock timerActionWakeLock = null;
+
+	private static synchronized PowerManager.WakeLock getTimerActionWakeLock(Context appContext) {
+		if (timerActionWakeLock == null) {
+			PowerManager powerManager = (PowerManager) appContext.getSystemService(Context.POWER_SERVICE);
+			timerActionWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "beiwe:TimerAction");
+			timerActionWakeLock.setReferenceCounted(true);
+		}
+		return timerActionWakeLock;
+	}
+
 	/**The timerReceiver is an Android BroadcastReceiver that listens for our timer events to trigger,
-	 * and then runs the appropriate code for that trigger. 
-	 * Note: every condition has a return statement at the end; this is because the trigger survey notification
-	 * action requires a fairly expensive dive into PersistantData JSON unpacking.*/
+	 * and then runs the appropriate handler from timerActions.  Any other action is checked against the
+	 * survey ids, held in memory by PersistentData. */
 	private BroadcastReceiver timerReceiver = new BroadcastReceiver() {
-		@Override public void onReceive(Context appContext, Intent intent) {
+		@Override public void onReceive(final Context appContext, final Intent intent) {
 			Log.d("BackgroundService - timers", "Received broadcast: " + intent.toString() );
 			TextFileManager.getDebugLogFile().writeEncrypted(System.currentTimeMillis() + " Received Broadcast: " + intent.toString() );
 			String broadcastAction = intent.getAction();
+			if (broadcastAction == null) { return; }
 
-			/** For GPS and Accelerometer the failure modes are:
-			 * 1. If a recording event is triggered and followed by Doze being enabled then Beiwe will record until the Doze period ends.
-			 * 2. If, after Doze ends, the timers trigger out of order Beiwe ceaces to record and triggers a new recording event in the future. */
-
-			/** Disable active sensor */
-			if (broadcastAction.equals( appContext.getString(R.string.turn_accelerometer_off) ) ) {
-				accelerometerListener.turn_off();
-				return; }
-			if (broadcastAction.equals( appContext.getString(R.string.turn_gyroscope_off) ) ) {
-				gyroscopeListener.turn_off();
-				return; }
-			if (broadcastAction.equals( appContext.getString(R.string.turn_gps_off) ) ) {
-				if ( PermissionHandler.checkGpsPermissions(appContext) ) { gpsListener.turn_off(); }
+			TimerAction action = timerActions.get(broadcastAction);
+			if (action == null && PersistentData.isSurveyId(broadcastAction)) { action = surveyAction; }
+			if (action == null) { return; }
+			if (!action.inBackground) {
+				action.run(appContext, intent);
 				return; }
-			
-			/** Enable active sensors, reset timers. */
-			//Accelerometer. We automatically have permissions required for accelerometer.
-			if (broadcastAction.equals( appContext.getString(R.string.turn_accelerometer_on) ) ) {
-				if ( !PersistentData.getAccelerometerEnabled() ) { Log.e("BackgroundService Listener", "invalid Accelerometer on received"); return; }
-				accelerometerListener.turn_on();
-				//start both the sensor-off-action timer, and the next sensor-on-timer.
-				timer.setupExactSingleAlarm(PersistentData.getAccelerometerOnDurationMilliseconds(), Timer.accelerometerOffIntent);
-				long alarmTime = timer.setupExactSingleAlarm(PersistentData.getAccelerometerOffDurationMilliseconds() + PersistentData.getAccelerometerOnDurationMilliseconds(), Timer.accelerometerOnIntent);
-				//record the system time that the next alarm is supposed to go off at, so that we can recover in the event of a reboot or crash. 
-				PersistentData.setMostRecentAlarmTime(getString(R.string.turn_accelerometer_on), alarmTime );
-				return; }
-			//Gyroscope. Almost identical logic to accelerometer above.
-			if (broadcastAction.equals( appContext.getString(R.string.turn_gyroscope_on) ) ) {
-				if ( !PersistentData.getGyroscopeEnabled() || !gyroscopeListener.exists ) { Log.e("BackgroundService Listener", "invalid Gyroscope on received"); return; }
+			final TimerAction backgroundAction = action;
+			final PowerManager.WakeLock wakeLock = getTimerActionWakeLock(appContext);
+			wakeLock.acquire();
+			timerExecutor.execute(new Runnable() { @Override public void run() {
+				try { backgroundAction.run(appContext, intent); }
+				finally { wakeLock.release(); }
+			} } );
+		}
+	};
+
+	//pops up the notification for a survey, and schedules its next alarm.  The action is the survey id.
+	private final TimerAction surveyAction = new TimerAction(true) { @Override void run(Context appContext, Intent intent) {
+		SurveyNotifications.displaySurveyNotification(appContext, intent.getAction());
+		SurveyScheduler.scheduleSurvey(intent.getAction());
+	} };
+
+	private void buildTimerActions(Context appContext) {
+		/** For GPS and Accelerometer the failure modes are:
+		 * 1. If a recording event is triggered and followed by Doze being enabled then Beiwe will record until the Doze period ends.
+		 * 2. If, after Doze ends, the timers trigger out of order Beiwe ceaces to record and triggers a new recording event in the future. */
+
+		/** Disable active sensor */
+		timerActions.put(appContext.getString(R.string.turn_accelerometer_off), new TimerAction(false) { @Override void run(Context appContext, Intent intent) {
+			accelerometerListener.turn_off();
+		} } );
+		timerActions.put(appContext.getString(R.string.turn_gyroscope_off), new TimerAction(false) { @Override void run(Context appContext, Intent intent) {
+			gyroscopeListener.turn_off();
+		} } );
+		timerActions.put(appContext.getString(R.string.turn_gps_off), new TimerAction(false) { @Override void run(Context appContext, Intent intent) {
+			if ( PermissionHandler.checkGpsPermissions(appContext) ) { gpsListener.turn_off(); }
+		} } );
+
+		/** Enable active sensors, reset timers. */
+		//Accelerometer. We automatically have permissions required for accelerometer.
+		timerActions.put(appContext.getString(R.string.turn_accelerometer_on), new TimerAction(false) { @Override void run(Context appContext, Intent intent) {
+			if ( !PersistentData.getAccelerometerEnabled() ) { Log.e("BackgroundService Listener", "invalid Accelerometer on received"); return; }
+			accelerometerListener.turn_on();
+			//while stationary we still record (less often) so that there is a baseline, but we stretch the off period.
+			long offDuration = PersistentData.getAccelerometerOffDurationMilliseconds();
+			if ( deviceIsStationary() ) {
+				offDuration *= STATIONARY_OFF_DURATION_MULTIPLIER;
+				TextFileManager.writeDebugLogStatement("motion gating: device stationary, extending accelerometer off period to " + offDuration + " ms."); }
+			//start both the sensor-off-action timer, and the next sensor-on-timer.
+			timer.setupIdleTolerantSingleAlarm(PersistentData.getAccelerometerOnDurationMilliseconds(), Timer.accelerometerOffIntent);
+			long alarmTime = timer.setupWindowedSingleAlarm(offDuration + PersistentData.getAccelerometerOnDurationMilliseconds(), Timer.accelerometerOnIntent);
+			//record the system time that the next alarm is supposed to go off at, so that we can recover in the event of a reboot or crash. 
+			PersistentData.setMostRecentAlarmTime(getString(R.string.turn_accelerometer_on), alarmTime );
+		} } );
+		//Gyroscope. Almost identical logic to accelerometer above.
+		timerActions.put(appContext.getString(R.string.turn_gyroscope_on), new TimerAction(false) { @Override void run(Context appContext, Intent intent) {
+			if ( !PersistentData.getGyroscopeEnabled() || !gyroscopeListener.exists ) { Log.e("BackgroundService Listener", "invalid Gyroscope on received"); return; }
+			//while stationary skip the session, but keep the on-timer going so that we check again next period.
+			if ( deviceIsStationary() ) {
+				gyroscopeSessionSkipped = true;
+				TextFileManager.writeDebugLogStatement("motion gating: device stationary, skipping gyroscope session."); }
+			else {
+				gyroscopeSessionSkipped = false;
 				gyroscopeListener.turn_on();
 				//start both the sensor-off-action timer, and the next sensor-on-timer.
-				timer.setupExactSingleAlarm(PersistentData.getGyroscopeOnDurationMilliseconds(), Timer.gyroscopeOffIntent);
-				long alarmTime = timer.setupExactSingleAlarm(PersistentData.getGyroscopeOffDurationMilliseconds() + PersistentData.getGyroscopeOnDurationMilliseconds(), Timer.gyroscopeOnIntent);
-				//record the system time that the next alarm is supposed to go off at, so that we can recover in the event of a reboot or crash.
-				PersistentData.setMostRecentAlarmTime(getString(R.string.turn_gyroscope_on), alarmTime );
-				return;
-			}
-			//GPS. Almost identical logic to accelerometer above.
-			if (broadcastAction.equals( appContext.getString(R.string.turn_gps_on) ) ) {
-				if ( !PersistentData.getGpsEnabled() ) { Log.e("BackgroundService Listener", "invalid GPS on received"); return; }
+				timer.setupIdleTolerantSingleAlarm(PersistentData.getGyroscopeOnDurationMilliseconds(), Timer.gyroscopeOffIntent); }
+			long alarmTime = timer.setupWindowedSingleAlarm(PersistentData.getGyroscopeOffDurationMilliseconds() + PersistentData.getGyroscopeOnDurationMilliseconds(), Timer.gyroscopeOnIntent);
+			//record the system time that the next alarm is supposed to go off at, so that we can recover in the event of a reboot or crash.
+			PersistentData.setMostRecentAlarmTime(getString(R.string.turn_gyroscope_on), alarmTime );
+		} } );
+		//GPS. Almost identical logic to accelerometer above.
+		timerActions.put(appContext.getString(R.string.turn_gps_on), new TimerAction(false) { @Override void run(Context appContext, Intent intent) {
+			if ( !PersistentData.getGpsEnabled() ) { Log.e("BackgroundService Listener", "invalid GPS on received"); return; }
+			long gpsOffDuration = PersistentData.getGpsOffDurationMilliseconds();
+			if ( gpsListener.isInStablePlace() ) {
+				gpsOffDuration *= STABLE_PLACE_GPS_OFF_DURATION_MULTIPLIER;
+				TextFileManager.writeDebugLogStatement("place index: last GPS session ended in a known place, extending GPS off period to " + gpsOffDuration + " ms."); }
+			if ( deviceIsStationary() ) {
+				gpsSessionSkipped = true;
+				TextFileManager.writeDebugLogStatement("motion gating: device stationary, skipping GPS session."); }
+			else {
+				gpsSessionSkipped = false;
 				gpsListener.turn_on();
-				timer.setupExactSingleAlarm(PersistentData.getGpsOnDurationMilliseconds(), Timer.gpsOffIntent);
-				long alarmTime = timer.setupExactSingleAlarm(PersistentData.getGpsOnDurationMilliseconds() + PersistentData.getGpsOffDurationMilliseconds(), Timer.gpsOnIntent);
-				PersistentData.setMostRecentAlarmTime(getString(R.string.turn_gps_on), alarmTime );
-				return; }
-			//run a wifi scan.  Most similar to GPS, but without an off-timer.
-			if (broadcastAction.equals( appContext.getString(R.string.run_wifi_log) ) ) {
-				if ( !PersistentData.getWifiEnabled() ) { Log.e("BackgroundService Listener", "invalid WiFi scan received"); return; }
-				if ( PermissionHandler.checkWifiPermissions(appContext) ) { WifiListener.scanWifi(); }
-				else { TextFileManager.getDebugLogFile().writeEncrypted(System.currentTimeMillis() + " user has not provided permission for Wifi."); }
-				long alarmTime = timer.setupExactSingleAlarm(PersistentData.getWifiLogFrequencyMilliseconds(), Timer.wifiLogIntent);
-				PersistentData.setMostRecentAlarmTime( getString(R.string.run_wifi_log), alarmTime );
-				return; }
+				timer.setupIdleTolerantSingleAlarm(PersistentData.getGpsOnDurationMilliseconds(), Timer.gpsOffIntent); }
+			long alarmTime = timer.setupWindowedSingleAlarm(PersistentData.getGpsOnDurationMilliseconds() + gpsOffDuration, Timer.gpsOnIntent);
+			PersistentData.setMostRecentAlarmTime(getString(R.string.turn_gps_on), alarmTime );
+		} } );
+		//run a wifi scan.  Most similar to GPS, but without an off-timer.
+		timerActions.put(appContext.getString(R.string.run_wifi_log), new TimerAction(false) { @Override void run(Context appContext, Intent intent) {
+			if ( !PersistentData.getWifiEnabled() ) { Log.e("BackgroundService Listener", "invalid WiFi scan received"); return; }
+			if ( PermissionHandler.checkWifiPermissions(appContext) ) { WifiListener.scanWifi(); }
+			else { TextFileManager.getDebugLogFile().writeEncrypted(System.currentTimeMillis() + " user has not provided permission for Wifi."); }
+			long alarmTime = timer.setupWindowedSingleAlarm(PersistentData.getWifiLogFrequencyMilliseconds(), Timer.wifiLogIntent);
+			PersistentData.setMostRecentAlarmTime( getString(R.string.run_wifi_log), alarmTime );
+		} } );
 
-			// Encrypt the current ambient audio file
-			if (broadcastAction.equals(appContext.getString(R.string.encrypt_ambient_audio_file))) {
-				AmbientAudioListener.encryptAmbientAudioFile();
-				return;
-			}
+		//does nothing, its wakeup (re)starts the service if it has died.  Schedules the next one.
+		timerActions.put(appContext.getString(R.string.keep_alive), new TimerAction(false) { @Override void run(Context appContext, Intent intent) {
+			timer.setupSingleAlarm(Timer.KEEP_ALIVE_PERIOD_MILLISECONDS, Timer.KEEP_ALIVE_TOLERANCE_MILLISECONDS, WakeupScheduler.Exactness.WINDOWED, Timer.keepAliveIntent);
+		} } );
 
-			/** Bluetooth timers are unlike GPS and Accelerometer because it uses an absolute-point-in-time as a trigger, and therefore we don't need to store most-recent-timer state.
-			 * The Bluetooth-on action sets the corresponding Bluetooth-off timer, the Bluetooth-off action sets the next Bluetooth-on timer.*/
-			if (broadcastAction.equals( appContext.getString(R.string.turn_bluetooth_on) ) ) {
-				if ( !PersistentData.getBluetoothEnabled() ) { Log.e("BackgroundService Listener", "invalid Bluetooth on received"); return; }
-				if ( PermissionHandler.checkBluetoothPermissions(appContext) ) {
-					if (bluetoothListener != null) bluetoothListener.enableBLEScan(); }
-				else { TextFileManager.getDebugLogFile().writeEncrypted(System.currentTimeMillis() + " user has not provided permission for Bluetooth."); }
-				timer.setupExactSingleAlarm(PersistentData.getBluetoothOnDurationMilliseconds(), Timer.bluetoothOffIntent);
-				return; }
-			if (broadcastAction.equals( appContext.getString(R.string.turn_bluetooth_off) ) ) {
-				if ( PermissionHandler.checkBluetoothPermissions(appContext) ) {
-					if ( bluetoothListener != null) bluetoothListener.disableBLEScan(); }
-				timer.setupExactSingleAbsoluteTimeAlarm(PersistentData.getBluetoothTotalDurationMilliseconds(), PersistentData.getBluetoothGlobalOffsetMilliseconds(), Timer.bluetoothOnIntent);
-				return; }
-			
-			//starts a data upload attempt.
-			if (broadcastAction.equals( appContext.getString(R.string.upload_data_files_intent) ) ) {
-				PostRequest.uploadAllFiles();
-				timer.setupExactSingleAlarm(PersistentData.getUploadDataFilesFrequencyMilliseconds(), Timer.uploadDatafilesIntent);
-				return; }
-			//creates new data files
-			if (broadcastAction.equals( appContext.getString(R.string.create_new_data_files_intent) ) ) {
-				TextFileManager.makeNewFilesForEverything();
-				timer.setupExactSingleAlarm(PersistentData.getCreateNewDataFilesFrequencyMilliseconds(), Timer.createNewDataFilesIntent);
-                PostRequest.uploadAllFiles();
-				return; }
-			//Downloads the most recent survey questions and schedules the surveys.
-			if (broadcastAction.equals( appContext.getString(R.string.check_for_new_surveys_intent))) {
-				SurveyDownloader.downloadSurveys(getApplicationContext(), null);
-				timer.setupExactSingleAlarm(PersistentData.getCheckForNewSurveysFrequencyMilliseconds(), Timer.checkForNewSurveysIntent);
-				return; }
-			// Signs out the user. (does not set up a timer, that is handled in activity and sign-in logic) 
-			if (broadcastAction.equals( appContext.getString(R.string.signout_intent) ) ) {
-				PersistentData.logout();
-				Intent loginPage = new Intent(appContext, LoginActivity.class);
-				loginPage.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-				appContext.startActivity(loginPage);
-				return; }
+		// Encrypt the current ambient audio file
+		timerActions.put(appContext.getString(R.string.encrypt_ambient_audio_file), new TimerAction(true) { @Override void run(Context appContext, Intent intent) {
+			AmbientAudioListener.encryptAmbientAudioFile();
+		} } );
 
-			if (broadcastAction.equals( appContext.getString(R.string.check_for_sms_enabled) ) ) {
-				if ( PermissionHandler.confirmTexts(appContext) ) { startSmsSentLogger(); startMmsSentLogger(); }
-				else if (PersistentData.getTextsEnabled() ) { timer.setupExactSingleAlarm(30000L, Timer.checkForSMSEnabled); }
-			}
-			if (broadcastAction.equals( appContext.getString(R.string.check_for_calls_enabled) ) ) {
-				if ( PermissionHandler.confirmCalls(appContext) ) { startCallLogger(); }
-				else if (PersistentData.getCallsEnabled() ) { timer.setupExactSingleAlarm(30000L, Timer.checkForCallsEnabled); }
-			}
+		/** Bluetooth timers are unlike GPS and Accelerometer because it uses an absolute-point-in-time as a trigger, and therefore we don't need to store most-recent-timer state.
+		 * The Bluetooth-on action sets the corresponding Bluetooth-off timer, the Bluetooth-off action sets the next Bluetooth-on timer.*/
+		timerActions.put(appContext.getString(R.string.turn_bluetooth_on), new TimerAction(false) { @Override void run(Context appContext, Intent intent) {
+			if ( !PersistentData.getBluetoothEnabled() ) { Log.e("BackgroundService Listener", "invalid Bluetooth on received"); return; }
+			if ( PermissionHandler.checkBluetoothPermissions(appContext) ) {
+				if (bluetoothListener != null) bluetoothListener.enableBLEScan(); }
+			else { TextFileManager.getDebugLogFile().writeEncrypted(System.currentTimeMillis() + " user has not provided permission for Bluetooth."); }
+			timer.setupIdleTolerantSingleAlarm(PersistentData.getBluetoothOnDurationMilliseconds(), Timer.bluetoothOffIntent);
+		} } );
+		timerActions.put(appContext.getString(R.string.turn_bluetooth_off), new TimerAction(false) { @Override void run(Context appContext, Intent intent) {
+			if ( PermissionHandler.checkBluetoothPermissions(appContext) ) {
+				if ( bluetoothListener != null) bluetoothListener.disableBLEScan(); }
+			timer.setupExactSingleAbsoluteTimeAlarm(PersistentData.getBluetoothTotalDurationMilliseconds(), PersistentData.getBluetoothGlobalOffsetMilliseconds(), Timer.bluetoothOnIntent);
+		} } );
 
-			if (broadcastAction.equals( appContext.getString(R.string.check_if_ambient_audio_recording_is_enabled) ) ) {
-				if ( PermissionHandler.confirmAmbientAudioCollection(appContext) ) { AmbientAudioListener.startRecording(appContext); }
-				else if (PersistentData.getAmbientAudioCollectionIsEnabled() ) { timer.setupExactSingleAlarm(10000L, Timer.checkIfAmbientAudioRecordingIsEnabled); }
-			}
+		//starts a data upload attempt.
+		timerActions.put(appContext.getString(R.string.upload_data_files_intent), new TimerAction(true) { @Override void run(Context appContext, Intent intent) {
+			PostRequest.uploadAllFiles();
+			timer.setupWindowedSingleAlarm(PersistentData.getUploadDataFilesFrequencyMilliseconds(), Timer.uploadDatafilesIntent);
+		} } );
+		//creates new data files
+		timerActions.put(appContext.getString(R.string.create_new_data_files_intent), new TimerAction(true) { @Override void run(Context appContext, Intent intent) {
+			SensorDiagnostics.flushAll(); // write out the diagnostics of long-running sensor sessions before rotating
+			TextFileManager.writeStreamMetrics();
+			ContentObserverDispatcher.writeCounts();
+			TextFileManager.makeNewFilesForEverything();
+			timer.setupWindowedSingleAlarm(PersistentData.getCreateNewDataFilesFrequencyMilliseconds(), Timer.createNewDataFilesIntent);
+			PostRequest.uploadAllFiles();
+		} } );
+		//Downloads the most recent survey questions and schedules the surveys.
+		timerActions.put(appContext.getString(R.string.check_for_new_surveys_intent), new TimerAction(true) { @Override void run(Context appContext, Intent intent) {
+			SurveyDownloader.downloadSurveys(getApplicationContext(), null);
+			timer.setupWindowedSingleAlarm(PersistentData.getCheckForNewSurveysFrequencyMilliseconds(), Timer.checkForNewSurveysIntent);
+		} } );
+		// Signs out the user. (does not set up a timer, that is handled in activity and sign-in logic) 
+		timerActions.put(appContext.getString(R.string.signout_intent), new TimerAction(false) { @Override void run(Context appContext, Intent intent) {
+			PersistentData.logout();
+			Intent loginPage = new Intent(appContext, LoginActivity.class);
+			loginPage.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+			appContext.startActivity(loginPage);
+		} } );
 
-			//checks if the action is the id of a survey (expensive), if so pop up the notification for that survey, schedule the next alarm
-			if ( PersistentData.getSurveyIds().contains( broadcastAction ) ) {
-//				Log.i("MAIN SERVICE", "new notification: " + broadcastAction);
-				SurveyNotifications.displaySurveyNotification(appContext, broadcastAction);
-				SurveyScheduler.scheduleSurvey(broadcastAction);
-				return; }
+		timerActions.put(appContext.getString(R.string.check_for_sms_enabled), new TimerAction(false) { @Override void run(Context appContext, Intent intent) {
+			if ( PermissionHandler.confirmTexts(appContext) ) { startTextsLogger(); }
+			else if (PersistentData.getTextsEnabled() ) { timer.setupWindowedSingleAlarm(30000L, Timer.checkForSMSEnabled); }
+		} } );
+		timerActions.put(appContext.getString(R.string.check_for_calls_enabled), new TimerAction(false) { @Override void run(Context appContext, Intent intent) {
+			if ( PermissionHandler.confirmCalls(appContext) ) { startCallLogger(); }
+			else if (PersistentData.getCallsEnabled() ) { timer.setupWindowedSingleAlarm(30000L, Timer.checkForCallsEnabled); }
+		} } );
+		timerActions.put(appContext.getString(R.string.check_if_ambient_audio_recording_is_enabled), new TimerAction(false) { @Override void run(Context appContext, Intent intent) {
+			if ( PermissionHandler.confirmAmbientAudioCollection(appContext) ) { AmbientAudioListener.startRecording(appContext); }
+			else if (PersistentData.getAmbientAudioCollectionIsEnabled() ) { timer.setupWindowedSingleAlarm(10000L, Timer.checkIfAmbientAudioRecordingIsEnabled); }
+		} } );
 
-			if ( PersistentData.isRegistered() && broadcastAction.equals(ConnectivityManager.CONNECTIVITY_ACTION)) {
-				NetworkInfo networkInfo = intent.getParcelableExtra(ConnectivityManager.EXTRA_NETWORK_INFO);
-				if(networkInfo.getType() == ConnectivityManager.TYPE_WIFI) {
-					PostRequest.uploadAllFiles();
-					return;
-				}
-			}
+		timerActions.put(ConnectivityManager.CONNECTIVITY_ACTION, new TimerAction(true) { @Override void run(Context appContext, Intent intent) {
+			if ( !PersistentData.isRegistered() ) { return; }
+			NetworkInfo networkInfo = intent.getParcelableExtra(ConnectivityManager.EXTRA_NETWORK_INFO);
+			if (networkInfo != null && networkInfo.getType() == ConnectivityManager.TYPE_WIFI) { PostRequest.uploadAllFiles(); }
+		} } );
 
-			//this is a special action that will only run if the app device is in debug mode.
-			if (broadcastAction.equals("crashBeiwe") && BuildConfig.APP_IS_BETA) {
-				throw new NullPointerException("beeeeeoooop."); }
-			//this is a special action that will only run if the app device is in debug mode.
-			if (broadcastAction.equals("enterANR") && BuildConfig.APP_IS_BETA) {
-				try {
-					sleep(100000);
-				}
-				catch(InterruptedException ie) {
-					ie.printStackTrace();
-				}
+		//this is a special action that will only run if the app device is in debug mode.
+		timerActions.put("crashBeiwe", new TimerAction(false) { @Override void run(Context appContext, Intent intent) {
+			if (BuildConfig.APP_IS_BETA) { throw new NullPointerException("beeeeeoooop."); }
+		} } );
+		//this is a special action that will only run if the app device is in debug mode.
+		timerActions.put("enterANR", new TimerAction(false) { @Override void run(Context appContext, Intent intent) {
+			if (!BuildConfig.APP_IS_BETA) { return; }
+			try {
+				sleep(100000);
 			}
-		}
-	};
+			catch(InterruptedException ie) {
+				ie.printStackTrace();
+			}
+		} } );
+	}
 	
 	/*##########################################################################################
 	############## code related to onStartCommand and binding to an activity ###################
@@ -590,6 +703,7 @@ public class MainService extends Service {
 						.build();
 		//multiple sources recommend an ID of 1 because it works. documentation is very spotty about this
 		startForeground(1, notification);
+		if (intent != null && Timer.wakeupAction != null && Timer.wakeupAction.equals(intent.getAction())) { runDueTimers(); }
 		// We want this service to continue running until it is explicitly stopped, so return sticky.
 		return START_STICKY;
 		//we are testing out this restarting behavior for the service.  It is entirely unclear that this will have any observable effect.
@@ -5,17 +5,41 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 
+import org.beiwe.app.WakeupScheduler.Exactness;
+import org.beiwe.app.listeners.TimerWakeupListener;
 import org.beiwe.app.storage.PersistentData;
+import org.beiwe.app.storage.TextFileManager;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.List;
 
 /** The Timer class provides a meeans of setting various timers.  These are used by the BackgroundService
  * for devices that must be turned on/off, and timing the user to automatically logout after a period of time.
  * This class includes all the Intents and IntentFilters we for trigged broadcasts.
+ * All timers are multiplexed by a WakeupScheduler onto one AlarmManager wakeup per Exactness: exact timers
+ * use setExact, windowed timers setWindow, and idle tolerant timers setExactAndAllowWhileIdle.  A wakeup is
+ * broadcast to the TimerWakeupListener, which holds a wake lock and starts the MainService with the timer wakeup
+ * action, and the MainService runs every timer that is due.  Pending
+ * timers are kept in PersistentData, so they survive the process being killed.  The time
+ * each timer was requested for and the time it actually ran are written to the alarmDiagnostics stream.
  * @author Eli, Dor */
 public class Timer {
 	private AlarmManager alarmManager;
 	private Context appContext;
+	// shared by every Timer instance (MainService.registerTimers makes a new one), the pending timers live here.
+	private static WakeupScheduler scheduler = null;
+	// timers without an explicit tolerance may run up to a tenth of their delay late, but no more than this.
+	private static final long MAX_DEFAULT_TOLERANCE_MILLISECONDS = 5 * 60 * 1000L;
+	public static final long KEEP_ALIVE_PERIOD_MILLISECONDS = 2 * 60 * 1000L;
+	public static final long KEEP_ALIVE_TOLERANCE_MILLISECONDS = 3 * 60 * 1000L;
+	
+	public static String alarmDiagnosticsHeader = "timestamp, action, exactness, requested time, deadline, lateness milliseconds, batch size";
 	
 	// Control Message Intents
 	public static Intent accelerometerOffIntent;
@@ -38,6 +62,8 @@ public class Timer {
 	public static Intent checkForSMSEnabled;
 	public static Intent checkForCallsEnabled;
 	public static Intent checkIfAmbientAudioRecordingIsEnabled;
+	public static Intent keepAliveIntent;
+	public static String wakeupAction;
 	
 	
 	// Constructor
@@ -66,6 +92,67 @@ public class Timer {
 		checkForSMSEnabled = setupIntent(appContext.getString(R.string.check_for_sms_enabled));
 		checkForCallsEnabled = setupIntent(appContext.getString(R.string.check_for_calls_enabled));
 		checkIfAmbientAudioRecordingIsEnabled = setupIntent(appContext.getString(R.string.check_if_ambient_audio_recording_is_enabled));
+		keepAliveIntent = setupIntent(appContext.getString(R.string.keep_alive));
+		wakeupAction = appContext.getString(R.string.timer_wakeup);
+		
+		synchronized (Timer.class) {
+			if (scheduler == null) { scheduler = createScheduler(appContext, alarmManager); }
+		}
+	}
+	
+	private static WakeupScheduler createScheduler(final Context appContext, final AlarmManager alarmManager) {
+		// one PendingIntent per Exactness, they differ only in their request codes.  The wakeup is a broadcast, the
+		// alarm holds the device awake until the TimerWakeupListener has taken its own wake lock and started the service.
+		Intent wakeupIntent = new Intent(appContext, TimerWakeupListener.class);
+		wakeupIntent.setAction(appContext.getString(R.string.timer_wakeup));
+		final PendingIntent[] wakeupPendingIntents = new PendingIntent[Exactness.values().length];
+		for (Exactness exactness : Exactness.values()) {
+			wakeupPendingIntents[exactness.ordinal()] = PendingIntent.getBroadcast(appContext, 2 + exactness.ordinal(), wakeupIntent, 0);
+		}
+		return new WakeupScheduler(
+			new WakeupScheduler.Clock() { @Override public long currentTimeMillis() { return System.currentTimeMillis(); } },
+			new WakeupScheduler.WakeupAlarm() {
+				@Override public void set(Exactness exactness, long windowStartMillis, long windowEndMillis) {
+					setAlarm(alarmManager, exactness, windowStartMillis, windowEndMillis, wakeupPendingIntents[exactness.ordinal()]); }
+				@Override public void cancel(Exactness exactness) { alarmManager.cancel(wakeupPendingIntents[exactness.ordinal()]); }
+			},
+			new WakeupScheduler.TaskStore() {
+				@Override public void save(Collection<WakeupScheduler.Task> tasks) { PersistentData.setPendingTimers(tasksToJson(tasks)); }
+				@Override public List<WakeupScheduler.Task> load() { return tasksFromJson(PersistentData.getPendingTimers()); }
+			} );
+	}
+	
+	private static String tasksToJson(Collection<WakeupScheduler.Task> tasks) {
+		JSONArray array = new JSONArray();
+		try {
+			for (WakeupScheduler.Task task : tasks) {
+				JSONObject json = new JSONObject();
+				json.put("action", task.action);
+				json.put("exactness", task.exactness.name());
+				json.put("triggerAt", task.triggerAt);
+				json.put("deadline", task.deadline);
+				array.put(json);
+			}
+		} catch (JSONException e) { throw new NullPointerException("could not save the pending timers: " + e.getMessage()); } // unreachable, the keys are not null.
+		return array.toString();
+	}
+	
+	/** @return the tasks in the JSON, skipping any that can't be read. */
+	private static List<WakeupScheduler.Task> tasksFromJson(String jsonString) {
+		List<WakeupScheduler.Task> tasks = new ArrayList<WakeupScheduler.Task>();
+		try {
+			JSONArray array = new JSONArray(jsonString);
+			for (int i = 0; i < array.length(); i++) {
+				try {
+					JSONObject json = array.getJSONObject(i);
+					tasks.add(new WakeupScheduler.Task(json.getString("action"), Exactness.valueOf(json.getString("exactness")),
+							json.getLong("triggerAt"), json.getLong("deadline")));
+				}
+				catch (JSONException e) { TextFileManager.writeDebugLogStatement("could not restore a pending timer: " + e.getMessage()); }
+				catch (IllegalArgumentException e) { TextFileManager.writeDebugLogStatement("could not restore a pending timer: " + e.getMessage()); }
+			}
+		} catch (JSONException e) { TextFileManager.writeDebugLogStatement("could not restore the pending timers: " + e.getMessage()); }
+		return tasks;
 	}
 	
 	/* ######################################################################
@@ -86,12 +173,32 @@ public class Timer {
 	/** Single exact alarm for an event that happens once.
 	 * @return a long of the system time in milliseconds that the alarm was set for. */
 	public Long setupExactSingleAlarm(Long milliseconds, Intent intentToBeBroadcast) {
-		Long triggerTime = System.currentTimeMillis() + milliseconds;
-		PendingIntent pendingIntent = PendingIntent.getBroadcast(appContext, 0, intentToBeBroadcast, 0);
-		setExactAlarm(AlarmManager.RTC_WAKEUP, triggerTime, pendingIntent);
-		return triggerTime;
+		return setupSingleAlarm(milliseconds, 0, Exactness.EXACT, intentToBeBroadcast);
+	}
+	
+	/** Single windowed alarm, for an event that can run up to a tenth of its delay (at most
+	 * MAX_DEFAULT_TOLERANCE_MILLISECONDS) late, but need not run while the device is idle.
+	 * @return a long of the system time in milliseconds that the alarm was set for. */
+	public Long setupWindowedSingleAlarm(Long milliseconds, Intent intentToBeBroadcast) {
+		return setupSingleAlarm(milliseconds, defaultTolerance(milliseconds), Exactness.WINDOWED, intentToBeBroadcast);
 	}
 	
+	/** Single idle tolerant alarm, for an event that must run on time even while the device is idle.
+	 * It has no tolerance: these turn sensors off, and a late one lengthens the sensor's on duration.
+	 * (Other timers that are due run in the same wakeup.)
+	 * @return a long of the system time in milliseconds that the alarm was set for. */
+	public Long setupIdleTolerantSingleAlarm(Long milliseconds, Intent intentToBeBroadcast) {
+		return setupSingleAlarm(milliseconds, 0, Exactness.IDLE_TOLERANT, intentToBeBroadcast);
+	}
+	
+	/** Single alarm for an event that happens once, it may run up to toleranceMilliseconds late.
+	 * @return a long of the system time in milliseconds that the alarm was set for. */
+	public Long setupSingleAlarm(long milliseconds, long toleranceMilliseconds, Exactness exactness, Intent intentToBeBroadcast) {
+		return scheduler.schedule(intentToBeBroadcast.getAction(), System.currentTimeMillis() + milliseconds, toleranceMilliseconds, exactness);
+	}
+	
+	private static long defaultTolerance(long milliseconds) { return Math.min(milliseconds / 10, MAX_DEFAULT_TOLERANCE_MILLISECONDS); }
+	
 	/** setupExactTimeAlarm creates an Exact Alarm that will go off at a specific time within a
 	 * period, e.g. every hour (period), at 47 minutes past the hour (start time within period).
 	 * setupExactTimeAlarm is used for the Bluetooth timer, so that every device that has this app
@@ -103,8 +210,7 @@ public class Timer {
 		if (nextTriggerTime < currentTime) {
 			nextTriggerTime += period;
 		}
-		PendingIntent pendingTimerIntent = PendingIntent.getBroadcast(appContext, 0, intentToBeBroadcast, 0);
-		setExactAlarm(AlarmManager.RTC_WAKEUP, nextTriggerTime, pendingTimerIntent);
+		scheduler.schedule(intentToBeBroadcast.getAction(), nextTriggerTime, 0, Exactness.EXACT);
 	}
 	
 	public void startSurveyAlarm(String surveyId, Calendar alarmTime) {
@@ -116,15 +222,34 @@ public class Timer {
 	/**Takes a specially prepared intent and sets it to go off at the day and time provided
 	 * @param intentToBeBroadcast an intent that has been prepared by the startWeeklyAlarm function.*/
 	public void setupSurveyAlarm(String surveyId, Intent intentToBeBroadcast, Calendar alarmTime) {
-		PendingIntent pendingIntent = PendingIntent.getBroadcast(appContext, 0, intentToBeBroadcast, 0);
 		long nextTriggerTime = alarmTime.getTimeInMillis();
 //		triggerAtMillis = System.currentTimeMillis() + 15000; //hax, debug code.
 //		long timeTillFire = nextTriggerTime - System.currentTimeMillis();
 		// Log.i("Timer.java", "next alarm triggers in = " + timeTillFire / 1000 + " seconds.");
-		setExactAlarm(AlarmManager.RTC_WAKEUP, nextTriggerTime, pendingIntent);
+		scheduler.schedule(intentToBeBroadcast.getAction(), nextTriggerTime, 0, Exactness.EXACT);
 		PersistentData.setMostRecentSurveyAlarmTime(surveyId, nextTriggerTime);
 	}
 	
+	/** Call when woken by the timer wakeup action.  Records each due timer in the alarmDiagnostics stream.
+	 * @return an Intent for every timer that is due, in the order they were due. */
+	public List<Intent> takeDueIntents() {
+		List<WakeupScheduler.Task> dueTasks = scheduler.takeDue();
+		long now = System.currentTimeMillis();
+		List<Intent> intents = new ArrayList<Intent>(dueTasks.size());
+		for (WakeupScheduler.Task task : dueTasks) {
+			//	"timestamp, action, exactness, requested time, deadline, lateness milliseconds, batch size"
+			TextFileManager.getAlarmDiagnosticsFile().writeEncrypted(now + TextFileManager.DELIMITER
+					+ task.action + TextFileManager.DELIMITER
+					+ task.exactness + TextFileManager.DELIMITER
+					+ task.triggerAt + TextFileManager.DELIMITER
+					+ task.deadline + TextFileManager.DELIMITER
+					+ (now - task.triggerAt) + TextFileManager.DELIMITER
+					+ dueTasks.size() );
+			intents.add(setupIntent(task.action));
+		}
+		return intents;
+	}
+	
 	/* ##################################################################################
 	 * ############################ Other Utility Functions #############################
 	 * ################################################################################*/
@@ -142,19 +267,27 @@ public class Timer {
 			return false;
 	}
 	
-	/** Calls AlarmManager.set() for API < 19, and AlarmManager.setExact() for API 19+
-	 * For an exact alarm, it seems you need to use .set() for API 18 and below, and
-	 * .setExact() for API 19 (KitKat) and above. */
-	private void setExactAlarm(int type, long triggerAtMillis, PendingIntent operation) {
+	/** Sets an RTC_WAKEUP alarm in the way that suits its Exactness.  In API 18 and below every alarm is exact,
+	 * so we use .set().  In API 19+ windowed alarms use .setWindow() over the whole window, and exact and idle
+	 * tolerant alarms .setExact() at the end of the window.  In API 23+ idle tolerant alarms use
+	 * .setExactAndAllowWhileIdle() instead, so that they are not held past their deadline by Doze (an inexact
+	 * alarm can be deferred far past it, and these turn sensors off). */
+	private static void setAlarm(AlarmManager alarmManager, Exactness exactness, long windowStartMillis, long windowEndMillis, PendingIntent operation) {
 		if (alarmsAreExactInThisApiVersion())
-			alarmManager.set(type, triggerAtMillis, operation);
+			alarmManager.set(AlarmManager.RTC_WAKEUP, windowEndMillis, operation);
+		else if (exactness == Exactness.IDLE_TOLERANT && android.os.Build.VERSION.SDK_INT >= 23)
+			alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, windowEndMillis, operation);
+		else if (exactness != Exactness.WINDOWED || windowEndMillis <= windowStartMillis)
+			alarmManager.setExact(AlarmManager.RTC_WAKEUP, windowEndMillis, operation);
 		else
-			alarmManager.setExact(type, triggerAtMillis, operation);
+			alarmManager.setWindow(AlarmManager.RTC_WAKEUP, windowStartMillis, windowEndMillis - windowStartMillis, operation);
 	}
 	
 	/**Cancels an alarm, does not return any info about whether the alarm existed.
 	 * @param intentToBeBroadcast an Intent identifying the alarm to cancel. */
 	public void cancelAlarm(Intent intentToBeBroadcast) {
+		scheduler.cancel(intentToBeBroadcast.getAction());
+		// alarms set by versions of the app that did not multiplex them are individual AlarmManager alarms.
 		PendingIntent pendingIntent = PendingIntent.getBroadcast(appContext, 0, intentToBeBroadcast, 0);
 		alarmManager.cancel(pendingIntent);
 	}
@@ -162,12 +295,5 @@ public class Timer {
 	/**Checks if an alarm is set.
 	 * @param intent an Intent identifying the alarm to check.
 	 * @return Returns TRUE if there is an alarm set matching that intent; otherwise false. */
-	public Boolean alarmIsSet(Intent intent) {
-		PendingIntent pendingIntent = PendingIntent.getBroadcast(appContext, 0, intent, PendingIntent.FLAG_NO_CREATE);
-		if (pendingIntent == null) {
-			return false;
-		} else {
-			return true;
-		}
-	}
+	public Boolean alarmIsSet(Intent intent) { return scheduler.isScheduled(intent.getAction()); }
 }
\ No newline at end of file
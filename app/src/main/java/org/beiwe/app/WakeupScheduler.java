@@ -0,0 +1,177 @@
+package org.beiwe.app;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**WakeupScheduler multiplexes all of the app's timed tasks onto as few device wakeups as possible.
+ * Each task is an action with a trigger time, a tolerance, and an Exactness: it may run any time from its
+ * trigger time until its deadline (trigger time + tolerance).  Each Exactness class has one wakeup,
+ * programmed for the earliest deadline among its tasks, and at any wakeup every task whose trigger time has
+ * passed is run, whatever its class.  Tasks whose windows overlap therefore share a wakeup.
+ * There is at most one pending task per action, scheduling an action again replaces it.
+ * The pending tasks are saved to a TaskStore on every change and reloaded on construction, so they survive
+ * the process being killed.
+ * Has no Android dependencies, the clock, the wakeup alarms and the store are supplied by the Timer (or by a test).
+ * Thread safe. */
+public class WakeupScheduler {
+
+	/** How much a task's wakeup may be moved, each class gets its own wakeup. */
+	public enum Exactness {
+		/** Runs at its trigger time, e.g. survey notifications and the synchronized Bluetooth scans. */
+		EXACT,
+		/** Runs anywhere in its window, so the OS can batch the wakeup with other apps'.  Deferred while the device is idle (Doze). */
+		WINDOWED,
+		/** Runs by its deadline even while the device is idle (Doze), e.g. turning sensors off. */
+		IDLE_TOLERANT
+	}
+
+	/** The source of the current time, in milliseconds. */
+	public interface Clock { long currentTimeMillis(); }
+
+	/** The device wakeups, one per Exactness. */
+	public interface WakeupAlarm {
+		/** Sets the wakeup for this exactness (replacing the previous one) to happen between windowStartMillis and windowEndMillis. */
+		void set(Exactness exactness, long windowStartMillis, long windowEndMillis);
+		void cancel(Exactness exactness);
+	}
+
+	/** Keeps the pending tasks across process deaths. */
+	public interface TaskStore {
+		void save(Collection<Task> tasks);
+		/** @return the tasks last saved, empty if there are none. */
+		List<Task> load();
+	}
+
+	/** A pending, or (returned by takeDue) due, task. */
+	public static class Task {
+		public final String action;
+		public final Exactness exactness;
+		public final long triggerAt;
+		public final long deadline;
+		public Task(String action, Exactness exactness, long triggerAt, long deadline) {
+			this.action = action;
+			this.exactness = exactness;
+			this.triggerAt = triggerAt;
+			this.deadline = deadline;
+		}
+	}
+
+	private static final Exactness[] EXACTNESSES = Exactness.values();
+
+	private final Clock clock;
+	private final WakeupAlarm alarm;
+	private final TaskStore store;
+	private final HashMap<String, Task> tasks = new HashMap<String, Task>();
+	// each class's pending tasks by deadline, and the task each class's wakeup is programmed for.
+	private final List<PriorityQueue<Task>> deadlines = new ArrayList<PriorityQueue<Task>>(EXACTNESSES.length);
+	private final Task[] programmedTasks = new Task[EXACTNESSES.length];
+	private long wakeups = 0;
+	private long tasksRun = 0;
+
+	/** Restores the tasks in the store, and programs their wakeups. */
+	public WakeupScheduler(Clock clock, WakeupAlarm alarm, TaskStore store) {
+		this.clock = clock;
+		this.alarm = alarm;
+		this.store = store;
+		Comparator<Task> byDeadline = new Comparator<Task>() {
+			@Override public int compare(Task a, Task b) { return a.deadline < b.deadline ? -1 : (a.deadline == b.deadline ? 0 : 1); }
+		};
+		for (int i = 0; i < EXACTNESSES.length; i++) { deadlines.add(new PriorityQueue<Task>(16, byDeadline)); }
+		for (Task task : store.load()) { addTask(task); }
+		// the wakeups from before may or may not still be set, so program them all.
+		reprogram();
+	}
+
+	/** Schedules action to run at triggerAtMillis, or up to toleranceMilliseconds later.
+	 * @return triggerAtMillis */
+	public synchronized long schedule(String action, long triggerAtMillis, long toleranceMilliseconds, Exactness exactness) {
+		removeTask(action);
+		if (exactness == Exactness.EXACT) { toleranceMilliseconds = 0; }
+		addTask(new Task(action, exactness, triggerAtMillis, triggerAtMillis + Math.max(0, toleranceMilliseconds)));
+		store.save(tasks.values());
+		reprogram();
+		return triggerAtMillis;
+	}
+
+	public synchronized void cancel(String action) {
+		if (removeTask(action)) {
+			store.save(tasks.values());
+			reprogram();
+		}
+	}
+
+	public synchronized boolean isScheduled(String action) { return tasks.containsKey(action); }
+
+	/** @return the trigger time of action, or -1 if it is not scheduled. */
+	public synchronized long getTriggerTime(String action) {
+		Task task = tasks.get(action);
+		return (task == null) ? -1 : task.triggerAt;
+	}
+
+	/** Call on every wakeup.  Removes every task whose trigger time has passed, and programs the next wakeups.
+	 * @return the tasks to run, in trigger time order. */
+	public synchronized List<Task> takeDue() {
+		long now = clock.currentTimeMillis();
+		ArrayList<Task> due = new ArrayList<Task>();
+		for (Task task : tasks.values()) {
+			if (task.triggerAt <= now) { due.add(task); }
+		}
+		Collections.sort(due, new Comparator<Task>() {
+			@Override public int compare(Task a, Task b) { return a.triggerAt < b.triggerAt ? -1 : (a.triggerAt == b.triggerAt ? 0 : 1); }
+		} );
+		for (Task task : due) { removeTask(task.action); }
+		if (!due.isEmpty()) { store.save(tasks.values()); }
+		wakeups++;
+		tasksRun += due.size();
+		// the wakeup that brought us here has been used up, and we can't know which it was, so program them all again.
+		for (int i = 0; i < programmedTasks.length; i++) {
+			if (programmedTasks[i] != null && deadlines.get(i).isEmpty()) { alarm.cancel(EXACTNESSES[i]); }
+			programmedTasks[i] = null;
+		}
+		reprogram();
+		return due;
+	}
+
+	/** @return the deadline of the earliest programmed wakeup, or Long.MAX_VALUE if there is none. */
+	public synchronized long getNextWakeup() {
+		long next = Long.MAX_VALUE;
+		for (Task task : programmedTasks) {
+			if (task != null && task.deadline < next) { next = task.deadline; }
+		}
+		return next;
+	}
+	public synchronized int getPendingCount() { return tasks.size(); }
+	/** @return the number of times takeDue has been called. */
+	public synchronized long getWakeupCount() { return wakeups; }
+	public synchronized long getTasksRunCount() { return tasksRun; }
+
+	private void addTask(Task task) {
+		removeTask(task.action);
+		tasks.put(task.action, task);
+		deadlines.get(task.exactness.ordinal()).add(task);
+	}
+
+	private boolean removeTask(String action) {
+		Task task = tasks.remove(action);
+		if (task == null) { return false; }
+		deadlines.get(task.exactness.ordinal()).remove(task);
+		return true;
+	}
+
+	/** Programs each class's wakeup for the task with its earliest deadline, only calling the alarm when that has changed.
+	 * The wakeup's window opens at that task's trigger time. */
+	private void reprogram() {
+		for (int i = 0; i < EXACTNESSES.length; i++) {
+			Task next = deadlines.get(i).peek();
+			if (next == programmedTasks[i]) { continue; }
+			programmedTasks[i] = next;
+			if (next == null) { alarm.cancel(EXACTNESSES[i]); }
+			else { alarm.set(EXACTNESSES[i], next.triggerAt, next.deadline); }
+		}
+	}
+}
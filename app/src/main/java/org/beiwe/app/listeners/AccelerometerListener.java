@@ -23,6 +23,7 @@ public class AccelerometerListener implements SensorEventListener{
 	private Boolean enabled = null;
 	
 	private String accuracy;
+	private SensorDiagnostics diagnostics = new SensorDiagnostics("accel");
 
 	/** Returns a boolean of whether the accelerometer is recording */
 	public Boolean check_status(){ 
@@ -62,6 +63,7 @@ public class AccelerometerListener implements SensorEventListener{
 	
 	public synchronized void turn_off(){
 		accelSensorManager.unregisterListener(this);
+		diagnostics.flush();
 		enabled = false; }
 	
 	/** Update the accuracy, synchronized so very closely timed trigger events do not overlap.
@@ -78,5 +80,6 @@ public class AccelerometerListener implements SensorEventListener{
 		float[] values = arg0.values;
 		String data = javaTimeCode.toString() + ',' + accuracy + ',' + values[0] + ',' + values[1] + ',' + values[2];
 		TextFileManager.getAccelFile().writeEncrypted(data);
+		diagnostics.recordEvent(arg0.timestamp);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,106 @@
+package org.beiwe.app.listeners;
+
+/**AcousticFeatureExtractor computes privacy-preserving features of one frame of 16kHz 16 bit PCM at a time:
+ * RMS energy, spectral centroid, the energy in a fixed set of frequency bands, and a speech presence
+ * probability.  None of these can be turned back into intelligible audio.
+ * The spectrum is a Hann windowed FFT of the frame.  The speech presence probability is a logistic function
+ * of the frame's energy above the noise floor (tracked by a VoiceActivityDetector), scaled by the fraction
+ * of the frame's energy that is in the speech band.
+ * Every buffer is allocated in the constructor, process() allocates nothing.  Not thread safe. */
+public class AcousticFeatureExtractor {
+	public static final int SAMPLE_RATE = 16000;
+	public static final int FRAME_SAMPLES = 512; // 32ms, a power of two for the FFT
+	// the edges of the band energy vector, the last band ends at the Nyquist frequency.
+	public static final int[] BAND_EDGES_HZ = { 0, 250, 500, 1000, 2000, 3000, 4000, 6000, SAMPLE_RATE / 2 };
+	private static final int SPEECH_BAND_LOW_HZ = 300;
+	private static final int SPEECH_BAND_HIGH_HZ = 3400;
+	// the energy above the noise floor at which the speech presence probability is half the speech band fraction.
+	private static final double SPEECH_SNR_MIDPOINT_DB = 6;
+	private static final double SPEECH_SNR_SLOPE_DB = 2;
+	private static final double SILENCE_DB = -96;
+
+	private final FFT fft = new FFT(FRAME_SAMPLES);
+	private final VoiceActivityDetector detector = new VoiceActivityDetector();
+	private final double[] window = new double[FRAME_SAMPLES];
+	private final double[] real = new double[FRAME_SAMPLES];
+	private final double[] imaginary = new double[FRAME_SAMPLES];
+	private final int[] bandStartBins = new int[BAND_EDGES_HZ.length - 1];
+	private final int[] bandEndBins = new int[BAND_EDGES_HZ.length - 1]; // exclusive
+	private final int speechStartBin;
+	private final int speechEndBin;
+	// converts the one-sided power spectrum of a windowed frame to power relative to a full scale signal.
+	private final double powerScale;
+
+	private double spectralCentroidHz = 0;
+	private double speechProbability = 0;
+	private final double[] bandEnergyDb = new double[BAND_EDGES_HZ.length - 1];
+
+	public AcousticFeatureExtractor() {
+		double sumOfSquaredWindow = 0;
+		for (int i = 0; i < FRAME_SAMPLES; i++) {
+			window[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / FRAME_SAMPLES);
+			sumOfSquaredWindow += window[i] * window[i];
+		}
+		powerScale = 1.0 / (FRAME_SAMPLES * sumOfSquaredWindow * 32768.0 * 32768.0);
+		for (int band = 0; band < bandStartBins.length; band++) {
+			bandStartBins[band] = binOf(BAND_EDGES_HZ[band]);
+			bandEndBins[band] = binOf(BAND_EDGES_HZ[band + 1]);
+		}
+		bandEndBins[bandEndBins.length - 1] = FRAME_SAMPLES / 2 + 1; // include the Nyquist bin
+		speechStartBin = binOf(SPEECH_BAND_LOW_HZ);
+		speechEndBin = binOf(SPEECH_BAND_HIGH_HZ);
+	}
+
+	private static int binOf(int hz) { return (int) Math.round((double) hz * FRAME_SAMPLES / SAMPLE_RATE); }
+
+	/** Computes the features of a frame of FRAME_SAMPLES samples, read them with the getters. */
+	public void process(short[] frame) {
+		detector.isActive(frame, FRAME_SAMPLES);
+		for (int i = 0; i < FRAME_SAMPLES; i++) {
+			real[i] = frame[i] * window[i];
+			imaginary[i] = 0;
+		}
+		fft.transform(real, imaginary);
+
+		// real[k] becomes the one-sided power of bin k, DC and Nyquist appear once in the full spectrum.
+		double totalPower = 0;
+		double weightedFrequencySum = 0;
+		for (int k = 0; k <= FRAME_SAMPLES / 2; k++) {
+			double power = real[k] * real[k] + imaginary[k] * imaginary[k];
+			if (k != 0 && k != FRAME_SAMPLES / 2) { power *= 2; }
+			real[k] = power;
+			if (k == 0) { continue; } // DC offset is not part of the sound
+			totalPower += power;
+			weightedFrequencySum += power * k * SAMPLE_RATE / FRAME_SAMPLES;
+		}
+		spectralCentroidHz = (totalPower > 0) ? weightedFrequencySum / totalPower : 0;
+
+		for (int band = 0; band < bandEnergyDb.length; band++) {
+			double power = 0;
+			for (int k = Math.max(1, bandStartBins[band]); k < bandEndBins[band]; k++) { power += real[k]; }
+			bandEnergyDb[band] = toDb(power * powerScale);
+		}
+
+		double speechPower = 0;
+		for (int k = speechStartBin; k < speechEndBin; k++) { speechPower += real[k]; }
+		double speechBandFraction = (totalPower > 0) ? speechPower / totalPower : 0;
+		double snrDb = detector.getLastEnergyDb() - detector.getNoiseFloorDb();
+		speechProbability = speechBandFraction / (1 + Math.exp(-(snrDb - SPEECH_SNR_MIDPOINT_DB) / SPEECH_SNR_SLOPE_DB));
+	}
+
+	private static double toDb(double power) { return (power > 0) ? Math.max(SILENCE_DB, 10 * Math.log10(power)) : SILENCE_DB; }
+
+	/** @return the RMS energy of the last frame, in dB relative to full scale. */
+	public double getRmsDb() { return detector.getLastEnergyDb(); }
+
+	/** @return the spectral centroid of the last frame, in Hz. */
+	public double getSpectralCentroidHz() { return spectralCentroidHz; }
+
+	/** @return the estimated probability, 0 to 1, that the last frame contains speech. */
+	public double getSpeechProbability() { return speechProbability; }
+
+	/** @return the energy of the last frame between BAND_EDGES_HZ[band] and BAND_EDGES_HZ[band + 1], in dB relative to full scale. */
+	public double getBandEnergyDb(int band) { return bandEnergyDb[band]; }
+
+	public static int getBandCount() { return BAND_EDGES_HZ.length - 1; }
+}
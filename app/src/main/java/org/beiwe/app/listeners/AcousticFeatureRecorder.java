@@ -0,0 +1,115 @@
+package org.beiwe.app.listeners;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Process;
+import android.util.Log;
+
+import org.beiwe.app.storage.TextFileManager;
+
+/**AcousticFeatureRecorder is the features only mode of ambient audio recording, for studies that may not
+ * collect raw audio.  It captures 16kHz PCM with an AudioRecord, runs every 32ms frame through an
+ * AcousticFeatureExtractor, and writes one line of means per ROW_FRAMES frames (about a second) to the
+ * ambientAudioFeatures stream.  The audio itself never leaves memory.
+ * The frame loop does not allocate, only writing a line does.
+ * Started by AmbientAudioListener.startRecording, it runs until the process ends. */
+public class AcousticFeatureRecorder {
+	public static String header = buildHeader();
+
+	private static final int SAMPLE_RATE = AcousticFeatureExtractor.SAMPLE_RATE;
+	private static final int FRAME_SAMPLES = AcousticFeatureExtractor.FRAME_SAMPLES;
+	private static final int ROW_FRAMES = SAMPLE_RATE / FRAME_SAMPLES; // 31 frames, 992ms
+
+	private static Thread captureThread = null;
+
+	private static String buildHeader() {
+		String header = "timestamp, frames, mean RMS dB, peak RMS dB, spectral centroid Hz, speech probability";
+		for (int band = 0; band < AcousticFeatureExtractor.getBandCount(); band++) {
+			header += ", " + AcousticFeatureExtractor.BAND_EDGES_HZ[band] + "-" + AcousticFeatureExtractor.BAND_EDGES_HZ[band + 1] + "Hz dB";
+		}
+		return header;
+	}
+
+	public static synchronized void start() {
+		if (captureThread != null) { return; }
+		captureThread = new Thread(new CaptureLoop(), "AcousticFeatureRecorder");
+		captureThread.start();
+	}
+
+	private static class CaptureLoop implements Runnable {
+		private final AcousticFeatureExtractor extractor = new AcousticFeatureExtractor();
+		private final short[] frame = new short[FRAME_SAMPLES];
+
+		// sums over the frames of the current row
+		private int rowFrames = 0;
+		private double rmsDbSum = 0;
+		private double peakRmsDb = -Double.MAX_VALUE;
+		private double spectralCentroidSum = 0;
+		private double speechProbabilitySum = 0;
+		private final double[] bandEnergyDbSums = new double[AcousticFeatureExtractor.getBandCount()];
+
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+			int minBufferSize = AudioRecord.getMinBufferSize(SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+			AudioRecord recorder = new AudioRecord(MediaRecorder.AudioSource.MIC, SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO,
+					AudioFormat.ENCODING_PCM_16BIT, Math.max(minBufferSize, FRAME_SAMPLES * 2 * 16));
+			if (recorder.getState() != AudioRecord.STATE_INITIALIZED) {
+				TextFileManager.writeDebugLogStatement("AcousticFeatureRecorder could not initialize the AudioRecord");
+				recorder.release();
+				synchronized (AcousticFeatureRecorder.class) { captureThread = null; }
+				return;
+			}
+			recorder.startRecording();
+			while (true) {
+				int read = recorder.read(frame, 0, FRAME_SAMPLES);
+				if (read < 0) {
+					Log.e("AcousticFeatures", "AudioRecord.read error " + read);
+					TextFileManager.writeDebugLogStatement("AcousticFeatureRecorder AudioRecord.read error " + read);
+					break;
+				}
+				if (read < FRAME_SAMPLES) { continue; } // only happens when the recorder is being stopped.
+				extractor.process(frame);
+				addToRow();
+				if (rowFrames >= ROW_FRAMES) { writeRow(); }
+			}
+			if (rowFrames > 0) { writeRow(); }
+			recorder.stop();
+			recorder.release();
+			synchronized (AcousticFeatureRecorder.class) { captureThread = null; }
+		}
+
+		private void addToRow() {
+			double rmsDb = extractor.getRmsDb();
+			rowFrames++;
+			rmsDbSum += rmsDb;
+			if (rmsDb > peakRmsDb) { peakRmsDb = rmsDb; }
+			spectralCentroidSum += extractor.getSpectralCentroidHz();
+			speechProbabilitySum += extractor.getSpeechProbability();
+			for (int band = 0; band < bandEnergyDbSums.length; band++) { bandEnergyDbSums[band] += extractor.getBandEnergyDb(band); }
+		}
+
+		private void writeRow() {
+			//	"timestamp, frames, mean RMS dB, peak RMS dB, spectral centroid Hz, speech probability, band dBs..."
+			String data = System.currentTimeMillis() + TextFileManager.DELIMITER
+					+ rowFrames + TextFileManager.DELIMITER
+					+ round(rmsDbSum / rowFrames, 10) + TextFileManager.DELIMITER
+					+ round(peakRmsDb, 10) + TextFileManager.DELIMITER
+					+ Math.round(spectralCentroidSum / rowFrames) + TextFileManager.DELIMITER
+					+ round(speechProbabilitySum / rowFrames, 1000);
+			for (int band = 0; band < bandEnergyDbSums.length; band++) {
+				data += TextFileManager.DELIMITER + round(bandEnergyDbSums[band] / rowFrames, 10);
+				bandEnergyDbSums[band] = 0;
+			}
+			TextFileManager.getAmbientAudioFeaturesFile().writeEncrypted(data);
+			rowFrames = 0;
+			rmsDbSum = 0;
+			peakRmsDb = -Double.MAX_VALUE;
+			spectralCentroidSum = 0;
+			speechProbabilitySum = 0;
+		}
+
+		private static double round(double value, int scale) { return (double) Math.round(value * scale) / scale; }
+	}
+}
@@ -2,7 +2,6 @@ package org.beiwe.app.listeners;
 
 import android.content.Context;
 import android.media.MediaRecorder;
-import android.os.AsyncTask;
 import android.util.Log;
 
 import org.beiwe.app.MainService;
@@ -13,9 +12,26 @@ import org.beiwe.app.storage.PersistentData;
 import org.beiwe.app.storage.TextFileManager;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * AmbientAudioListener is a Singleton class: it should only be started and instantiated once.
+ *
+ * Recording is double-buffered: there are two temp files, and every fileDurationInMilliseconds
+ * encryptAmbientAudioFile() stops the recorder, immediately starts a new one recording into the
+ * other temp file, and hands the finished segment to a background executor for encryption.
+ * The only gap between segments is the time it takes to stop one MediaRecorder and start the next,
+ * instead of the time it takes to encrypt a whole segment.
+ *
+ * If the study enables voice activity detection, startRecording starts the VoiceActivityAmbientRecorder
+ * instead, which only records the segments of audio that contain activity.  Both encrypt their segments
+ * with encryptSegment().  If the study only allows acoustic features, startRecording starts the
+ * AcousticFeatureRecorder instead, and no audio is recorded at all.
  */
 public class AmbientAudioListener {
     private static AmbientAudioListener ambientAudioListenerInstance = null;
@@ -23,13 +39,22 @@ public class AmbientAudioListener {
     private static MediaRecorder mRecorder;
     private static final String filenameExtension = ".mp4";
     private static final long fileDurationInMilliseconds = 15 * 60 * 1000;
-    public static final String unencryptedTempAudioFilename = "tempUnencryptedAmbientAudioFile";
-    public static String currentlyBeingWrittenEncryptedFilename = null;
+    public static final String[] unencryptedTempAudioFilenames = {
+            "tempUnencryptedAmbientAudioFile0", "tempUnencryptedAmbientAudioFile1" };
+    // the single temp file of older versions, it may be left over after an update.
+    public static final String legacyUnencryptedTempAudioFilename = "tempUnencryptedAmbientAudioFile";
+    public static volatile String currentlyBeingWrittenEncryptedFilename = null;
+
+    // the temp file the recorder is currently writing to, and the pending encryption of each temp file.
+    private static int currentTempFile = 0;
+    private static final Map<String, Future<?>> encryptions = new HashMap<String, Future<?>>();
+    // a single thread, so segments are encrypted (and named) in the order they were recorded.
+    private static final ExecutorService encryptionExecutor = Executors.newSingleThreadExecutor();
 
     private AmbientAudioListener() {};
 
-    private static String getUnencryptedAudioFilepath() {
-        return appContext.getFilesDir().getAbsolutePath() + "/" + unencryptedTempAudioFilename;
+    private static String getUnencryptedAudioFilepath(int tempFile) {
+        return appContext.getFilesDir().getAbsolutePath() + "/" + unencryptedTempAudioFilenames[tempFile];
     }
 
     public static synchronized void startRecording(Context applicationContext) {
@@ -38,69 +63,101 @@ public class AmbientAudioListener {
             // Instantiate the AmbientAudioRecorder only if it has not yet been instantiated
             ambientAudioListenerInstance = new AmbientAudioListener();
             appContext = applicationContext;
+            AudioFileManager.delete(legacyUnencryptedTempAudioFilename);
+        }
+        if (PersistentData.getAmbientAudioFeaturesOnlyEnabled()) {
+            AcousticFeatureRecorder.start();
+            return;
+        }
+        if (PersistentData.getAmbientAudioVoiceActivityDetectionEnabled()) {
+            VoiceActivityAmbientRecorder.start(appContext);
+            return;
         }
         if (mRecorder == null) {
             // Start the Media Recorder only if it is not currently running
-            mRecorder = new MediaRecorder();
-            mRecorder.reset();
-            mRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
-            mRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
-            mRecorder.setOutputFile(getUnencryptedAudioFilepath());
-            mRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
-            mRecorder.setAudioChannels(1);
-            mRecorder.setAudioSamplingRate(44100);
-            mRecorder.setAudioEncodingBitRate(64000);
-            try {
-                mRecorder.prepare();
-            } catch (IOException e) {
-                Log.e("AmbientAudioListener", "MediaRecorder.prepare() failed");
-                TextFileManager.writeDebugLogStatement("AmbientAudioListener MediaRecorder.prepare() failed");
-                TextFileManager.writeDebugLogStatement(e.getMessage());
-            }
-            mRecorder.start();
-            // Set a timer for how long this should run before calling encryptAmbientAudioFile()
-            long alarmTime = MainService.timer.setupExactSingleAlarm(fileDurationInMilliseconds, Timer.encryptAmbientAudioIntent);
-            PersistentData.setMostRecentAlarmTime(appContext.getString(R.string.encrypt_ambient_audio_file), alarmTime);
+            startRecorder();
+        }
+    }
+
+    /** Starts a MediaRecorder writing to the current temp file, and sets the alarm for the end of the segment. */
+    private static void startRecorder() {
+        awaitEncryption(unencryptedTempAudioFilenames[currentTempFile]);
+        mRecorder = new MediaRecorder();
+        mRecorder.reset();
+        mRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
+        mRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
+        mRecorder.setOutputFile(getUnencryptedAudioFilepath(currentTempFile));
+        mRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
+        mRecorder.setAudioChannels(1);
+        mRecorder.setAudioSamplingRate(44100);
+        mRecorder.setAudioEncodingBitRate(64000);
+        try {
+            mRecorder.prepare();
+        } catch (IOException e) {
+            Log.e("AmbientAudioListener", "MediaRecorder.prepare() failed");
+            TextFileManager.writeDebugLogStatement("AmbientAudioListener MediaRecorder.prepare() failed");
+            TextFileManager.writeDebugLogStatement(e.getMessage());
+        }
+        mRecorder.start();
+        // Set a timer for how long this should run before calling encryptAmbientAudioFile()
+        long alarmTime = MainService.timer.setupWindowedSingleAlarm(fileDurationInMilliseconds, Timer.encryptAmbientAudioIntent);
+        PersistentData.setMostRecentAlarmTime(appContext.getString(R.string.encrypt_ambient_audio_file), alarmTime);
+    }
+
+    /** Encrypts (and then deletes) a finished temp audio file on the encryption executor. */
+    static void encryptSegment(Context appContext, String tempFilename) {
+        synchronized (encryptions) {
+            encryptions.put(tempFilename, encryptionExecutor.submit(new EncryptAmbientAudioFileTask(appContext, tempFilename)));
         }
     }
 
+    /** A temp file can only be recorded into again once its previous segment has been encrypted.
+     * Encryption takes far less than a segment's duration, so this should never actually wait. */
+    static void awaitEncryption(String tempFilename) {
+        Future<?> encryption;
+        synchronized (encryptions) { encryption = encryptions.get(tempFilename); }
+        if (encryption == null || encryption.isDone()) { return; }
+        TextFileManager.writeDebugLogStatement("AmbientAudioListener waiting for the encryption of the previous segment");
+        try { encryption.get(); }
+        catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        catch (ExecutionException e) { Log.e("AmbientAudioListener", "encryption failed: " + e.getMessage()); }
+    }
 
+    /** Ends the current segment: recording continues into the other temp file while this one is encrypted. */
     public static synchronized void encryptAmbientAudioFile() {
         TextFileManager.writeDebugLogStatement("AmbientAudioListener.encryptAmbientAudioFile()");
         if (ambientAudioListenerInstance != null && mRecorder != null) {
-            // If the audio recorder exists, stop recording and start encrypting the file
+            // If the audio recorder exists, stop recording, start the next segment, and encrypt the finished one
             mRecorder.stop();
             mRecorder.reset();
             mRecorder.release();
-            new EncryptAmbientAudioFileTask().execute();
+            int finishedTempFile = currentTempFile;
+            currentTempFile = 1 - currentTempFile;
+            startRecorder();
+            encryptSegment(appContext, unencryptedTempAudioFilenames[finishedTempFile]);
         }
     }
 
 
-    private static class EncryptAmbientAudioFileTask extends AsyncTask<Void, Void, Void> {
-        @Override
-        protected void onPreExecute() {
-            // Before doing anything else, set the filename of the encrypted file. This tells
-            // TextFileManager.getAllUploadableFiles NOT to upload it until it's finished writing.
-            currentlyBeingWrittenEncryptedFilename = AudioFileManager.generateNewEncryptedAudioFileName(null, filenameExtension);
-        }
+    private static class EncryptAmbientAudioFileTask implements Runnable {
+        private final Context appContext;
+        private final String tempFilename;
 
-        @Override
-        protected Void doInBackground(Void... params) {
-            AudioFileManager.encryptAudioFile(getUnencryptedAudioFilepath(), currentlyBeingWrittenEncryptedFilename, appContext);
-            return null;
+        EncryptAmbientAudioFileTask(Context appContext, String tempFilename) {
+            this.appContext = appContext;
+            this.tempFilename = tempFilename;
         }
 
         @Override
-        protected void onPostExecute(Void arg) {
+        public void run() {
+            // Before doing anything else, set the filename of the encrypted file. This tells
+            // TextFileManager.getAllUploadableFiles NOT to upload it until it's finished writing.
+            currentlyBeingWrittenEncryptedFilename = AudioFileManager.generateNewEncryptedAudioFileName(null, filenameExtension);
+            AudioFileManager.encryptAudioFile(appContext.getFilesDir().getAbsolutePath() + "/" + tempFilename, currentlyBeingWrittenEncryptedFilename, appContext);
             // Clear the filename, so TextFileManager.getAllUploadableFiles can now upload it
             currentlyBeingWrittenEncryptedFilename = null;
-            // Set the Media Recorder back to null to free it up to run again
-            mRecorder = null;
             // Delete the unencrypted temp audio file
-            AudioFileManager.delete(unencryptedTempAudioFilename);
-            // Restart recording
-            startRecording(appContext);
+            AudioFileManager.delete(tempFilename);
         }
     }
 }
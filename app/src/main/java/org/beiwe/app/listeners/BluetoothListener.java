@@ -4,6 +4,11 @@ import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothAdapter.LeScanCallback;
 import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -13,6 +18,9 @@ import android.util.Log;
 import org.beiwe.app.storage.EncryptionEngine;
 import org.beiwe.app.storage.TextFileManager;
 
+import java.util.ArrayList;
+import java.util.List;
+
 //import android.content.pm.PackageManager;
 
 //http://code.tutsplus.com/tutorials/android-quick-look-bluetoothadapter--mobile-7813
@@ -40,9 +48,19 @@ If you want to declare that your app is available to BLE-capable devices only, i
  * a Bluetooth Low Energy scan and record any Bluetooth MAC addresses that show up, and then will
  * disable Bluetooth.  If the Bluetooth adaptor was already enabled it will not turn Bluetooth off.
  * 
+ * On Lollipop and above scans run on the BluetoothLeScanner in balanced mode, and if the Bluetooth
+ * controller supports it advertisements are batched in the controller and delivered every
+ * REPORT_DELAY_MILLISECONDS.  (Older devices use the deprecated BluetoothAdapter.startLeScan.)
+ * Either way advertisements are not written as they arrive, they are aggregated per device over
+ * the whole scan (the bluetooth_on_duration window) and when the scan is disabled each device gets
+ * one line with the mean, min and max RSSI and the number of advertisements seen.
+ * 
  * @author Eli Jones */
 public class BluetoothListener extends BroadcastReceiver {
-	public static String header = "timestamp, hashed MAC, RSSI";
+	public static String header = "timestamp, hashed MAC, RSSI, min RSSI, max RSSI, count";
+	
+	private static final long REPORT_DELAY_MILLISECONDS = 5 * 1000L;
+	private static final int EXPECTED_DEVICES = 64;
 	
 	private BluetoothAdapter bluetoothAdapter;
 	//bluetoothExists can be set to false if the device does not meet our needs.
@@ -52,6 +70,9 @@ public class BluetoothListener extends BroadcastReceiver {
 	private Boolean internalBluetoothState;
 	private Boolean externalBluetoothState;
 	
+	// MAC address to RSSI accumulators for the current scan window.
+	private final RssiAccumulatorMap windowAccumulators = new RssiAccumulatorMap(EXPECTED_DEVICES);
+	
 	/** Returns whether device version is capable of using Bluetooth LE */
 	public boolean doesBluetoothCapabilityExist() { return bluetoothExists; }
 	
@@ -144,7 +165,17 @@ public class BluetoothListener extends BroadcastReceiver {
 		if (!bluetoothExists) { return; }
 		Log.i("BluetoothListener", "disable BLE scan.");
 		scanActive = false;
-		bluetoothAdapter.stopLeScan(bluetoothCallback);
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+			// the scanner is null, and stopScan throws, if the adapter is already off.
+			BluetoothLeScanner scanner = bluetoothAdapter.getBluetoothLeScanner();
+			if ( scanner != null && scanCallback != null && isBluetoothEnabled() ) {
+				try { scanner.stopScan(scanCallback); }
+				catch (IllegalStateException e) { Log.w("bluetooth", "could not stop scan: " + e.getMessage()); }
+			}
+		}
+		else { bluetoothAdapter.stopLeScan(bluetoothCallback); }
+		// advertisements still batched in the controller at this point are lost, at most REPORT_DELAY_MILLISECONDS of them.
+		flushWindow();
 		this.disableBluetooth(); 
 	}
 	
@@ -156,21 +187,98 @@ public class BluetoothListener extends BroadcastReceiver {
 	private void tryScanning() {
 		Log.i("bluetooth", "starting a scan: " + scanActive );
 		if ( isBluetoothEnabled() ) {
-			if ( bluetoothAdapter.startLeScan(bluetoothCallback) ) { /*Log.d("bluetooth", "bluetooth LE scan started successfully.");*/ }
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) { startLeScanner(); }
+			else if ( bluetoothAdapter.startLeScan(bluetoothCallback) ) { /*Log.d("bluetooth", "bluetooth LE scan started successfully.");*/ }
 			else { Log.w("bluetooth", "bluetooth LE scan NOT started successfully."); } }
 		else { Log.w("bluetooth", "bluetooth could not be enabled?"); } }
 	
 	
-	/** LeScanCallback is code that is run when a Bluetooth LE scan returns some data.
-	*   We take the returned data and log it. */
+	/** Starts a BluetoothLeScanner scan in balanced mode, batched in the controller if it can do that. */
+	@SuppressLint("NewApi")
+	private void startLeScanner() {
+		BluetoothLeScanner scanner = bluetoothAdapter.getBluetoothLeScanner();
+		if (scanner == null) { Log.w("bluetooth", "bluetooth LE scanner not available."); return; }
+		ScanSettings.Builder settings = new ScanSettings.Builder().setScanMode(ScanSettings.SCAN_MODE_BALANCED);
+		// a report delay on a controller without batching makes the scan fail, so only ask for it when it is supported.
+		if ( bluetoothAdapter.isOffloadedScanBatchingSupported() ) { settings.setReportDelay(REPORT_DELAY_MILLISECONDS); }
+		// we record every device, so there is no filter to put in the controller.
+		scanner.startScan(new ArrayList<ScanFilter>(), settings.build(), getScanCallback());
+	}
+	
+	
+	/** LeScanCallback is code that is run when a Bluetooth LE scan returns some data (pre-Lollipop).
+	*   We take the returned data and aggregate it. */
 	@SuppressLint("NewApi")
 	private LeScanCallback bluetoothCallback = new LeScanCallback() {
 		@Override
 		public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
-			TextFileManager.getBluetoothLogFile().writeEncrypted( System.currentTimeMillis() + "," + EncryptionEngine.hashMAC( device.toString() ) + "," + rssi );
+			addAdvertisement(device.getAddress(), rssi);
 //			Log.i("Bluetooth",  System.currentTimeMillis() + "," + device.toString() + ", " + rssi );
 		} }; 
 	
+	/** ScanCallback is the BluetoothLeScanner version of the above, with batching it gets one call per report delay.
+	 * ScanCallback is only available on Lollipop and above, so it is created on the first scan, never on older devices. */
+	private ScanCallback scanCallback = null;
+	
+	@SuppressLint("NewApi")
+	private ScanCallback getScanCallback() {
+		if (scanCallback == null) { scanCallback = newScanCallback(); }
+		return scanCallback;
+	}
+	
+	@SuppressLint("NewApi")
+	private ScanCallback newScanCallback() { return new ScanCallback() {
+		@Override
+		public void onScanResult(int callbackType, ScanResult result) {
+			addAdvertisement(result.getDevice().getAddress(), result.getRssi());
+		}
+		
+		@Override
+		public void onBatchScanResults(List<ScanResult> results) {
+			for (ScanResult result : results) { addAdvertisement(result.getDevice().getAddress(), result.getRssi()); }
+		}
+		
+		@Override
+		public void onScanFailed(int errorCode) {
+			Log.w("bluetooth", "bluetooth LE scan failed, error code " + errorCode);
+			TextFileManager.writeDebugLogStatement("bluetooth LE scan failed, error code " + errorCode);
+		} }; }
+	
+	
+	/*######################## Aggregation ########################*/
+	
+	private synchronized void addAdvertisement(String MAC, int rssi) {
+		long packedMAC = RssiAccumulatorMap.parseMAC(MAC);
+		if (packedMAC < 0) { Log.w("bluetooth", "malformed MAC address: " + MAC); return; }
+		windowAccumulators.add(packedMAC, rssi);
+	}
+	
+	/** Writes one line per device seen in the current scan window, then starts a new window.
+	 * The MACs are only hashed here, once per device per window. */
+	private synchronized void flushWindow() {
+		if ( windowAccumulators.size() == 0 ) { return; }
+		List<String> MACs = new ArrayList<String>(windowAccumulators.size());
+		List<Integer> slots = new ArrayList<Integer>(windowAccumulators.size());
+		for (int slot = 0; slot < windowAccumulators.capacity(); slot++) {
+			if ( !windowAccumulators.isOccupied(slot) ) { continue; }
+			MACs.add(RssiAccumulatorMap.formatMAC(windowAccumulators.MACAt(slot)));
+			slots.add(slot);
+		}
+		List<String> hashedMACs = EncryptionEngine.hashMACs(MACs);
+		String timestamp = String.valueOf(System.currentTimeMillis());
+		List<String> lines = new ArrayList<String>(MACs.size());
+		for (int i = 0; i < MACs.size(); i++) {
+			int slot = slots.get(i);
+			lines.add(timestamp + TextFileManager.DELIMITER + hashedMACs.get(i) + TextFileManager.DELIMITER
+					+ Math.round((double) windowAccumulators.sumAt(slot) / windowAccumulators.countAt(slot)) + TextFileManager.DELIMITER
+					+ windowAccumulators.minAt(slot) + TextFileManager.DELIMITER
+					+ windowAccumulators.maxAt(slot) + TextFileManager.DELIMITER
+					+ windowAccumulators.countAt(slot));
+		}
+		windowAccumulators.clear();
+		TextFileManager.getBluetoothLogFile().writeEncrypted(lines);
+	}
+	
 		
 /*####################################################################################
 ################# the onReceive Stack for Bluetooth state messages ###################
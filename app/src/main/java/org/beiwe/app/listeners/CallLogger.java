@@ -1,149 +1,127 @@
 package org.beiwe.app.listeners;
 
 import android.content.Context;
-import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
-import android.os.Handler;
 import android.provider.CallLog;
 
 import org.beiwe.app.storage.EncryptionEngine;
+import org.beiwe.app.storage.PersistentData;
 import org.beiwe.app.storage.TextFileManager;
 
 /** The CallLogger logs data from voice call, sent or received.
+ * Calls are recorded incrementally: every query only asks for the rows with an _ID above the newest
+ * call already recorded (the high-water mark), which is persisted so that calls made while the app
+ * was not running are recorded when it starts again.
+ * CallLogger is run by the ContentObserverDispatcher whenever the call log changes.
  *  @author Dor Samet */
 
-public class CallLogger extends ContentObserver {
+public class CallLogger implements Runnable {
 
 	public static String header = "hashed phone number,call type,timestamp,duration in seconds";
 
 	// URI for the database
-	private Uri allCalls = Uri.parse("content://call_log/calls");
-
-	// Last recorded values
-	private int lastRecordedID = 0;
-	private int lastKnownSize = 0;
-	// Fields
-	private String id = android.provider.CallLog.Calls._ID;
-	private String number = android.provider.CallLog.Calls.NUMBER;
-	private String type = android.provider.CallLog.Calls.TYPE; 
-	private String date = android.provider.CallLog.Calls.DATE;
-	private String duration = android.provider.CallLog.Calls.DURATION;
-	
-	// Cursor field
-	private Cursor textsDBQuery;
+	public static final Uri allCalls = Uri.parse("content://call_log/calls");
+	// call log changes come in pairs or threes (the call, then its duration, number lookup...)
+	public static final long COALESCING_WINDOW_MILLISECONDS = 1000;
+
+	// Columns that interest us - id, phone number, type of call, date, duration of call
+	// (we supply the projection, so the column indices are just the positions in it.)
+	private static final String[] fields = {CallLog.Calls._ID,
+			CallLog.Calls.NUMBER,
+			CallLog.Calls.TYPE,
+			CallLog.Calls.DATE,
+			CallLog.Calls.DURATION
+	};
+	private static final int ID_COLUMN = 0;
+	private static final int NUMBER_COLUMN = 1;
+	private static final int TYPE_COLUMN = 2;
+	private static final int DATE_COLUMN = 3;
+	private static final int DURATION_COLUMN = 4;
 
 	// Context
 	private Context appContext = null;
 
-	// Columns that interest us - phone number, type of call, date, duration of call
-	String[] fields = {android.provider.CallLog.Calls.NUMBER, 
-			android.provider.CallLog.Calls.TYPE, 
-			android.provider.CallLog.Calls.DATE, 
-			android.provider.CallLog.Calls.DURATION
-	};
-
 
-	/** ContentObservers require a Handler object, we require a context for future logic. */
-	public CallLogger(Handler handler, Context context) {
-		super(handler);
+	/** We require a context for future logic. */
+	public CallLogger(Context context) {
 		appContext = context;
 
-		// Pull database info, set lastKnownSize
-		textsDBQuery = appContext.getContentResolver().query(allCalls, null, null, null, android.provider.CallLog.Calls.DEFAULT_SORT_ORDER);
-		if (textsDBQuery == null) { //noticed this error for the first time on Wednesday May 11 2016.
+		if (PersistentData.getCallLogLastRecordedID() >= 0) { return; }
+		// First run: start recording from the newest call, the existing call log is not recorded.
+		Cursor newestCall = queryNewestCall(appContext);
+		if (newestCall == null) { //noticed this error for the first time on Wednesday May 11 2016.
 			//according to this stack overflow this occurs when we don't have authority (post is from before andrid 6 permissions, unclear what authority means)
 			// or when... something goes wrong with the database.  But Actually.
 			//So, we simply try again, if it fails again... unknown.
 			//http://stackoverflow.com/questions/13080540/what-causes-androids-contentresolver-query-to-return-null
-			textsDBQuery = appContext.getContentResolver().query(allCalls, null, null, null, android.provider.CallLog.Calls.DEFAULT_SORT_ORDER);
-			if (textsDBQuery == null) {
+			newestCall = queryNewestCall(appContext);
+			if (newestCall == null) {
 				TextFileManager.getDebugLogFile().writeEncrypted(System.currentTimeMillis() + " restarting Beiwe due to bug in Android's phone call database API.");
 				throw new NullPointerException("the user's call logging database was broken, did not succeed in connecting on the second try."); }
 		}
-		textsDBQuery.moveToFirst();
-		lastKnownSize = textsDBQuery.getCount();
-//		Log.i("CallLogger", "" + lastKnownSize);
-		// Record id of last made call and the date
-		if (lastKnownSize != 0) {
-			lastRecordedID = textsDBQuery.getInt(textsDBQuery.getColumnIndex(id));
-			textsDBQuery.getLong(textsDBQuery.getColumnIndex(android.provider.CallLog.Calls.DATE));
-		}
+		try {
+			PersistentData.setCallLogLastRecordedID(newestCall.moveToFirst() ? newestCall.getLong(ID_COLUMN) : 0);
+		} finally { newestCall.close(); }
+	}
+
+	private static Cursor queryNewestCall(Context appContext) {
+		return appContext.getContentResolver().query(allCalls, new String[] {CallLog.Calls._ID}, null, null, CallLog.Calls._ID + " DESC");
 	}
 
-	
-	/**onChange receives pushed updates.
-	 * We Look for the last row, then goes back until reaching the row of the last recorded call,
-	 * then goes back down until reaching the newest line, and records everything to the log file. */
-	public void onChange(boolean selfChange) {
-		super.onChange(selfChange);
-		
-		// Database information
-		textsDBQuery = appContext.getContentResolver().query(allCalls, null, null, null, android.provider.CallLog.Calls.DEFAULT_SORT_ORDER);
-
-		if(textsDBQuery == null || !textsDBQuery.moveToFirst()) return;
-		
-		int currentSize = textsDBQuery.getCount();
-//		Log.i("Call Log", "" + "Current Size is " + currentSize);
-//		Log.i("Call Log", "Last Known Size is " + lastKnownSize);
-		
-		// Record id of last made call, recod last date
-		if (lastKnownSize == 0) {
-			lastRecordedID = textsDBQuery.getInt(textsDBQuery.getColumnIndex(id));
-			textsDBQuery.getLong(textsDBQuery.getColumnIndex(android.provider.CallLog.Calls.DATE));
-		}
-		
-		// Comparison values
-		int currentID = textsDBQuery.getInt(textsDBQuery.getColumnIndex(id));
-//		Log.i("Call Log", "" + "Current Size is " + currentID);
-//		Log.i("Call Log", "Last Known ID is " + lastRecordedID)
-		
-		// A call was deleted
-		if (currentSize < lastKnownSize) { /*Log.i("Call Logger", "Last Call deleted, Last Call deleted, Last Call deleted, Last Call deleted");*/ }
-		else if ( currentSize == lastKnownSize && currentID == lastRecordedID ) { /*Log.i("CallLogger", "Something broke - this doesn't make sense...");*/ }
-		else {
-			// Log.i("CallLogger", "Last recorded ID " + lastRecordedID);
-		
-			// 	Descend until reaching the idOfLastCall row
-			while (currentID != lastRecordedID) {
-				textsDBQuery.moveToNext();
-				// Log.i("CallLogger", "Current ID is " + currentID);
-				currentID = textsDBQuery.getInt(textsDBQuery.getColumnIndex(id));
-			}
 
-			// While there exists a previous row
-			while(!textsDBQuery.isBeforeFirst()) {
-				// Log.i("Call Logger", "" + (textsDBQuery.getInt(textsDBQuery.getColumnIndex(id))));
-				if (currentID <= lastRecordedID) {
-					if(!textsDBQuery.moveToPrevious()) break; // Make sure we are pointed at an item that exists
-					currentID = textsDBQuery.getInt(textsDBQuery.getColumnIndex(id));
-					continue;
-				}
+	/**Runs when the call log changes.  We record every call newer than the last recorded call. */
+	@Override
+	public void run() {
+		recordNewCalls(appContext);
+	}
+
+	/** Queries the rows with an _ID above the high-water mark, oldest first, records them and advances the mark.
+	 * If there are none and the newest _ID is below the mark, the call log was cleared or restored and its _IDs
+	 * started over: the mark is reset to the newest call, as on the first run.
+	 * Static and synchronized because the service may create more than one CallLogger. */
+	private static synchronized void recordNewCalls(Context appContext) {
+		long lastRecordedID = PersistentData.getCallLogLastRecordedID();
+		Cursor newCalls = appContext.getContentResolver().query(allCalls, fields,
+				CallLog.Calls._ID + " > ?", new String[] {String.valueOf(lastRecordedID)}, CallLog.Calls._ID + " ASC");
+		if (newCalls == null) return;
+
+		boolean foundNewCalls = false;
+		try {
+			while (newCalls.moveToNext()) {
 				StringBuilder callLoggerLine = new StringBuilder();
 				// Add hashed phone number
-				callLoggerLine.append(EncryptionEngine.hashPhoneNumber(textsDBQuery.getString(textsDBQuery.getColumnIndex(number))));
+				callLoggerLine.append(EncryptionEngine.hashPhoneNumber(newCalls.getString(NUMBER_COLUMN)));
 				callLoggerLine.append(TextFileManager.DELIMITER);
 
 				// Add call type
-				int callType = textsDBQuery.getInt(textsDBQuery.getColumnIndex(type));
+				int callType = newCalls.getInt(TYPE_COLUMN);
 				if (callType == CallLog.Calls.OUTGOING_TYPE) { callLoggerLine.append("Outgoing Call"); }
 				else if (callType == CallLog.Calls.INCOMING_TYPE) { callLoggerLine.append("Incoming Call"); }
 				else { callLoggerLine.append("Missed Call"); }
 				callLoggerLine.append(TextFileManager.DELIMITER);
 
 				// Add date
-				callLoggerLine.append(textsDBQuery.getLong(textsDBQuery.getColumnIndex(date)));
+				callLoggerLine.append(newCalls.getLong(DATE_COLUMN));
 				callLoggerLine.append(TextFileManager.DELIMITER);
-				
+
 				// Add duration
-				callLoggerLine.append(textsDBQuery.getInt(textsDBQuery.getColumnIndex(duration)));
+				callLoggerLine.append(newCalls.getInt(DURATION_COLUMN));
 
 				// Log.i("Call Log", callLoggerLine.toString());
 				TextFileManager.getCallLogFile().writeEncrypted(callLoggerLine.toString());
-				textsDBQuery.moveToPrevious();
+				lastRecordedID = Math.max(lastRecordedID, newCalls.getLong(ID_COLUMN));
+				foundNewCalls = true;
 			}
+		} finally { newCalls.close(); }
+		if (!foundNewCalls) {
+			Cursor newestCall = queryNewestCall(appContext);
+			if (newestCall == null) { return; }
+			try {
+				long newestID = newestCall.moveToFirst() ? newestCall.getLong(ID_COLUMN) : 0;
+				if (newestID < lastRecordedID) { lastRecordedID = newestID; }
+			} finally { newestCall.close(); }
 		}
-		lastKnownSize = currentSize;
-		lastRecordedID = currentID;
+		PersistentData.setCallLogLastRecordedID(lastRecordedID);
 	}
-}
\ No newline at end of file
+}
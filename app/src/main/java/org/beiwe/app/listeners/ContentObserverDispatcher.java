@@ -0,0 +1,95 @@
+package org.beiwe.app.listeners;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import org.beiwe.app.CrashHandler;
+import org.beiwe.app.storage.TextFileManager;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**The ContentObserverDispatcher watches content provider URIs (calls, texts) for the loggers.
+ * All observers run on one shared background HandlerThread, so the loggers' database queries never run
+ * on the main thread.  Android sends bursts of change notifications (a single sent text moves through
+ * several folders), so notifications for a URI are coalesced: the logger's work runs once, a window after
+ * the last notification of a burst.
+ * Each URI is only observed once, no matter how often the service registers it.
+ * We count raw notifications and coalesced dispatches per URI, writeCounts() writes them to the debug log. */
+public class ContentObserverDispatcher {
+
+	private static HandlerThread thread = null;
+	private static Handler handler = null;
+	private static final Map<String, CoalescingObserver> observers = new HashMap<String, CoalescingObserver>();
+
+	/** Observes the URI (and its descendants).  The work runs once right away, to catch up on any changes
+	 * made while nothing was observing, and after that once per burst of notifications.
+	 * @param windowMilliseconds notifications closer together than this are coalesced into one run of the work.
+	 * @param work runs on the dispatcher thread. */
+	public static synchronized void register(Context appContext, Uri uri, long windowMilliseconds, Runnable work) {
+		if (observers.containsKey(uri.toString())) { return; }
+		if (thread == null) {
+			thread = new HandlerThread("ContentObserverDispatcher");
+			thread.start();
+			handler = new Handler(thread.getLooper());
+		}
+		CoalescingObserver observer = new CoalescingObserver(appContext, uri, windowMilliseconds, work);
+		observers.put(uri.toString(), observer);
+		appContext.getContentResolver().registerContentObserver(uri, true, observer);
+		handler.post(observer.dispatch);
+	}
+
+	/** @return the number of change notifications received for the URI since the last writeCounts, -1 if it is not observed. */
+	public static synchronized long getNotificationCount(Uri uri) {
+		CoalescingObserver observer = observers.get(uri.toString());
+		return (observer == null) ? -1 : observer.notifications.get();
+	}
+
+	/** @return the number of times the work for the URI ran since the last writeCounts, -1 if it is not observed. */
+	public static synchronized long getDispatchCount(Uri uri) {
+		CoalescingObserver observer = observers.get(uri.toString());
+		return (observer == null) ? -1 : observer.dispatches.get();
+	}
+
+	/** Writes and resets the notification and dispatch counts of every observed URI. */
+	public static synchronized void writeCounts() {
+		for (CoalescingObserver observer : observers.values()) {
+			long notifications = observer.notifications.getAndSet(0);
+			long dispatches = observer.dispatches.getAndSet(0);
+			if (notifications == 0 && dispatches == 0) { continue; }
+			TextFileManager.writeDebugLogStatement("content observer " + observer.uri + ": " + notifications + " notifications, " + dispatches + " dispatches");
+		}
+	}
+
+	private static class CoalescingObserver extends ContentObserver {
+		private final Uri uri;
+		private final long windowMilliseconds;
+		private final AtomicLong notifications = new AtomicLong();
+		private final AtomicLong dispatches = new AtomicLong();
+		private final Runnable dispatch;
+
+		CoalescingObserver(final Context appContext, Uri uri, long windowMilliseconds, final Runnable work) {
+			super(handler);
+			this.uri = uri;
+			this.windowMilliseconds = windowMilliseconds;
+			this.dispatch = new Runnable() {
+				@Override public void run() {
+					dispatches.incrementAndGet();
+					try { work.run(); }
+					catch (Exception e) { CrashHandler.writeCrashlog(e, appContext); }
+				} };
+		}
+
+		/** Runs on the dispatcher thread, so the removeCallbacks and postDelayed pair cannot race the dispatch. */
+		@Override
+		public void onChange(boolean selfChange) {
+			notifications.incrementAndGet();
+			handler.removeCallbacks(dispatch);
+			handler.postDelayed(dispatch, windowMilliseconds);
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package org.beiwe.app.listeners;
+
+/**An in-place radix-2 complex FFT of a fixed power-of-two size.
+ * The twiddle factors and the bit-reversal permutation are computed once in the constructor, so
+ * transform() does no trigonometry and allocates nothing.  Not thread safe, one FFT per thread. */
+class FFT {
+	private final int size;
+	private final double[] cos;
+	private final double[] sin;
+	private final int[] bitReversed;
+
+	/** @param size must be a power of two. */
+	FFT(int size) {
+		if (size < 2 || Integer.bitCount(size) != 1) { throw new IllegalArgumentException("FFT size must be a power of two, got " + size); }
+		this.size = size;
+		cos = new double[size / 2];
+		sin = new double[size / 2];
+		for (int i = 0; i < size / 2; i++) {
+			cos[i] = Math.cos(-2 * Math.PI * i / size);
+			sin[i] = Math.sin(-2 * Math.PI * i / size);
+		}
+		int bits = Integer.numberOfTrailingZeros(size);
+		bitReversed = new int[size];
+		for (int i = 0; i < size; i++) { bitReversed[i] = Integer.reverse(i) >>> (32 - bits); }
+	}
+
+	int size() { return size; }
+
+	/** Transforms real and imaginary (each of length size) in place, into the unnormalized forward DFT. */
+	void transform(double[] real, double[] imaginary) {
+		for (int i = 0; i < size; i++) {
+			int j = bitReversed[i];
+			if (j > i) {
+				double swap = real[i]; real[i] = real[j]; real[j] = swap;
+				swap = imaginary[i]; imaginary[i] = imaginary[j]; imaginary[j] = swap;
+			}
+		}
+		for (int half = 1; half < size; half *= 2) {
+			int twiddleStep = size / (2 * half);
+			for (int start = 0; start < size; start += 2 * half) {
+				for (int k = 0; k < half; k++) {
+					double wr = cos[k * twiddleStep];
+					double wi = sin[k * twiddleStep];
+					int even = start + k;
+					int odd = even + half;
+					double oddReal = real[odd] * wr - imaginary[odd] * wi;
+					double oddImaginary = real[odd] * wi + imaginary[odd] * wr;
+					real[odd] = real[even] - oddReal;
+					imaginary[odd] = imaginary[even] - oddImaginary;
+					real[even] += oddReal;
+					imaginary[even] += oddImaginary;
+				}
+			}
+		}
+	}
+}
@@ -6,12 +6,16 @@ import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Bundle;
+import android.os.HandlerThread;
 import android.util.Log;
 
 import org.beiwe.app.PermissionHandler;
 import org.beiwe.app.storage.PersistentData;
 import org.beiwe.app.storage.TextFileManager;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /* Notes/observation on Location Services:
  * We are passing in "0" as the minimum time for location updates to be pushed to us, this results in about
  * 1 update every second.  This is based on logs made using a nexus 7 tablet.
@@ -20,7 +24,12 @@ import org.beiwe.app.storage.TextFileManager;
  * So, we grab the system time instead.  This may add a fraction of a second to the timestamp.
  * 
  * We are NOT recording which location provider provided the update, or which location providers
- * are available on a given device. */
+ * are available on a given device.
+ *
+ * The minimum time and distance are now study settings (defaulting to 0), and updates are delivered
+ * on a background thread.  When both providers deliver a fix for the same moment we only record the
+ * second one if it is more accurate.  If a batch duration is set fixes are held in memory and written
+ * to the GPS file in one go, at most every batch duration and always when the session ends. */
 
 public class GPSListener implements LocationListener {
 	
@@ -31,6 +40,23 @@ public class GPSListener implements LocationListener {
 	private LocationManager locationManager;
 
 	private Boolean enabled = null;
+	private SensorDiagnostics diagnostics = new SensorDiagnostics("gps");
+	private HandlerThread locationThread;
+
+	// A fix from the other provider within this window of the last recorded fix is a duplicate
+	// unless it is more accurate.
+	private static final long DUPLICATE_FIX_WINDOW_NANOS = 1500 * 1000 * 1000L;
+	private Location lastRecordedFix = null;
+	private int duplicateFixes = 0;
+
+	private long batchDurationMilliseconds = 0;
+	private long firstPendingFixTime = 0;
+	private List<String> pendingFixes = new ArrayList<String>();
+
+	// derived trajectory, kept across sessions so that stays can span them, null if the study does not collect it.
+	private TrajectoryCompressor trajectory = null;
+	// index of visited places, persisted across restarts, null until a session runs with it enabled.
+	private PlaceIndex placeIndex = null;
 	//does not have an explicit "exists" boolean.  Use check_status() function, it will return false if there is no GPS.
 
 	private void makeDebugLogStatement(String message) {
@@ -50,6 +76,9 @@ public class GPSListener implements LocationListener {
 		Log.d("initializing GPS...", "initializing GPS...");
 		//There is a possibility (mostly in development) that this will not be instantiated all the time, so we instantiate an extra one here.
 		locationManager = (LocationManager) this.appContext.getSystemService(Context.LOCATION_SERVICE);
+		// location updates are encrypted and written to disk, keep that off of the main thread.
+		locationThread = new HandlerThread("GPSListener");
+		locationThread.start();
 	}
 
 	/** Turns on GPS providers, provided they are accessible. Handles permission errors appropriately */
@@ -74,14 +103,22 @@ public class GPSListener implements LocationListener {
 		//Instantiate a new location manager (looks like the fine and coarse available variables get confused if we use an old one.)
 		locationManager = (LocationManager) this.appContext.getSystemService(Context.LOCATION_SERVICE);
 
+		long minTime = PersistentData.getGpsMinUpdateIntervalMilliseconds();
+		float minDistance = PersistentData.getGpsMinUpdateDistanceMeters();
+		batchDurationMilliseconds = PersistentData.getGpsBatchDurationMilliseconds();
+		lastRecordedFix = null;
+		duplicateFixes = 0;
+		if (PersistentData.getGpsPlaceIndexEnabled() && placeIndex == null) { placeIndex = new PlaceIndex(appContext); }
+		updateTrajectory();
+
 		//If the feature exists, request locations from it. (enable if their boolean flag is true.)
-		if ( fineExists && finePermissible && coarsePermissible) { // parameters: provider, minTime, minDistance, listener);
+		if ( fineExists && finePermissible && coarsePermissible) { // parameters: provider, minTime, minDistance, listener, looper);
 			//AndroidStudio insists that both of these require the same location permissions, which seems to be correct
 			// since there is only one toggle in userland anyway, yes or no to location permissions.
-			locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 0, this);
+			locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, minTime, minDistance, this, locationThread.getLooper());
 		}
-		if ( coarseExists && finePermissible && coarsePermissible) { // parameters: provider, minTime, minDistance, listener);
-			locationManager.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, 0, 0, this);
+		if ( coarseExists && finePermissible && coarsePermissible) { // parameters: provider, minTime, minDistance, listener, looper);
+			locationManager.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, minTime, minDistance, this, locationThread.getLooper());
 		}
 
 		//Verbose statements on the quality of GPS data streams.
@@ -99,13 +136,49 @@ public class GPSListener implements LocationListener {
 	public synchronized void turn_off(){
 		// pretty confident this cannot fail.
 		locationManager.removeUpdates(this);
+		writePendingFixes();
+		if (trajectory != null) { trajectory.finish(); }
+		if (placeIndex != null) { placeIndex.finishSession(); }
+		diagnostics.flush();
+		if (duplicateFixes > 0) { makeDebugLogStatement("GPS session dropped " + duplicateFixes + " duplicate fixes."); }
+		duplicateFixes = 0;
 		enabled = false;
 	}
+
+	/** Turns the listener off and quits its thread, call when this GPSListener is being replaced. */
+	public synchronized void release() {
+		if (enabled) { turn_off(); }
+		if (trajectory != null) {
+			trajectory.close();
+			trajectory = null;
+		}
+		locationThread.quitSafely();
+	}
+
+	/** Keeps the trajectory from the previous sessions, unless the study settings for it have changed. */
+	private void updateTrajectory() {
+		boolean trajectoryEnabled = PersistentData.getGpsTrajectoryEnabled();
+		double toleranceMeters = PersistentData.getGpsTrajectoryToleranceMeters();
+		double stayRadiusMeters = PersistentData.getGpsStayRadiusMeters();
+		long stayDwellMilliseconds = PersistentData.getGpsStayDwellMilliseconds();
+		if (trajectory != null && trajectoryEnabled && trajectory.hasParameters(toleranceMeters, stayRadiusMeters, stayDwellMilliseconds)) { return; }
+		if (trajectory != null) {
+			trajectory.close();
+			trajectory = null;
+		}
+		if (trajectoryEnabled) { trajectory = new TrajectoryCompressor(toleranceMeters, stayRadiusMeters, stayDwellMilliseconds); }
+	}
 	
 	/** pushes an update to us whenever there is a location update. */
 	@Override
-	public void onLocationChanged(Location location) {
+	public synchronized void onLocationChanged(Location location) {
 		Long javaTimeCode = System.currentTimeMillis();
+		diagnostics.recordEvent(location.getElapsedRealtimeNanos());
+		if (isDuplicateFix(location)) {
+			duplicateFixes++;
+			return;
+		}
+		lastRecordedFix = new Location(location);
 //		Log.d("GPSListener", "gps update...");
 		//order: time, latitude, longitude, altitude, horizontal_accuracy\n
 
@@ -119,7 +192,38 @@ public class GPSListener implements LocationListener {
 				+ location.getAltitude() + TextFileManager.DELIMITER
 				+ location.getAccuracy();
 		//note, altitude is notoriously inaccurate, getAccuracy only applies to latitude/longitude
-		TextFileManager.getGPSFile().writeEncrypted(data);
+		if (trajectory != null) { trajectory.addFix(javaTimeCode, latitude, longitude); }
+		if (placeIndex != null && PersistentData.getGpsPlaceIndexEnabled()) { placeIndex.addFix(javaTimeCode, latitude, longitude); }
+		if (batchDurationMilliseconds <= 0) {
+			TextFileManager.getGPSFile().writeEncrypted(data);
+			return;
+		}
+		if (pendingFixes.isEmpty()) { firstPendingFixTime = javaTimeCode; }
+		pendingFixes.add(data);
+		if (javaTimeCode - firstPendingFixTime >= batchDurationMilliseconds) { writePendingFixes(); }
+	}
+
+	/** @return true if the place index is enabled and the last GPS session ended in a well known place. */
+	public boolean isInStablePlace() {
+		PlaceIndex index = placeIndex;
+		return index != null && PersistentData.getGpsPlaceIndexEnabled() && index.isInStablePlace();
+	}
+
+	/** A fix is a duplicate if the other provider's fix was recorded within DUPLICATE_FIX_WINDOW_NANOS
+	 * and this one is not more accurate. */
+	private boolean isDuplicateFix(Location location) {
+		if (lastRecordedFix == null || location.getProvider() == null
+				|| location.getProvider().equals(lastRecordedFix.getProvider())) { return false; }
+		long gap = Math.abs(location.getElapsedRealtimeNanos() - lastRecordedFix.getElapsedRealtimeNanos());
+		if (gap > DUPLICATE_FIX_WINDOW_NANOS) { return false; }
+		if (!location.hasAccuracy()) { return true; }
+		return lastRecordedFix.hasAccuracy() && location.getAccuracy() >= lastRecordedFix.getAccuracy();
+	}
+
+	private synchronized void writePendingFixes() {
+		if (pendingFixes.isEmpty()) { return; }
+		TextFileManager.getGPSFile().writeEncrypted(pendingFixes);
+		pendingFixes.clear();
 	}
 	
 	/*  We do not actually need to implement any of the following overrides.
@@ -23,6 +23,7 @@ public class GyroscopeListener implements SensorEventListener {
     private Boolean enabled = null;
 
     private String accuracy;
+    private SensorDiagnostics diagnostics = new SensorDiagnostics("gyro");
 
     /** Returns a boolean of whether the Gyroscope is recording */
     public Boolean check_status(){
@@ -64,6 +65,7 @@ public class GyroscopeListener implements SensorEventListener {
 
     public synchronized void turn_off(){
         gyroSensorManager.unregisterListener(this);
+        diagnostics.flush();
         enabled = false;
     }
 
@@ -83,5 +85,6 @@ public class GyroscopeListener implements SensorEventListener {
         String value2= String.format("%.16f", values[2]);
         String data = javaTimeCode.toString() + ',' + accuracy + ',' + value0 + ',' + value1 + ',' + value2;
         TextFileManager.getGyroFile().writeEncrypted(data);
+        diagnostics.recordEvent(arg0.timestamp);
     }
 }
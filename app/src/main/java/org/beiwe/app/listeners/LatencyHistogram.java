@@ -0,0 +1,64 @@
+package org.beiwe.app.listeners;
+
+/**LatencyHistogram is a fixed-size, log-linear histogram of non-negative long values (we use
+ * microseconds), in the style of HdrHistogram.  Values below SUB_BUCKET_COUNT are counted exactly,
+ * larger values are counted in buckets that are 1/SUB_BUCKET_COUNT of a power of two wide, so the
+ * relative error of any reported value is at most ~6%.
+ * All storage is allocated at construction, recording a value never allocates.
+ * This class is not thread safe, callers synchronize. */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	// 2^40 microseconds is about 12 days, anything larger is clamped into the last bucket.
+	private static final int MAX_EXPONENT = 40;
+	private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+	private final long[] counts = new long[BUCKET_COUNT];
+	private long totalCount = 0;
+	private long maxValue = 0;
+
+	public void record(long value) {
+		if (value < 0) { value = 0; }
+		counts[indexFor(value)]++;
+		totalCount++;
+		if (value > maxValue) { maxValue = value; }
+	}
+
+	public long getTotalCount() { return totalCount; }
+	public long getMaxValue() { return maxValue; }
+
+	/** Returns the (lower bound of the bucket of the) value at the given percentile, 0 if empty.
+	 * @param percentile a value between 0 and 100. */
+	public long getValueAtPercentile(double percentile) {
+		if (totalCount == 0) { return 0; }
+		long countAtPercentile = (long) Math.ceil((percentile / 100.0) * totalCount);
+		if (countAtPercentile < 1) { countAtPercentile = 1; }
+		long runningCount = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			runningCount += counts[i];
+			if (runningCount >= countAtPercentile) { return Math.min(valueFor(i), maxValue); }
+		}
+		return maxValue;
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKET_COUNT; i++) { counts[i] = 0; }
+		totalCount = 0;
+		maxValue = 0;
+	}
+
+	private static int indexFor(long value) {
+		if (value < SUB_BUCKET_COUNT) { return (int) value; }
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT) { return BUCKET_COUNT - 1; }
+		int mantissa = (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1));
+		return SUB_BUCKET_COUNT + (exponent - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT + mantissa;
+	}
+
+	private static long valueFor(int index) {
+		if (index < SUB_BUCKET_COUNT) { return index; }
+		int exponent = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT + SUB_BUCKET_BITS;
+		int mantissa = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+		return ((long) (SUB_BUCKET_COUNT + mantissa)) << (exponent - SUB_BUCKET_BITS);
+	}
+}
@@ -0,0 +1,126 @@
+package org.beiwe.app.listeners;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.hardware.TriggerEvent;
+import android.hardware.TriggerEventListener;
+import android.util.Log;
+
+import org.beiwe.app.storage.TextFileManager;
+
+/**The MotionStateMonitor tracks whether the device is stationary, so that the MainService can
+ * lengthen or skip sensor sessions while the device sits on a desk.
+ * If the device has a significant motion sensor we use that, it is a one-shot wake-up sensor
+ * implemented in the sensor hub and costs next to nothing.  If it does not we fall back to a
+ * low-rate, batched accelerometer and look at the variance of the acceleration magnitude.
+ * The device is considered stationary when no motion has been detected for STATIONARY_TIMEOUT.
+ * On the first motion after a stationary period the onMotion Runnable is run. */
+public class MotionStateMonitor extends TriggerEventListener implements SensorEventListener {
+	// how long without detected motion before we consider the device stationary
+	public static final long STATIONARY_TIMEOUT = 10 * 60 * 1000L;
+
+	// low-rate accelerometer fallback: 5Hz, delivered in batches of up to 10 seconds where supported.
+	private static final int FALLBACK_SAMPLING_PERIOD_MICROSECONDS = 200 * 1000;
+	private static final int FALLBACK_MAX_REPORT_LATENCY_MICROSECONDS = 10 * 1000 * 1000;
+	private static final int VARIANCE_WINDOW_SAMPLES = 25; // 5 seconds at 5Hz
+	// standard deviation of the acceleration magnitude, in m/s^2, above which we consider the device moving.
+	// A phone lying on a desk sits well below 0.1, a phone carried in a pocket well above 0.5.
+	private static final double MOTION_STANDARD_DEVIATION_THRESHOLD = 0.3;
+
+	private SensorManager sensorManager;
+	private Sensor significantMotionSensor;
+	private Sensor accelSensor;
+	private Runnable onMotion;
+
+	private volatile long lastMotionTime;
+	private volatile boolean stationary = false;
+
+	// Welford's running mean and variance over the current window, only touched by the sensor thread.
+	private int windowCount = 0;
+	private double windowMean = 0;
+	private double windowSumOfSquares = 0;
+
+	/**Starts monitoring immediately.  The device is assumed to be moving at instantiation.
+	 * @param appContext a Context from an activity or service.
+	 * @param onMotion run (on the thread delivering sensor events) on motion after a stationary period. */
+	public MotionStateMonitor(Context appContext, Runnable onMotion) {
+		this.onMotion = onMotion;
+		this.lastMotionTime = System.currentTimeMillis();
+		this.sensorManager = (SensorManager) appContext.getSystemService(Context.SENSOR_SERVICE);
+		if (sensorManager == null) {
+			Log.e("MotionStateMonitor", "sensorManager does not exist");
+			TextFileManager.writeDebugLogStatement("motion gating: no sensor manager, device will always be considered moving.");
+			return; }
+
+		significantMotionSensor = sensorManager.getDefaultSensor(Sensor.TYPE_SIGNIFICANT_MOTION);
+		if (significantMotionSensor != null) {
+			sensorManager.requestTriggerSensor(this, significantMotionSensor);
+			TextFileManager.writeDebugLogStatement("motion gating: using significant motion sensor.");
+			return; }
+
+		accelSensor = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+		if (accelSensor != null) {
+			sensorManager.registerListener(this, accelSensor, FALLBACK_SAMPLING_PERIOD_MICROSECONDS, FALLBACK_MAX_REPORT_LATENCY_MICROSECONDS);
+			TextFileManager.writeDebugLogStatement("motion gating: no significant motion sensor, using low-rate accelerometer variance.");
+			return; }
+
+		TextFileManager.writeDebugLogStatement("motion gating: no motion sensors, device will always be considered moving.");
+	}
+
+	/** @return true if no motion has been detected for STATIONARY_TIMEOUT.  Devices without
+	 * any usable motion sensor are never considered stationary. */
+	public boolean isStationary() {
+		if (significantMotionSensor == null && accelSensor == null) { return false; }
+		if (!stationary && System.currentTimeMillis() - lastMotionTime > STATIONARY_TIMEOUT) {
+			stationary = true;
+			TextFileManager.writeDebugLogStatement("motion gating: device stationary since " + lastMotionTime);
+		}
+		return stationary;
+	}
+
+	/** Unregisters all sensors, the monitor cannot be restarted. */
+	public void stop() {
+		if (sensorManager == null) { return; }
+		if (significantMotionSensor != null) { sensorManager.cancelTriggerSensor(this, significantMotionSensor); }
+		if (accelSensor != null) { sensorManager.unregisterListener(this); }
+	}
+
+	private void motionDetected(String source) {
+		lastMotionTime = System.currentTimeMillis();
+		if (stationary) {
+			stationary = false;
+			TextFileManager.writeDebugLogStatement("motion gating: motion detected (" + source + "), device no longer stationary.");
+			onMotion.run();
+		}
+	}
+
+	/** Significant motion is a one-shot sensor, it has to be re-requested after every trigger. */
+	@Override
+	public void onTrigger(TriggerEvent event) {
+		motionDetected("significant motion");
+		sensorManager.requestTriggerSensor(this, significantMotionSensor);
+	}
+
+	@Override
+	public void onSensorChanged(SensorEvent event) {
+		float[] values = event.values;
+		double magnitude = Math.sqrt(values[0] * values[0] + values[1] * values[1] + values[2] * values[2]);
+		windowCount++;
+		double delta = magnitude - windowMean;
+		windowMean += delta / windowCount;
+		windowSumOfSquares += delta * (magnitude - windowMean);
+
+		if (windowCount < VARIANCE_WINDOW_SAMPLES) { return; }
+		double standardDeviation = Math.sqrt(windowSumOfSquares / (windowCount - 1));
+		windowCount = 0;
+		windowMean = 0;
+		windowSumOfSquares = 0;
+		if (standardDeviation > MOTION_STANDARD_DEVIATION_THRESHOLD) { motionDetected("accelerometer variance"); }
+	}
+
+	@Override
+	public void onAccuracyChanged(Sensor sensor, int accuracy) { }
+}
@@ -0,0 +1,315 @@
+package org.beiwe.app.listeners;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.beiwe.app.storage.PersistentData;
+import org.beiwe.app.storage.TextFileManager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**The PlaceIndex is a bounded, least-recently-used index of the places a participant spends time at.
+ * Places are geohash cells (precision 7, roughly 150m x 150m) of the coordinates written to the GPS file,
+ * so like everything else derived from GPS they include the latitude/longitude fuzzing offsets.
+ * The GPSListener feeds every recorded fix to addFix().  The current place only changes after
+ * PLACE_CHANGE_FIXES consecutive fixes in a new cell, so jitter across a cell boundary is ignored.
+ * When the participant leaves a place (or the GPS session ends) its dwell is added to the place's
+ * counters and a "place ID + dwell" line is written to the gpsPlaces file.
+ * The index is persisted as a small binary file (not SharedPreferences JSON) at the end of every GPS
+ * session, in a private directory outside of the upload directory.  Places are only ever looked up, so the
+ * index (in memory and on disk) is keyed by an HMAC of the cell, with a random per-device key, rather than by
+ * the cell; the file does not reveal where the participant has been.  deleteAll() deletes the file and the key,
+ * when the device is unregistered and when all data is deleted.
+ * All public functions are synchronized, fixes arrive on the GPS thread and the MainService asks
+ * isInStablePlace() from the main thread. */
+public class PlaceIndex {
+	public static String header = "timestamp, place, latitude, longitude, start, end, dwell ms, visits, total dwell ms";
+
+	private static final int MAX_PLACES = 256;
+	private static final int GEOHASH_CHARACTERS = 7;
+	private static final int GEOHASH_BITS = GEOHASH_CHARACTERS * 5;
+	private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+	private static final int PLACE_CHANGE_FIXES = 10;
+	// a place is stable once we have seen the participant there this many times, for this long in total.
+	private static final int STABLE_PLACE_VISITS = 3;
+	private static final long STABLE_PLACE_DWELL = 2 * 60 * 60 * 1000L;
+	// GPS runs in sessions, coming back to a place within this long of last seeing it continues the same visit.
+	private static final long SAME_VISIT_GAP = 30 * 60 * 1000L;
+
+	private static final String DIRECTORY_NAME = "places";
+	private static final String FILE_NAME = "placeIndex";
+	private static final int FILE_VERSION = 2; // version 1 stored the cells themselves
+	private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+	// the index the GPSListener is using, so that deleteAll can clear it too.
+	private static PlaceIndex instance = null;
+
+	private static class Place {
+		long firstSeen;
+		long lastSeen;
+		int visits;
+		long totalDwell;
+	}
+
+	private final File file;
+	private Mac cellHasher;
+	// keyed by cell hashes, access-ordered, so iteration runs from least to most recently used and removeEldestEntry is an LRU.
+	private final LinkedHashMap<Long, Place> places = new LinkedHashMap<Long, Place>(16, 0.75f, true) {
+		@Override protected boolean removeEldestEntry(Map.Entry<Long, Place> eldest) { return size() > MAX_PLACES; }
+	};
+
+	private boolean hasCurrentPlace = false;
+	private long currentCell;
+	private long currentStart;
+	private long currentEnd;
+	private long candidateCell;
+	private int candidateFixes = 0;
+	// the hash of the cell of the most recent fix, kept (and persisted) across sessions
+	private boolean hasLastCell = false;
+	private long lastCellHash;
+
+	public PlaceIndex(Context appContext) {
+		file = new File(appContext.getDir(DIRECTORY_NAME, Context.MODE_PRIVATE), FILE_NAME);
+		cellHasher = newCellHasher();
+		load();
+		synchronized (PlaceIndex.class) { instance = this; }
+	}
+
+	/** Deletes the persisted index and its key, and empties the index in use. */
+	public static void deleteAll(Context appContext) {
+		PlaceIndex index;
+		synchronized (PlaceIndex.class) {
+			File directory = appContext.getDir(DIRECTORY_NAME, Context.MODE_PRIVATE);
+			File[] files = directory.listFiles();
+			if (files != null) { for (File file : files) { file.delete(); } }
+			directory.delete();
+			PersistentData.clearPlaceIndexKey();
+			index = instance;
+		}
+		if (index != null) { index.clear(); }
+	}
+
+	private synchronized void clear() {
+		places.clear();
+		hasCurrentPlace = false;
+		candidateFixes = 0;
+		hasLastCell = false;
+		cellHasher = newCellHasher();
+	}
+
+	private static Mac newCellHasher() {
+		try {
+			Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+			mac.init(new SecretKeySpec(PersistentData.getPlaceIndexKey(), HMAC_ALGORITHM));
+			return mac;
+		}
+		catch (NoSuchAlgorithmException e) { throw new NullPointerException("HmacSHA256 is not available: " + e.getMessage()); } // every Android has it.
+		catch (InvalidKeyException e) { throw new NullPointerException("invalid place index key: " + e.getMessage()); }
+	}
+
+	/** @return the first 64 bits of the HMAC of the cell. */
+	private long hashCell(long cell) {
+		byte[] digest = cellHasher.doFinal(new byte[] { (byte) (cell >>> 56), (byte) (cell >>> 48), (byte) (cell >>> 40),
+				(byte) (cell >>> 32), (byte) (cell >>> 24), (byte) (cell >>> 16), (byte) (cell >>> 8), (byte) cell });
+		long hash = 0;
+		for (int i = 0; i < 8; i++) { hash = (hash << 8) | (digest[i] & 0xff); }
+		return hash;
+	}
+
+	public synchronized void addFix(long timestamp, double latitude, double longitude) {
+		long cell = encodeGeohash(latitude, longitude);
+		if (!hasCurrentPlace) {
+			startPlace(cell, timestamp);
+			return;
+		}
+		if (cell == currentCell) {
+			currentEnd = timestamp;
+			candidateFixes = 0;
+			return;
+		}
+		if (candidateFixes > 0 && cell == candidateCell) { candidateFixes++; }
+		else {
+			candidateCell = cell;
+			candidateFixes = 1;
+		}
+		if (candidateFixes >= PLACE_CHANGE_FIXES) {
+			endPlace();
+			startPlace(cell, timestamp);
+		}
+	}
+
+	/** Ends the current visit (at the last fix seen in it) and persists the index.  Call at the end of every GPS session. */
+	public synchronized void finishSession() {
+		if (hasCurrentPlace) { endPlace(); }
+		save();
+	}
+
+	/** @return true if the most recent fix was in a place the participant has been at often and long enough
+	 * that we are not going to learn anything new by sampling GPS at the full rate. */
+	public synchronized boolean isInStablePlace() {
+		Place place = places.get(lastCellHash);
+		return hasLastCell && place != null && place.visits >= STABLE_PLACE_VISITS && place.totalDwell >= STABLE_PLACE_DWELL;
+	}
+
+	private void startPlace(long cell, long timestamp) {
+		hasCurrentPlace = true;
+		currentCell = cell;
+		currentStart = timestamp;
+		currentEnd = timestamp;
+		candidateFixes = 0;
+		hasLastCell = true;
+		lastCellHash = hashCell(cell);
+	}
+
+	private void endPlace() {
+		long cellHash = hashCell(currentCell);
+		Place place = places.get(cellHash);
+		if (place == null) {
+			place = new Place();
+			place.firstSeen = currentStart;
+			places.put(cellHash, place);
+		}
+		long dwell = currentEnd - currentStart;
+		if (place.visits == 0 || currentStart - place.lastSeen > SAME_VISIT_GAP) { place.visits++; }
+		place.lastSeen = currentEnd;
+		place.totalDwell += dwell;
+
+		double[] center = decodeGeohashCenter(currentCell);
+		TextFileManager.getGPSPlacesFile().writeEncrypted(System.currentTimeMillis() + TextFileManager.DELIMITER
+				+ geohashToString(currentCell) + TextFileManager.DELIMITER
+				+ center[0] + TextFileManager.DELIMITER
+				+ center[1] + TextFileManager.DELIMITER
+				+ currentStart + TextFileManager.DELIMITER
+				+ currentEnd + TextFileManager.DELIMITER
+				+ dwell + TextFileManager.DELIMITER
+				+ place.visits + TextFileManager.DELIMITER
+				+ place.totalDwell);
+		hasCurrentPlace = false;
+	}
+
+	/*######################## Persistence ########################*/
+
+	private void load() {
+		if (!file.exists()) { return; }
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != FILE_VERSION) {
+				// an older index, with the cells in the clear, start over without it.
+				in.close();
+				in = null;
+				file.delete();
+				return;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				long cellHash = in.readLong();
+				Place place = new Place();
+				place.firstSeen = in.readLong();
+				place.lastSeen = in.readLong();
+				place.visits = in.readInt();
+				place.totalDwell = in.readLong();
+				places.put(cellHash, place); // written least recently used first, so this restores the LRU order
+			}
+			hasLastCell = in.readBoolean();
+			lastCellHash = in.readLong();
+		} catch (IOException e) {
+			// a corrupt or truncated index is not worth crashing over, we start over with what we could read.
+			Log.e("PlaceIndex", "could not read place index: " + e.getMessage());
+			TextFileManager.writeDebugLogStatement("could not read place index, " + places.size() + " places recovered.");
+		} finally {
+			if (in != null) { try { in.close(); } catch (IOException ignored) { } }
+		}
+	}
+
+	/** Writes to a temporary file and renames it over the old one, so a crash mid-write cannot corrupt the index. */
+	private void save() {
+		File temporary = new File(file.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+			out.writeInt(FILE_VERSION);
+			out.writeInt(places.size());
+			for (Map.Entry<Long, Place> entry : places.entrySet()) {
+				Place place = entry.getValue();
+				out.writeLong(entry.getKey());
+				out.writeLong(place.firstSeen);
+				out.writeLong(place.lastSeen);
+				out.writeInt(place.visits);
+				out.writeLong(place.totalDwell);
+			}
+			out.writeBoolean(hasLastCell);
+			out.writeLong(lastCellHash);
+			out.close();
+			out = null;
+			if (!temporary.renameTo(file)) { Log.e("PlaceIndex", "could not replace place index file"); }
+		} catch (FileNotFoundException e) {
+			Log.e("PlaceIndex", "could not open place index file: " + e.getMessage());
+		} catch (IOException e) {
+			Log.e("PlaceIndex", "could not write place index: " + e.getMessage());
+		} finally {
+			if (out != null) { try { out.close(); } catch (IOException ignored) { } }
+		}
+	}
+
+	/*######################## Geohash ########################*/
+
+	/** @return the geohash of the location as a GEOHASH_BITS long, latitudes outside of +/-90 (fuzzing) are clamped. */
+	static long encodeGeohash(double latitude, double longitude) {
+		latitude = Math.max(-90, Math.min(90, latitude));
+		double minLatitude = -90, maxLatitude = 90, minLongitude = -180, maxLongitude = 180;
+		long hash = 0;
+		for (int bit = 0; bit < GEOHASH_BITS; bit++) {
+			hash <<= 1;
+			if (bit % 2 == 0) { // even bits are longitude
+				double middle = (minLongitude + maxLongitude) / 2;
+				if (longitude >= middle) { hash |= 1; minLongitude = middle; }
+				else { maxLongitude = middle; }
+			} else {
+				double middle = (minLatitude + maxLatitude) / 2;
+				if (latitude >= middle) { hash |= 1; minLatitude = middle; }
+				else { maxLatitude = middle; }
+			}
+		}
+		return hash;
+	}
+
+	/** @return {latitude, longitude} of the center of the cell. */
+	static double[] decodeGeohashCenter(long hash) {
+		double minLatitude = -90, maxLatitude = 90, minLongitude = -180, maxLongitude = 180;
+		for (int bit = 0; bit < GEOHASH_BITS; bit++) {
+			boolean set = ((hash >>> (GEOHASH_BITS - 1 - bit)) & 1) == 1;
+			if (bit % 2 == 0) {
+				double middle = (minLongitude + maxLongitude) / 2;
+				if (set) { minLongitude = middle; } else { maxLongitude = middle; }
+			} else {
+				double middle = (minLatitude + maxLatitude) / 2;
+				if (set) { minLatitude = middle; } else { maxLatitude = middle; }
+			}
+		}
+		return new double[] { (minLatitude + maxLatitude) / 2, (minLongitude + maxLongitude) / 2 };
+	}
+
+	static String geohashToString(long hash) {
+		char[] characters = new char[GEOHASH_CHARACTERS];
+		for (int i = 0; i < GEOHASH_CHARACTERS; i++) {
+			characters[i] = BASE32[(int) ((hash >>> (5 * (GEOHASH_CHARACTERS - 1 - i))) & 31)];
+		}
+		return new String(characters);
+	}
+}
@@ -0,0 +1,137 @@
+package org.beiwe.app.listeners;
+
+import java.util.Arrays;
+
+/**The RssiAccumulatorMap is an open-addressing hash map from a Bluetooth MAC address (packed into the low
+ * 48 bits of a long) to the count, sum, min and max of the RSSIs seen for that device.
+ * The BluetoothListener adds every advertisement of a scan window to it, so it is written to for every
+ * advertisement and must not allocate: keys and accumulators live in parallel primitive arrays.
+ * Not thread safe, BluetoothListener synchronizes access. */
+class RssiAccumulatorMap {
+	// MACs only use 48 bits, the marker bit distinguishes the MAC 00:00:00:00:00:00 from an empty slot.
+	private static final long OCCUPIED = 1L << 48;
+	private static final float LOAD_FACTOR = 0.5f;
+
+	private long[] keys;
+	private long[] sums;
+	private int[] counts;
+	private int[] mins;
+	private int[] maxes;
+	private int size = 0;
+
+	/** @param expectedDevices the map grows past this, it just avoids rehashing in a typical window. */
+	RssiAccumulatorMap(int expectedDevices) {
+		int capacity = 16;
+		while (capacity * LOAD_FACTOR < expectedDevices) { capacity <<= 1; }
+		allocate(capacity);
+	}
+
+	int size() { return size; }
+
+	void add(long MAC, int rssi) {
+		int slot = findSlot(keys, MAC | OCCUPIED);
+		if (keys[slot] == 0) {
+			if (size + 1 > keys.length * LOAD_FACTOR) {
+				grow();
+				slot = findSlot(keys, MAC | OCCUPIED);
+			}
+			keys[slot] = MAC | OCCUPIED;
+			mins[slot] = Integer.MAX_VALUE;
+			maxes[slot] = Integer.MIN_VALUE;
+			size++;
+		}
+		counts[slot]++;
+		sums[slot] += rssi;
+		if (rssi < mins[slot]) { mins[slot] = rssi; }
+		if (rssi > maxes[slot]) { maxes[slot] = rssi; }
+	}
+
+	/** Empties the map, keeping its capacity. */
+	void clear() {
+		Arrays.fill(keys, 0);
+		Arrays.fill(sums, 0);
+		Arrays.fill(counts, 0);
+		size = 0;
+	}
+
+	/*######################## Iteration ########################*/
+	// Iterate with: for (int slot = 0; slot < capacity(); slot++) { if (isOccupied(slot)) { ... } }
+
+	int capacity() { return keys.length; }
+	boolean isOccupied(int slot) { return keys[slot] != 0; }
+	long MACAt(int slot) { return keys[slot] & ~OCCUPIED; }
+	int countAt(int slot) { return counts[slot]; }
+	long sumAt(int slot) { return sums[slot]; }
+	int minAt(int slot) { return mins[slot]; }
+	int maxAt(int slot) { return maxes[slot]; }
+
+	/*######################## Internals ########################*/
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		sums = new long[capacity];
+		counts = new int[capacity];
+		mins = new int[capacity];
+		maxes = new int[capacity];
+	}
+
+	/** @return the slot holding the key, or the empty slot it belongs in (linear probing). */
+	private static int findSlot(long[] keys, long key) {
+		int mask = keys.length - 1;
+		long mixed = key * 0x9E3779B97F4A7C15L; // fibonacci hashing, MACs of one vendor share their high bits
+		int slot = (int) (mixed >>> 32) & mask;
+		while (keys[slot] != 0 && keys[slot] != key) { slot = (slot + 1) & mask; }
+		return slot;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		long[] oldSums = sums;
+		int[] oldCounts = counts;
+		int[] oldMins = mins;
+		int[] oldMaxes = maxes;
+		allocate(oldKeys.length * 2);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] == 0) { continue; }
+			int slot = findSlot(keys, oldKeys[i]);
+			keys[slot] = oldKeys[i];
+			sums[slot] = oldSums[i];
+			counts[slot] = oldCounts[i];
+			mins[slot] = oldMins[i];
+			maxes[slot] = oldMaxes[i];
+		}
+	}
+
+	/*######################## MAC conversion ########################*/
+
+	/** @return the MAC address ("AA:BB:CC:DD:EE:FF", as given by BluetoothDevice.getAddress) packed into a long, or -1 if it is malformed. */
+	static long parseMAC(String MAC) {
+		if (MAC == null || MAC.length() != 17) { return -1; }
+		long packed = 0;
+		for (int i = 0; i < 17; i++) {
+			char c = MAC.charAt(i);
+			if (i % 3 == 2) {
+				if (c != ':') { return -1; }
+				continue;
+			}
+			int digit = Character.digit(c, 16);
+			if (digit < 0) { return -1; }
+			packed = (packed << 4) | digit;
+		}
+		return packed;
+	}
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	/** @return the MAC address in the same format as BluetoothDevice.getAddress, so hashes match unaggregated data. */
+	static String formatMAC(long packed) {
+		char[] characters = new char[17];
+		for (int octet = 0; octet < 6; octet++) {
+			int value = (int) (packed >>> (8 * (5 - octet))) & 0xFF;
+			characters[octet * 3] = HEX[value >>> 4];
+			characters[octet * 3 + 1] = HEX[value & 0xF];
+			if (octet < 5) { characters[octet * 3 + 2] = ':'; }
+		}
+		return new String(characters);
+	}
+}
@@ -0,0 +1,104 @@
+package org.beiwe.app.listeners;
+
+import android.os.SystemClock;
+
+import org.beiwe.app.storage.TextFileManager;
+
+import java.util.HashMap;
+
+/**SensorDiagnostics records how late sensor events are handled, for a single data stream.
+ * For every event we record the delivery latency (the event's elapsed-realtime timestamp vs. the time
+ * we handle it), the interval since the previous event, and the jitter (the change in that interval).
+ * These go into allocation-free histograms; on flush() a summary line for the current window is
+ * written to the sensorDiagnostics file and the window is reset.
+ * Sensor sessions flush when they are turned off, flushAll() is called when data files are rotated.
+ * There is one registered SensorDiagnostics per stream, a new one replaces (and flushes) the previous one. */
+public class SensorDiagnostics {
+	public static String header = "timestamp, stream, window start, samples, out of range, " +
+			"latency p50 ms, latency p90 ms, latency p99 ms, latency max ms, " +
+			"interval p50 ms, interval p99 ms, jitter p50 ms, jitter p99 ms, jitter max ms";
+
+	// Some devices do not use the elapsed realtime clock for sensor timestamps, latencies outside of
+	// this range are counted as out of range rather than polluting the histograms.
+	private static final long MAX_PLAUSIBLE_LATENCY_NANOS = 60L * 60 * 1000 * 1000 * 1000;
+
+	private static final HashMap<String, SensorDiagnostics> allDiagnostics = new HashMap<String, SensorDiagnostics>();
+
+	private final String streamName;
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final LatencyHistogram interval = new LatencyHistogram();
+	private final LatencyHistogram jitter = new LatencyHistogram();
+
+	private long windowStart = System.currentTimeMillis();
+	private long samples = 0;
+	private long outOfRange = 0;
+	private long lastEventNanos = -1;
+	private long lastIntervalNanos = -1;
+
+	/** @param streamName the name of the data stream, as written to the diagnostics file. */
+	public SensorDiagnostics(String streamName) {
+		this.streamName = streamName;
+		SensorDiagnostics replaced;
+		synchronized (allDiagnostics) { replaced = allDiagnostics.put(streamName, this); }
+		if (replaced != null) { replaced.flush(); }
+	}
+
+	/** Records the handling of one event.
+	 * @param eventTimestampNanos the event's timestamp in the SystemClock.elapsedRealtimeNanos() time base. */
+	public synchronized void recordEvent(long eventTimestampNanos) {
+		long latencyNanos = SystemClock.elapsedRealtimeNanos() - eventTimestampNanos;
+		samples++;
+		if (latencyNanos < 0 || latencyNanos > MAX_PLAUSIBLE_LATENCY_NANOS) { outOfRange++; }
+		else { latency.record(latencyNanos / 1000); }
+
+		if (lastEventNanos >= 0) {
+			long intervalNanos = eventTimestampNanos - lastEventNanos;
+			if (intervalNanos >= 0) {
+				interval.record(intervalNanos / 1000);
+				if (lastIntervalNanos >= 0) { jitter.record(Math.abs(intervalNanos - lastIntervalNanos) / 1000); }
+				lastIntervalNanos = intervalNanos;
+			}
+		}
+		lastEventNanos = eventTimestampNanos;
+	}
+
+	/** Writes a summary of the current window to the diagnostics file, then starts a new window.
+	 * Windows with no samples are not written. */
+	public synchronized void flush() {
+		if (samples > 0) {
+			String line = System.currentTimeMillis() + TextFileManager.DELIMITER
+					+ streamName + TextFileManager.DELIMITER
+					+ windowStart + TextFileManager.DELIMITER
+					+ samples + TextFileManager.DELIMITER
+					+ outOfRange + TextFileManager.DELIMITER
+					+ toMilliseconds(latency.getValueAtPercentile(50)) + TextFileManager.DELIMITER
+					+ toMilliseconds(latency.getValueAtPercentile(90)) + TextFileManager.DELIMITER
+					+ toMilliseconds(latency.getValueAtPercentile(99)) + TextFileManager.DELIMITER
+					+ toMilliseconds(latency.getMaxValue()) + TextFileManager.DELIMITER
+					+ toMilliseconds(interval.getValueAtPercentile(50)) + TextFileManager.DELIMITER
+					+ toMilliseconds(interval.getValueAtPercentile(99)) + TextFileManager.DELIMITER
+					+ toMilliseconds(jitter.getValueAtPercentile(50)) + TextFileManager.DELIMITER
+					+ toMilliseconds(jitter.getValueAtPercentile(99)) + TextFileManager.DELIMITER
+					+ toMilliseconds(jitter.getMaxValue());
+			TextFileManager.getSensorDiagnosticsFile().writeEncrypted(line);
+		}
+		latency.reset();
+		interval.reset();
+		jitter.reset();
+		samples = 0;
+		outOfRange = 0;
+		// a new window should not measure the gap between sessions as an interval
+		lastEventNanos = -1;
+		lastIntervalNanos = -1;
+		windowStart = System.currentTimeMillis();
+	}
+
+	/** Flushes every stream's diagnostics. */
+	public static void flushAll() {
+		synchronized (allDiagnostics) {
+			for (SensorDiagnostics diagnostics : allDiagnostics.values()) { diagnostics.flush(); }
+		}
+	}
+
+	private static String toMilliseconds(long microseconds) { return String.valueOf(microseconds / 1000.0); }
+}
@@ -0,0 +1,206 @@
+package org.beiwe.app.listeners;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.Telephony.BaseMmsColumns;
+import android.provider.Telephony.TextBasedSmsColumns;
+
+import org.beiwe.app.storage.EncryptionEngine;
+import org.beiwe.app.storage.PersistentData;
+import org.beiwe.app.storage.TextFileManager;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**TextsLogger records sent, received and failed SMS and MMS messages to the texts log.
+ *
+ * It is run by the ContentObserverDispatcher when content://sms or content://mms change.  Android sends
+ * a burst of change notifications for every message (it moves through the queue, the outbox and the
+ * sent box), the dispatcher coalesces them, and after a burst we query only the rows newer than the
+ * last recorded row of each table (the high-water marks, persisted in PersistentData).
+ *
+ * A message is only recorded once it reaches a final state: received, sent, or failed.  Messages that
+ * are queued or in the outbox hold the high-water mark below them so that we see them again when they
+ * are sent, and rows above that mark that have already been recorded are remembered by (table, id, type)
+ * so they are not recorded twice.  Drafts are never recorded.
+ *
+ * If a table is cleared or restored its _ids can start over below its mark, when a query finds nothing
+ * above the mark and the newest row is below it, the mark is reset to the newest row, as on the first run.
+ *
+ * Registering receivers for incoming texts is unnecessary, received messages are written to the same
+ * tables by the default messaging app. */
+public class TextsLogger implements Runnable {
+
+	public static String header = "timestamp,hashed phone number,sent vs received,message length,time sent";
+
+	public static final Uri SMS_URI = Uri.parse("content://sms");
+	public static final Uri MMS_URI = Uri.parse("content://mms");
+	public static final long COALESCING_WINDOW_MILLISECONDS = 500;
+	// A message stuck in the outbox (no signal, say) for longer than this stops holding the high-water mark.
+	private static final long PENDING_TIMEOUT_MILLISECONDS = 24 * 60 * 60 * 1000L;
+	// PduHeaders.FROM, the type of the sender's row in an MMS's addr table.
+	private static final int MMS_ADDRESS_FROM = 137;
+
+	// we supply the projections, so the column indices are just the positions in them.
+	private static final String[] smsFields = { "_id", TextBasedSmsColumns.TYPE, TextBasedSmsColumns.ADDRESS,
+			TextBasedSmsColumns.BODY, TextBasedSmsColumns.DATE, TextBasedSmsColumns.DATE_SENT };
+	private static final String[] mmsFields = { "_id", BaseMmsColumns.MESSAGE_BOX, BaseMmsColumns.DATE };
+	private static final int ID_COLUMN = 0;
+	private static final int TYPE_COLUMN = 1;
+	private static final int SMS_ADDRESS_COLUMN = 2;
+	private static final int SMS_BODY_COLUMN = 3;
+	private static final int SMS_DATE_COLUMN = 4;
+	private static final int SMS_DATE_SENT_COLUMN = 5;
+	private static final int MMS_DATE_COLUMN = 2;
+
+	private static final String SMS = "sms";
+	private static final String MMS = "mms";
+
+	private Context appContext;
+
+	public TextsLogger(Context context) { this.appContext = context; }
+
+	/** Records new messages, on the first run this just sets the high-water marks. */
+	@Override
+	public void run() { recordNewMessages(appContext); }
+
+	/*###############################################################################
+	############################### Incremental query ###############################
+	###############################################################################*/
+
+	/** Static and synchronized because both URIs run this, and the service may create more than one TextsLogger. */
+	private static synchronized void recordNewMessages(Context appContext) {
+		Set<String> recordedAboveMark = PersistentData.getTextsRecordedAboveMark();
+		int recordedCount = recordedAboveMark.size();
+		long smsMark = PersistentData.getSmsLastRecordedID();
+		long mmsMark = PersistentData.getMmsLastRecordedID();
+
+		long newSmsMark = (smsMark < 0) ? queryNewestID(appContext, SMS_URI) : recordNewSMS(appContext, smsMark, recordedAboveMark);
+		long newMmsMark = (mmsMark < 0) ? queryNewestID(appContext, MMS_URI) : recordNewMMS(appContext, mmsMark, recordedAboveMark);
+		if (smsMark >= 0 && newSmsMark == smsMark) { newSmsMark = resetMarkAboveNewest(appContext, SMS_URI, SMS, smsMark, recordedAboveMark); }
+		if (mmsMark >= 0 && newMmsMark == mmsMark) { newMmsMark = resetMarkAboveNewest(appContext, MMS_URI, MMS, mmsMark, recordedAboveMark); }
+
+		if (newSmsMark != smsMark) { PersistentData.setSmsLastRecordedID(newSmsMark); }
+		if (newMmsMark != mmsMark) { PersistentData.setMmsLastRecordedID(newMmsMark); }
+		if (newSmsMark != smsMark || newMmsMark != mmsMark || recordedAboveMark.size() != recordedCount) {
+			// forget the rows that are now below the marks.
+			Set<String> stillAboveMark = new HashSet<String>();
+			for (String key : recordedAboveMark) {
+				String[] parts = key.split(":");
+				long mark = parts[0].equals(SMS) ? newSmsMark : newMmsMark;
+				if (Long.parseLong(parts[1]) > mark) { stillAboveMark.add(key); }
+			}
+			PersistentData.setTextsRecordedAboveMark(stillAboveMark);
+		}
+	}
+
+	/** @return the _id of the newest row in the table, 0 if it is empty. Used to start recording on the first run. */
+	private static long queryNewestID(Context appContext, Uri uri) {
+		Cursor cursor = appContext.getContentResolver().query(uri, new String[] {"_id"}, null, null, "_id DESC");
+		if (cursor == null) { return -1; } // try again on the next change
+		try { return cursor.moveToFirst() ? cursor.getLong(ID_COLUMN) : 0; }
+		finally { cursor.close(); }
+	}
+
+	/** @return the newest _id of the table if that is below the mark (its _ids have started over), otherwise the mark.
+	 * On a reset the table's remembered rows are forgotten, their _ids will be reused. */
+	private static long resetMarkAboveNewest(Context appContext, Uri uri, String table, long mark, Set<String> recordedAboveMark) {
+		long newest = queryNewestID(appContext, uri);
+		if (newest < 0 || newest >= mark) { return mark; }
+		Iterator<String> keys = recordedAboveMark.iterator();
+		while (keys.hasNext()) {
+			if (keys.next().startsWith(table + ":")) { keys.remove(); }
+		}
+		return newest;
+	}
+
+	/** @return the new SMS high-water mark. */
+	private static long recordNewSMS(Context appContext, long mark, Set<String> recordedAboveMark) {
+		Cursor cursor = appContext.getContentResolver().query(SMS_URI, smsFields, "_id > ?", new String[] {String.valueOf(mark)}, "_id ASC");
+		if (cursor == null) { return mark; }
+		boolean pendingBelow = false;
+		try {
+			while (cursor.moveToNext()) {
+				long id = cursor.getLong(ID_COLUMN);
+				int type = cursor.getInt(TYPE_COLUMN);
+				long date = cursor.getLong(SMS_DATE_COLUMN);
+				String description = describe(SMS, type);
+				if (description == null && isPending(type) && System.currentTimeMillis() - date < PENDING_TIMEOUT_MILLISECONDS) {
+					pendingBelow = true;
+					continue;
+				}
+				if (description != null && recordedAboveMark.add(key(SMS, id, type))) {
+					String body = cursor.getString(SMS_BODY_COLUMN);
+					//			"timestamp,hashed phone number,sent vs received,message length,time sent";
+					String data = date + TextFileManager.DELIMITER
+							+ EncryptionEngine.hashPhoneNumber(cursor.getString(SMS_ADDRESS_COLUMN)) + TextFileManager.DELIMITER
+							+ description + TextFileManager.DELIMITER
+							+ (body == null ? 0 : body.length());
+					if (type == TextBasedSmsColumns.MESSAGE_TYPE_INBOX) { data += TextFileManager.DELIMITER + cursor.getLong(SMS_DATE_SENT_COLUMN); }
+					TextFileManager.getTextsLogFile().writeEncrypted(data);
+				}
+				if (!pendingBelow) { mark = id; }
+			}
+		} finally { cursor.close(); }
+		return mark;
+	}
+
+	/** @return the new MMS high-water mark. */
+	private static long recordNewMMS(Context appContext, long mark, Set<String> recordedAboveMark) {
+		Cursor cursor = appContext.getContentResolver().query(MMS_URI, mmsFields, "_id > ?", new String[] {String.valueOf(mark)}, "_id ASC");
+		if (cursor == null) { return mark; }
+		boolean pendingBelow = false;
+		try {
+			while (cursor.moveToNext()) {
+				long id = cursor.getLong(ID_COLUMN);
+				int box = cursor.getInt(TYPE_COLUMN);
+				long date = cursor.getLong(MMS_DATE_COLUMN) * 1000L; // MMS dates are in seconds
+				String description = describe(MMS, box);
+				if (description == null && isPending(box) && System.currentTimeMillis() - date < PENDING_TIMEOUT_MILLISECONDS) {
+					pendingBelow = true;
+					continue;
+				}
+				if (description != null && recordedAboveMark.add(key(MMS, id, box))) {
+					// we have never recorded the recipients of sent MMSes, they can be a whole group.
+					String address = (box == BaseMmsColumns.MESSAGE_BOX_INBOX) ? EncryptionEngine.hashPhoneNumber(queryMMSSender(appContext, id)) : "";
+					String data = date + TextFileManager.DELIMITER + address + TextFileManager.DELIMITER + description + TextFileManager.DELIMITER + "MMS";
+					TextFileManager.getTextsLogFile().writeEncrypted(data);
+				}
+				if (!pendingBelow) { mark = id; }
+			}
+		} finally { cursor.close(); }
+		return mark;
+	}
+
+	private static String queryMMSSender(Context appContext, long id) {
+		Cursor cursor = appContext.getContentResolver().query(Uri.parse("content://mms/" + id + "/addr"),
+				new String[] {"address"}, "type = ?", new String[] {String.valueOf(MMS_ADDRESS_FROM)}, null);
+		if (cursor == null) { return ""; }
+		try { return cursor.moveToFirst() ? cursor.getString(0) : ""; }
+		finally { cursor.close(); }
+	}
+
+	/*###############################################################################
+	################################ Message types ##################################
+	###############################################################################*/
+
+	/** @return the "sent vs received" column for a message in a final state, null for drafts and pending messages.
+	 * The SMS types and MMS message boxes share the same numbers for the states we care about. */
+	private static String describe(String table, int type) {
+		switch (type) {
+			case TextBasedSmsColumns.MESSAGE_TYPE_INBOX: return "received " + table.toUpperCase();
+			case TextBasedSmsColumns.MESSAGE_TYPE_SENT: return "sent " + table.toUpperCase();
+			case TextBasedSmsColumns.MESSAGE_TYPE_FAILED: return "failed " + table.toUpperCase();
+			default: return null;
+		}
+	}
+
+	/** Messages on their way out, they will end up sent or failed. */
+	private static boolean isPending(int type) {
+		return type == TextBasedSmsColumns.MESSAGE_TYPE_OUTBOX || type == TextBasedSmsColumns.MESSAGE_TYPE_QUEUED;
+	}
+
+	private static String key(String table, long id, int type) { return table + ":" + id + ":" + type; }
+}
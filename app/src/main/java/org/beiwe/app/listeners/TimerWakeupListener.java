@@ -0,0 +1,43 @@
+package org.beiwe.app.listeners;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.PowerManager;
+
+import androidx.core.content.ContextCompat;
+
+import org.beiwe.app.MainService;
+
+/**The TimerWakeupListener receives the Timer's AlarmManager wakeups and passes them on to the MainService,
+ * starting it if it is not running.  The alarm only keeps the device awake while onReceive runs, so we take a
+ * partial wake lock here and the MainService releases it once it has run (or handed off) the due timers.
+ * The wake lock times out in case the service never gets to it. */
+public class TimerWakeupListener extends BroadcastReceiver {
+	private static final long WAKE_LOCK_TIMEOUT_MILLISECONDS = 60 * 1000L;
+	private static PowerManager.WakeLock wakeLock = null;
+
+	@Override
+	public void onReceive(Context externalContext, Intent intent) {
+		acquireWakeLock(externalContext);
+		Intent wakeupIntent = new Intent(externalContext, MainService.class);
+		wakeupIntent.setAction(intent.getAction());
+		// ContextCompat correctly handles old and new android APIs
+		ContextCompat.startForegroundService(externalContext, wakeupIntent);
+	}
+
+	private static synchronized void acquireWakeLock(Context externalContext) {
+		if (wakeLock == null) {
+			PowerManager powerManager = (PowerManager) externalContext.getApplicationContext().getSystemService(Context.POWER_SERVICE);
+			wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "beiwe:TimerWakeup");
+			// wakeups that arrive together are released together.
+			wakeLock.setReferenceCounted(false);
+		}
+		wakeLock.acquire(WAKE_LOCK_TIMEOUT_MILLISECONDS);
+	}
+
+	/** Called by the MainService once the due timers have run or been handed off. */
+	public static synchronized void releaseWakeLock() {
+		if (wakeLock != null && wakeLock.isHeld()) { wakeLock.release(); }
+	}
+}
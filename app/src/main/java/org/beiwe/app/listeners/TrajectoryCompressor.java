@@ -0,0 +1,214 @@
+package org.beiwe.app.listeners;
+
+import org.beiwe.app.storage.TextFileManager;
+
+/**The TrajectoryCompressor derives a compact trajectory from the raw GPS fixes of a GPS session.
+ * It runs two incremental algorithms over the fixes as they arrive:
+ * 1. Opening-window polyline simplification: a fix is only written as a "point" when skipping it would
+ *    move some fix in between the previous point and the newest fix further than the tolerance from
+ *    the simplified line.
+ * 2. Stay-point detection: while fixes stay within the stay radius of the first fix of a cluster
+ *    we accumulate them, when a fix leaves the radius and the cluster lasted at least the dwell time
+ *    a "stay" is written at the cluster's centroid.
+ * Memory is bounded: the simplification window holds at most MAX_WINDOW_FIXES fixes (when full the newest
+ * fix is written as a point and the window restarts) and the stay cluster is kept as running sums.
+ * Coordinates are passed in exactly as written to the GPS file, so they already include the
+ * latitude/longitude fuzzing offsets; nothing here ever sees the true location.
+ * GPS sessions are usually no longer than the dwell time, so the stay cluster is carried across sessions
+ * (the same TrajectoryCompressor is used for every session): a participant who stays put through several
+ * sessions gets one stay spanning them.  finish() must be called at the end of each GPS session to write out
+ * the pending point, close() when the trajectory is no longer collected to write out the open stay.
+ * This class is not thread safe, GPSListener calls it from its synchronized functions. */
+public class TrajectoryCompressor {
+	public static String header = "timestamp, type, latitude, longitude, start, end, fixes";
+	public static final String POINT = "point";
+	public static final String STAY = "stay";
+
+	private static final double EARTH_RADIUS_METERS = 6371008.8;
+	private static final int MAX_WINDOW_FIXES = 512;
+
+	private final double toleranceMeters;
+	private final double stayRadiusMeters;
+	private final long stayDwellMilliseconds;
+
+	// the opening window: the last written point (the anchor) is not stored in these arrays.
+	private final long[] windowTimes = new long[MAX_WINDOW_FIXES];
+	private final double[] windowLatitudes = new double[MAX_WINDOW_FIXES];
+	private final double[] windowLongitudes = new double[MAX_WINDOW_FIXES];
+	private int windowSize = 0;
+	private boolean hasAnchor = false;
+	private long anchorTime;
+	private double anchorLatitude;
+	private double anchorLongitude;
+
+	// the current stay cluster
+	private int clusterFixes = 0;
+	private double clusterFirstLatitude;
+	private double clusterFirstLongitude;
+	private long clusterStart;
+	private long clusterEnd;
+	private double clusterLatitudeSum;
+	private double clusterLongitudeSum;
+
+	/** @param toleranceMeters maximum distance of a dropped fix from the simplified polyline.
+	 * @param stayRadiusMeters maximum distance of a fix from the first fix of a stay.
+	 * @param stayDwellMilliseconds minimum duration of a stay. */
+	public TrajectoryCompressor(double toleranceMeters, double stayRadiusMeters, long stayDwellMilliseconds) {
+		this.toleranceMeters = toleranceMeters;
+		this.stayRadiusMeters = stayRadiusMeters;
+		this.stayDwellMilliseconds = stayDwellMilliseconds;
+	}
+
+	public void addFix(long timestamp, double latitude, double longitude) {
+		addToStayCluster(timestamp, latitude, longitude);
+		addToWindow(timestamp, latitude, longitude);
+	}
+
+	/** @return whether this was created with these parameters. */
+	public boolean hasParameters(double toleranceMeters, double stayRadiusMeters, long stayDwellMilliseconds) {
+		return this.toleranceMeters == toleranceMeters && this.stayRadiusMeters == stayRadiusMeters
+				&& this.stayDwellMilliseconds == stayDwellMilliseconds;
+	}
+
+	/** Ends a GPS session: writes out the last fix of the session as a point, and restarts the polyline.
+	 * The stay cluster stays open, the next session may continue it. */
+	public void finish() {
+		if (windowSize > 0) {
+			int last = windowSize - 1;
+			writePoint(windowTimes[last], windowLatitudes[last], windowLongitudes[last], windowSize);
+		}
+		windowSize = 0;
+		hasAnchor = false;
+	}
+
+	/** Ends the trajectory: finishes the session and writes out the current cluster if it is a stay. */
+	public void close() {
+		finish();
+		if (clusterFixes > 0) { writeStayIfDwelled(); }
+		clusterFixes = 0;
+	}
+
+	/*######################## Opening window simplification ########################*/
+
+	private void addToWindow(long timestamp, double latitude, double longitude) {
+		if (!hasAnchor) {
+			writePoint(timestamp, latitude, longitude, 1);
+			setAnchor(timestamp, latitude, longitude);
+			return;
+		}
+		if (windowSize > 0 && !windowFitsSegmentTo(latitude, longitude)) {
+			// the newest fix breaks the tolerance, the fix before it becomes a point and the new anchor.
+			int last = windowSize - 1;
+			writePoint(windowTimes[last], windowLatitudes[last], windowLongitudes[last], windowSize);
+			setAnchor(windowTimes[last], windowLatitudes[last], windowLongitudes[last]);
+			windowSize = 0;
+		}
+		windowTimes[windowSize] = timestamp;
+		windowLatitudes[windowSize] = latitude;
+		windowLongitudes[windowSize] = longitude;
+		windowSize++;
+		if (windowSize == MAX_WINDOW_FIXES) {
+			writePoint(timestamp, latitude, longitude, windowSize);
+			setAnchor(timestamp, latitude, longitude);
+			windowSize = 0;
+		}
+	}
+
+	private void setAnchor(long timestamp, double latitude, double longitude) {
+		hasAnchor = true;
+		anchorTime = timestamp;
+		anchorLatitude = latitude;
+		anchorLongitude = longitude;
+	}
+
+	/** @return whether every fix in the window is within the tolerance of the segment from the anchor to the given location. */
+	private boolean windowFitsSegmentTo(double latitude, double longitude) {
+		double cosLatitude = Math.cos(Math.toRadians(anchorLatitude));
+		double endX = eastMeters(anchorLongitude, longitude, cosLatitude);
+		double endY = northMeters(anchorLatitude, latitude);
+		double lengthSquared = endX * endX + endY * endY;
+		for (int i = 0; i < windowSize; i++) {
+			double x = eastMeters(anchorLongitude, windowLongitudes[i], cosLatitude);
+			double y = northMeters(anchorLatitude, windowLatitudes[i]);
+			double distance;
+			if (lengthSquared == 0) {
+				distance = Math.sqrt(x * x + y * y);
+			} else {
+				double t = Math.max(0, Math.min(1, (x * endX + y * endY) / lengthSquared));
+				double dx = x - t * endX;
+				double dy = y - t * endY;
+				distance = Math.sqrt(dx * dx + dy * dy);
+			}
+			if (distance > toleranceMeters) { return false; }
+		}
+		return true;
+	}
+
+	/*######################## Stay point detection ########################*/
+
+	private void addToStayCluster(long timestamp, double latitude, double longitude) {
+		if (clusterFixes > 0 && distanceMeters(clusterFirstLatitude, clusterFirstLongitude, latitude, longitude) > stayRadiusMeters) {
+			writeStayIfDwelled();
+			clusterFixes = 0;
+		}
+		if (clusterFixes == 0) {
+			clusterFirstLatitude = latitude;
+			clusterFirstLongitude = longitude;
+			clusterStart = timestamp;
+			clusterLatitudeSum = 0;
+			clusterLongitudeSum = 0;
+		}
+		clusterFixes++;
+		clusterEnd = timestamp;
+		// sum offsets from the first fix, so that clusters on the antimeridian do not average to the wrong side of the planet
+		clusterLatitudeSum += latitude - clusterFirstLatitude;
+		clusterLongitudeSum += wrapLongitude(longitude - clusterFirstLongitude);
+	}
+
+	private void writeStayIfDwelled() {
+		if (clusterEnd - clusterStart < stayDwellMilliseconds) { return; }
+		double latitude = clusterFirstLatitude + clusterLatitudeSum / clusterFixes;
+		double longitude = wrapLongitude(clusterFirstLongitude + clusterLongitudeSum / clusterFixes);
+		TextFileManager.getGPSTrajectoryFile().writeEncrypted(clusterEnd + TextFileManager.DELIMITER
+				+ STAY + TextFileManager.DELIMITER
+				+ latitude + TextFileManager.DELIMITER
+				+ longitude + TextFileManager.DELIMITER
+				+ clusterStart + TextFileManager.DELIMITER
+				+ clusterEnd + TextFileManager.DELIMITER
+				+ clusterFixes);
+	}
+
+	/*######################## Utilities ########################*/
+
+	private void writePoint(long timestamp, double latitude, double longitude, int fixes) {
+		TextFileManager.getGPSTrajectoryFile().writeEncrypted(timestamp + TextFileManager.DELIMITER
+				+ POINT + TextFileManager.DELIMITER
+				+ latitude + TextFileManager.DELIMITER
+				+ longitude + TextFileManager.DELIMITER
+				+ timestamp + TextFileManager.DELIMITER
+				+ timestamp + TextFileManager.DELIMITER
+				+ fixes);
+	}
+
+	private static double wrapLongitude(double longitude) {
+		if (longitude > 180) { return longitude - 360; }
+		if (longitude < -180) { return longitude + 360; }
+		return longitude;
+	}
+
+	private static double northMeters(double fromLatitude, double toLatitude) {
+		return Math.toRadians(toLatitude - fromLatitude) * EARTH_RADIUS_METERS;
+	}
+
+	private static double eastMeters(double fromLongitude, double toLongitude, double cosLatitude) {
+		return Math.toRadians(wrapLongitude(toLongitude - fromLongitude)) * EARTH_RADIUS_METERS * cosLatitude;
+	}
+
+	/** Equirectangular approximation, accurate to well under a meter at the distances we care about. */
+	static double distanceMeters(double latitude1, double longitude1, double latitude2, double longitude2) {
+		double cosLatitude = Math.cos(Math.toRadians((latitude1 + latitude2) / 2));
+		double x = eastMeters(longitude1, longitude2, cosLatitude);
+		double y = northMeters(latitude1, latitude2);
+		return Math.sqrt(x * x + y * y);
+	}
+}
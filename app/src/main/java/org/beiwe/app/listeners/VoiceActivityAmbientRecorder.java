@@ -0,0 +1,224 @@
+package org.beiwe.app.listeners;
+
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Process;
+import android.util.Log;
+
+import org.beiwe.app.storage.AacFileEncoder;
+import org.beiwe.app.storage.AudioFileManager;
+import org.beiwe.app.storage.TextFileManager;
+
+import java.io.IOException;
+
+/**VoiceActivityAmbientRecorder is the voice activity detection mode of ambient audio recording.
+ * It captures 16kHz PCM with an AudioRecord and runs every 20ms frame through a VoiceActivityDetector.
+ * Audio is only encoded (AAC in MP4, like the regular ambient audio files) while there is activity:
+ * a segment starts after ACTIVATION_FRAMES consecutive active frames, includes the PRE_ROLL_FRAMES
+ * before them so the onset is not clipped, and ends HANGOVER_FRAMES after the last active frame.
+ * Finished segments are encrypted and uploaded exactly like regular ambient audio files.
+ * Every run of activity or silence is also written as one line of the ambientAudioActivity timeline,
+ * so the silent periods are accounted for even though there is no audio for them.
+ * All frame buffers are allocated once, the capture loop does not allocate.
+ * Started by AmbientAudioListener.startRecording, it runs until the process ends. */
+public class VoiceActivityAmbientRecorder {
+	public static String header = "timestamp, start, end, state, frames, peak dB, mean dB, noise floor dB";
+	public static final String ACTIVE = "active";
+	public static final String SILENT = "silent";
+
+	private static final int SAMPLE_RATE = 16000;
+	private static final int FRAME_SAMPLES = SAMPLE_RATE / 50; // 20ms
+	private static final long FRAME_MILLISECONDS = 20;
+	private static final int BIT_RATE = 32000;
+	private static final int ACTIVATION_FRAMES = 3;
+	private static final int PRE_ROLL_FRAMES = 15;
+	private static final int HANGOVER_FRAMES = 75;
+	private static final int MAX_SEGMENT_FRAMES = 15 * 60 * 50;
+	public static final String[] unencryptedTempAudioFilenames = {
+			"tempUnencryptedActiveAudioFile0", "tempUnencryptedActiveAudioFile1" };
+
+	private static Thread captureThread = null;
+
+	public static synchronized void start(Context appContext) {
+		if (captureThread != null) { return; }
+		captureThread = new Thread(new CaptureLoop(appContext), "VoiceActivityAmbientRecorder");
+		captureThread.start();
+	}
+
+	private static class CaptureLoop implements Runnable {
+		private final Context appContext;
+		private final VoiceActivityDetector detector = new VoiceActivityDetector();
+		private final short[] frame = new short[FRAME_SAMPLES];
+		// ring buffer of the most recent silent frames, the pre-roll of the next segment.
+		private final short[][] preRoll = new short[PRE_ROLL_FRAMES][FRAME_SAMPLES];
+		private int preRollStart = 0;
+		private int preRollCount = 0;
+
+		private AacFileEncoder encoder = null;
+		private int currentTempFile = 0;
+		private int segmentFrames = 0;
+		private boolean active = false;
+		private int consecutiveActiveFrames = 0;
+		private int framesSinceActivity = 0;
+
+		// the current run of the timeline
+		private long runStart;
+		private int runFrames = 0;
+		private double runPeakDb;
+		private double runEnergyDbSum = 0;
+
+		CaptureLoop(Context appContext) { this.appContext = appContext; }
+
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+			int minBufferSize = AudioRecord.getMinBufferSize(SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+			AudioRecord recorder = new AudioRecord(MediaRecorder.AudioSource.MIC, SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO,
+					AudioFormat.ENCODING_PCM_16BIT, Math.max(minBufferSize, FRAME_SAMPLES * 2 * 25));
+			if (recorder.getState() != AudioRecord.STATE_INITIALIZED) {
+				TextFileManager.writeDebugLogStatement("VoiceActivityAmbientRecorder could not initialize the AudioRecord");
+				recorder.release();
+				synchronized (VoiceActivityAmbientRecorder.class) { captureThread = null; }
+				return;
+			}
+			recorder.startRecording();
+			startRun(System.currentTimeMillis());
+			while (true) {
+				int read = recorder.read(frame, 0, FRAME_SAMPLES);
+				if (read < 0) {
+					Log.e("VoiceActivity", "AudioRecord.read error " + read);
+					TextFileManager.writeDebugLogStatement("VoiceActivityAmbientRecorder AudioRecord.read error " + read);
+					break;
+				}
+				if (read < FRAME_SAMPLES) { continue; } // only happens when the recorder is being stopped.
+				processFrame(System.currentTimeMillis());
+			}
+			if (active) { endSegment(); }
+			writeRun(System.currentTimeMillis());
+			recorder.stop();
+			recorder.release();
+			synchronized (VoiceActivityAmbientRecorder.class) { captureThread = null; }
+		}
+
+		private void processFrame(long now) {
+			boolean frameIsActive = detector.isActive(frame, FRAME_SAMPLES);
+			if (!active) {
+				consecutiveActiveFrames = frameIsActive ? consecutiveActiveFrames + 1 : 0;
+				addToPreRoll();
+				if (consecutiveActiveFrames >= ACTIVATION_FRAMES) {
+					// the activity started with the oldest frame of the pre-roll.
+					long segmentStart = now - (preRollCount - 1) * FRAME_MILLISECONDS;
+					writeRun(segmentStart);
+					startRun(segmentStart);
+					active = true;
+					framesSinceActivity = 0;
+					startSegment();
+					encodePreRoll();
+				}
+			} else {
+				framesSinceActivity = frameIsActive ? 0 : framesSinceActivity + 1;
+				encodeFrame(frame);
+				if (framesSinceActivity >= HANGOVER_FRAMES) {
+					endSegment();
+					updateRun();
+					writeRun(now);
+					active = false;
+					consecutiveActiveFrames = 0;
+					startRun(now);
+					return;
+				} else if (segmentFrames >= MAX_SEGMENT_FRAMES) {
+					// long activity is split into files of at most the regular ambient audio file length.
+					endSegment();
+					startSegment();
+				}
+			}
+			updateRun();
+		}
+
+		/*######################## Segments ########################*/
+
+		private void startSegment() {
+			String tempFilename = unencryptedTempAudioFilenames[currentTempFile];
+			AmbientAudioListener.awaitEncryption(tempFilename);
+			segmentFrames = 0;
+			try {
+				encoder = new AacFileEncoder(appContext.getFilesDir().getAbsolutePath() + "/" + tempFilename, SAMPLE_RATE, BIT_RATE);
+			} catch (IOException e) {
+				// we keep writing the timeline, it is the best we can do.
+				encoder = null;
+				TextFileManager.writeDebugLogStatement("VoiceActivityAmbientRecorder could not start an encoder: " + e.getMessage());
+			} catch (IllegalStateException e) {
+				encoder = null;
+				TextFileManager.writeDebugLogStatement("VoiceActivityAmbientRecorder could not start an encoder: " + e.getMessage());
+			}
+		}
+
+		private void endSegment() {
+			if (encoder == null) { return; }
+			String tempFilename = unencryptedTempAudioFilenames[currentTempFile];
+			boolean hasAudio;
+			try { hasAudio = encoder.finish(); }
+			catch (IllegalStateException e) {
+				hasAudio = false;
+				TextFileManager.writeDebugLogStatement("VoiceActivityAmbientRecorder could not finish a segment: " + e.getMessage());
+			}
+			encoder = null;
+			if (hasAudio) {
+				AmbientAudioListener.encryptSegment(appContext, tempFilename);
+				currentTempFile = 1 - currentTempFile;
+			} else {
+				AudioFileManager.delete(tempFilename);
+			}
+		}
+
+		private void encodeFrame(short[] samples) {
+			segmentFrames++;
+			if (encoder != null) { encoder.encode(samples, FRAME_SAMPLES); }
+		}
+
+		/*######################## Pre-roll ########################*/
+
+		private void addToPreRoll() {
+			int slot = (preRollStart + preRollCount) % PRE_ROLL_FRAMES;
+			System.arraycopy(frame, 0, preRoll[slot], 0, FRAME_SAMPLES);
+			if (preRollCount < PRE_ROLL_FRAMES) { preRollCount++; }
+			else { preRollStart = (preRollStart + 1) % PRE_ROLL_FRAMES; }
+		}
+
+		private void encodePreRoll() {
+			for (int i = 0; i < preRollCount; i++) { encodeFrame(preRoll[(preRollStart + i) % PRE_ROLL_FRAMES]); }
+			preRollStart = 0;
+			preRollCount = 0;
+		}
+
+		/*######################## Timeline ########################*/
+
+		private void startRun(long start) {
+			runStart = start;
+			runFrames = 0;
+			runPeakDb = -Double.MAX_VALUE;
+			runEnergyDbSum = 0;
+		}
+
+		private void updateRun() {
+			double energyDb = detector.getLastEnergyDb();
+			runFrames++;
+			runEnergyDbSum += energyDb;
+			if (energyDb > runPeakDb) { runPeakDb = energyDb; }
+		}
+
+		private void writeRun(long end) {
+			if (runFrames == 0) { return; }
+			TextFileManager.getAmbientAudioActivityFile().writeEncrypted(System.currentTimeMillis() + TextFileManager.DELIMITER
+					+ runStart + TextFileManager.DELIMITER
+					+ end + TextFileManager.DELIMITER
+					+ (active ? ACTIVE : SILENT) + TextFileManager.DELIMITER
+					+ runFrames + TextFileManager.DELIMITER
+					+ Math.round(runPeakDb) + TextFileManager.DELIMITER
+					+ Math.round(runEnergyDbSum / runFrames) + TextFileManager.DELIMITER
+					+ Math.round(detector.getNoiseFloorDb()));
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package org.beiwe.app.listeners;
+
+/**A lightweight energy and zero-crossing-rate voice activity detector, for one frame of 16 bit PCM at a time.
+ * A frame is active when its energy is well above the background noise floor.  Quieter frames with a
+ * zero-crossing rate typical of speech (unvoiced consonants are quiet and noisy) are also active, as
+ * long as they are somewhat above the noise floor.  The noise floor is a minimum tracker of the frame
+ * energy, falling quickly and rising slowly, so the pauses in speech keep it at the background level and
+ * it follows a changing background within seconds.
+ * Nothing here allocates, the VoiceActivityAmbientRecorder calls it for every 20ms frame.
+ * Not thread safe. */
+public class VoiceActivityDetector {
+	// dBFS of a frame of digital silence, so the logarithm is never of zero.
+	private static final double SILENCE_DB = -96;
+	// frames this far above the noise floor are active whatever their zero-crossing rate.
+	private static final double ENERGY_MARGIN_DB = 10;
+	// frames this far above the noise floor are active if their zero-crossing rate looks like speech.
+	private static final double ZCR_ENERGY_MARGIN_DB = 5;
+	private static final double MIN_SPEECH_ZCR = 0.05;
+	private static final double MAX_SPEECH_ZCR = 0.5;
+	// nothing quieter than this is activity, however quiet the room.
+	private static final double MIN_ACTIVE_DB = -60;
+	// per-frame smoothing of the noise floor, rising slowly (~10 seconds at 50 frames/s) and falling fast (~200ms).
+	private static final double NOISE_FLOOR_RISE = 0.002;
+	private static final double NOISE_FLOOR_FALL = 0.1;
+
+	private double noiseFloorDb = Double.NaN;
+	private double lastEnergyDb = SILENCE_DB;
+	private double lastZeroCrossingRate = 0;
+
+	/** @return whether the frame (samples 0 to count-1) contains activity. */
+	public boolean isActive(short[] frame, int count) {
+		if (count <= 0) { return false; }
+		long sumOfSquares = 0;
+		int zeroCrossings = 0;
+		int previous = frame[0];
+		for (int i = 0; i < count; i++) {
+			int sample = frame[i];
+			sumOfSquares += (long) sample * sample;
+			if ((sample >= 0) != (previous >= 0)) { zeroCrossings++; }
+			previous = sample;
+		}
+		double rms = Math.sqrt((double) sumOfSquares / count) / 32768.0;
+		lastEnergyDb = (rms > 0) ? Math.max(SILENCE_DB, 20 * Math.log10(rms)) : SILENCE_DB;
+		lastZeroCrossingRate = (double) zeroCrossings / count;
+		if (Double.isNaN(noiseFloorDb)) { noiseFloorDb = lastEnergyDb; }
+
+		boolean active = lastEnergyDb > MIN_ACTIVE_DB && (lastEnergyDb > noiseFloorDb + ENERGY_MARGIN_DB
+				|| (lastEnergyDb > noiseFloorDb + ZCR_ENERGY_MARGIN_DB
+					&& lastZeroCrossingRate >= MIN_SPEECH_ZCR && lastZeroCrossingRate <= MAX_SPEECH_ZCR));
+
+		double rate = (lastEnergyDb > noiseFloorDb) ? NOISE_FLOOR_RISE : NOISE_FLOOR_FALL;
+		noiseFloorDb += rate * (lastEnergyDb - noiseFloorDb);
+		return active;
+	}
+
+	/** @return the energy of the last frame, in dB relative to full scale. */
+	public double getLastEnergyDb() { return lastEnergyDb; }
+
+	/** @return the zero crossings per sample of the last frame. */
+	public double getLastZeroCrossingRate() { return lastZeroCrossingRate; }
+
+	/** @return the current estimate of the background noise energy, in dB relative to full scale. */
+	public double getNoiseFloorDb() { return noiseFloorDb; }
+}
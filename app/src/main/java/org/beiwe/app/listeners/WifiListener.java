@@ -1,54 +1,104 @@
 package org.beiwe.app.listeners;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.net.wifi.ScanResult;
 import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.HandlerThread;
 
+import org.beiwe.app.PermissionHandler;
 import org.beiwe.app.storage.EncryptionEngine;
+import org.beiwe.app.storage.PersistentData;
 import org.beiwe.app.storage.TextFileManager;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**WifiListener
- * WifiListener houses a single public function, scanWifi.  This function grabs the mac
- * addresses of local wifi beacons and writes them to the wifiLog.  It only gets the data
- * if wifi is enabled.
+ * WifiListener records the (hashed) mac addresses of local wifi beacons to the wifiLog.
+ * It listens for scan result broadcasts, so it records the results of every scan the device runs,
+ * including scans triggered by the OS or other apps.  scanWifi(), run on the wifi log timer, asks the
+ * device for a scan, if the device refuses (scans are throttled since Android 9) we record whatever
+ * results it has.  A scan with exactly the same set of BSSIDs as the last recorded scan is not recorded.
+ * The wifiLog is a regular rotating data stream, every line has the time the scan was recorded.  Its files are
+ * named wifiLogV2 so that they are not mistaken for the old one file per scan wifiLog, which had no timestamp column.
+ * It only gets the data if wifi is enabled.
  * @author Eli */
 public class WifiListener {
 	private static WifiManager wifiManager;
-	public static String header = "hashed MAC, frequency, RSSI";
-	
-	/** WifiListener requires an application context in order to access 
-	 * the devices wifi info.  
+	public static String header = "timestamp, hashed MAC, frequency, RSSI";
+
+	private static Set<String> lastRecordedBSSIDs = new HashSet<String>();
+	// the scan results receiver is registered once per process, MainService.doSetup can run more than once.
+	private static HandlerThread scanResultsThread = null;
+
+	/** WifiListener requires an application context in order to access
+	 * the devices wifi info.
 	 * @param appContext requires a Context */
 	private WifiListener (Context appContext) {
-		wifiManager = (WifiManager) appContext.getSystemService(Context.WIFI_SERVICE); }
-	
-	public static void initialize( Context context ) { new WifiListener( context ); } 
-	
+		wifiManager = (WifiManager) appContext.getSystemService(Context.WIFI_SERVICE);
+		// scan results are hashed and encrypted, handle the broadcasts on a background thread.
+		scanResultsThread = new HandlerThread("WifiListener");
+		scanResultsThread.start();
+		appContext.registerReceiver(scanResultsReceiver, new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION),
+				null, new Handler(scanResultsThread.getLooper()));
+	}
+
+	/** Safe to call more than once, only the first call registers the scan results receiver. */
+	public static synchronized void initialize( Context context ) {
+		if (scanResultsThread != null) { return; }
+		new WifiListener( context.getApplicationContext() );
+	}
+
+	private static BroadcastReceiver scanResultsReceiver = new BroadcastReceiver() {
+		@Override public void onReceive(Context context, Intent intent) {
+			if ( !PersistentData.getWifiEnabled() || !PermissionHandler.checkWifiPermissions(context) ) { return; }
+			// a failed scan still sends this broadcast, with the previous (cached) results.
+			if (android.os.Build.VERSION.SDK_INT >= 23 && !intent.getBooleanExtra(WifiManager.EXTRA_RESULTS_UPDATED, true)) { return; }
+			recordScanResults();
+		}
+	};
+
 	//#######################################################################################
 	//#############################  WIFI STATE #############################################
 	//#######################################################################################
 
-	/** Writes to the wifiLog file all mac addresses of local wifi beacons. */
+	/** Requests a wifi scan, the results are recorded when the scan results broadcast arrives.
+	 * If the scan request is refused the most recent results the device has are recorded instead. */
+	@SuppressWarnings("deprecation") // startScan is deprecated in API 28, but is the only way to request a scan.
 	public static void scanWifi() {
 		if ( wifiManager.getWifiState() == WifiManager.WIFI_STATE_ENABLED ) {
-			List<ScanResult> scanResults = wifiManager.getScanResults();
-			if (scanResults != null) {
-				//we save some compute on the encryption here by dumping all the lines to print in one go.
-				StringBuilder data = new StringBuilder();
-				for (ScanResult result : scanResults){
-					data.append( EncryptionEngine.hashMAC( result.BSSID) + "," + result.frequency + "," + result.level );
-					data.append("\n"); }
-
-				// Create a new file, write the data to it, and close the file
-				TextFileManager.getWifiLogFile().newFile(); //note: the file name's timestamp is actually relevant, so we always make a new file.
-				TextFileManager.getWifiLogFile().writeEncrypted( data.toString() );
-				TextFileManager.getWifiLogFile().closeFile();
-//				Log.d("WIFI", "DONE GONE DID SCAN.");
-			} // and provide a debug log statement for data researchers if we cannot get scan data right now.
+			if ( !wifiManager.startScan() ) { recordScanResults(); }
 		} else {
 //			Log.d("WIFI", "YAP SKIPPING DUE TO DISABLEMENT.");
 			TextFileManager.getDebugLogFile().writeEncrypted(System.currentTimeMillis() + " wifi is not available for scanning at this time."); }
 	}
-}
\ No newline at end of file
+
+	/** Writes the device's current scan results to the wifiLog, unless they have the same BSSIDs as the last recorded scan. */
+	private static synchronized void recordScanResults() {
+		List<ScanResult> scanResults = wifiManager.getScanResults();
+		if (scanResults == null || scanResults.isEmpty()) { return; }
+
+		List<String> BSSIDs = new ArrayList<String>(scanResults.size());
+		for (ScanResult result : scanResults) { BSSIDs.add(result.BSSID); }
+		Set<String> BSSIDSet = new HashSet<String>(BSSIDs);
+		if (BSSIDSet.equals(lastRecordedBSSIDs)) { return; }
+		lastRecordedBSSIDs = BSSIDSet;
+
+		//hash all the BSSIDs in one batch, PBKDF2 is by far the most expensive part of a scan.
+		List<String> hashedBSSIDs = EncryptionEngine.hashMACs(BSSIDs);
+		String timestamp = String.valueOf(System.currentTimeMillis());
+		List<String> lines = new ArrayList<String>(scanResults.size());
+		for (int i = 0; i < scanResults.size(); i++) {
+			ScanResult result = scanResults.get(i);
+			lines.add(timestamp + TextFileManager.DELIMITER + hashedBSSIDs.get(i) + TextFileManager.DELIMITER
+					+ result.frequency + TextFileManager.DELIMITER + result.level);
+		}
+		TextFileManager.getWifiLogFile().writeEncrypted(lines);
+	}
+}
@@ -0,0 +1,151 @@
+package org.beiwe.app.storage;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**AacFileEncoder encodes mono 16 bit PCM to AAC-LC in an MP4 file as the PCM is captured, using MediaCodec
+ * and MediaMuxer.  This is the same format MediaRecorder writes for ambient audio, but it lets us decide
+ * frame by frame what goes into the file, and it can run at a survey's sample rate.
+ * Usage: construct, call encode() with each buffer of samples, then finish().  finish() must always be
+ * called, it releases the codec.  Not thread safe, use it from the thread that captures the audio. */
+public class AacFileEncoder implements AudioFileEncoder {
+	private static final String MIME_TYPE = "audio/mp4a-latm";
+	private static final long TIMEOUT_MICROSECONDS = 10000;
+	// a codec that has not produced the end of stream after this many timeouts is not going to.
+	private static final int MAX_END_OF_STREAM_WAITS = 100;
+
+	private final MediaCodec codec;
+	private final MediaMuxer muxer;
+	private final int sampleRate;
+	private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+	private int track = -1;
+	private boolean muxerStarted = false;
+	private long samplesEncoded = 0;
+	private long accessUnitsWritten = 0;
+
+	/** @param path the output file, it is overwritten. */
+	public AacFileEncoder(String path, int sampleRate, int bitRate) throws IOException {
+		this.sampleRate = sampleRate;
+		MediaFormat format = MediaFormat.createAudioFormat(MIME_TYPE, sampleRate, 1);
+		format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+		format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+		codec = MediaCodec.createEncoderByType(MIME_TYPE);
+		codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+		codec.start();
+		try {
+			muxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+		} catch (IOException e) {
+			codec.stop();
+			codec.release();
+			throw e;
+		}
+	}
+
+	/** @return the number of samples encoded so far. */
+	public long getSamplesEncoded() { return samplesEncoded; }
+
+	/** Encodes samples 0 to count-1, blocking briefly if the codec's input buffers are all full. */
+	@SuppressWarnings("deprecation") // getInputBuffers is the only option before API 21.
+	public void encode(short[] samples, int count) {
+		int offset = 0;
+		while (offset < count) {
+			int index = codec.dequeueInputBuffer(TIMEOUT_MICROSECONDS);
+			if (index < 0) {
+				drain(false);
+				continue;
+			}
+			ByteBuffer input = codec.getInputBuffers()[index];
+			input.clear();
+			int chunk = Math.min(count - offset, input.remaining() / 2);
+			input.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().put(samples, offset, chunk);
+			codec.queueInputBuffer(index, 0, chunk * 2, presentationTimeUs(samplesEncoded), 0);
+			samplesEncoded += chunk;
+			offset += chunk;
+			drain(false);
+		}
+	}
+
+	/** Encodes the PCM between the buffer's position and limit, blocking briefly if the codec's input buffers are all full. */
+	@Override
+	@SuppressWarnings("deprecation")
+	public void encode(ByteBuffer pcm) {
+		while (pcm.remaining() >= 2) {
+			int index = codec.dequeueInputBuffer(TIMEOUT_MICROSECONDS);
+			if (index < 0) {
+				drain(false);
+				continue;
+			}
+			ByteBuffer input = codec.getInputBuffers()[index];
+			input.clear();
+			int chunk = Math.min(pcm.remaining(), input.remaining()) & ~1; // whole samples
+			int limit = pcm.limit();
+			pcm.limit(pcm.position() + chunk);
+			input.put(pcm);
+			pcm.limit(limit);
+			codec.queueInputBuffer(index, 0, chunk, presentationTimeUs(samplesEncoded), 0);
+			samplesEncoded += chunk / 2;
+			drain(false);
+		}
+	}
+
+	/** Flushes the codec and finalizes the file, then releases everything.
+	 * @return false if nothing was encoded, in which case the file is not a valid MP4 and should be deleted. */
+	@Override
+	public boolean finish() {
+		try {
+			int index = codec.dequeueInputBuffer(TIMEOUT_MICROSECONDS * 10);
+			if (index >= 0) {
+				codec.queueInputBuffer(index, 0, 0, presentationTimeUs(samplesEncoded), MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+				drain(true);
+			}
+			if (muxerStarted && accessUnitsWritten > 0) {
+				muxer.stop();
+				return true;
+			}
+			return false;
+		} finally {
+			codec.stop();
+			codec.release();
+			muxer.release();
+		}
+	}
+
+	/** Moves encoded output from the codec to the muxer.
+	 * @param untilEndOfStream wait for the end of stream flag, otherwise return when there is no output ready. */
+	@SuppressWarnings("deprecation")
+	private void drain(boolean untilEndOfStream) {
+		int waits = 0;
+		while (true) {
+			int index = codec.dequeueOutputBuffer(bufferInfo, untilEndOfStream ? TIMEOUT_MICROSECONDS : 0);
+			if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+				if (untilEndOfStream && ++waits < MAX_END_OF_STREAM_WAITS) { continue; }
+				return;
+			}
+			if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+				track = muxer.addTrack(codec.getOutputFormat());
+				muxer.start();
+				muxerStarted = true;
+				continue;
+			}
+			if (index < 0) { continue; } // INFO_OUTPUT_BUFFERS_CHANGED, getOutputBuffers() is called per buffer anyway.
+			ByteBuffer output = codec.getOutputBuffers()[index];
+			boolean isConfig = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+			if (bufferInfo.size > 0 && !isConfig && muxerStarted) {
+				output.position(bufferInfo.offset);
+				output.limit(bufferInfo.offset + bufferInfo.size);
+				muxer.writeSampleData(track, output, bufferInfo);
+				accessUnitsWritten++;
+			}
+			codec.releaseOutputBuffer(index, false);
+			if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) { return; }
+		}
+	}
+
+	private long presentationTimeUs(long samples) { return samples * 1000000L / sampleRate; }
+}
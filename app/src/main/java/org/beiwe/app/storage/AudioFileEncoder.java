@@ -0,0 +1,18 @@
+package org.beiwe.app.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**An AudioFileEncoder writes mono 16 bit PCM into an audio file as it is captured.
+ * Usage: construct, call encode() with each buffer of audio, then finish().  finish() must always be
+ * called, it releases whatever the encoder holds.  Not thread safe, use it from the thread that captures
+ * the audio. */
+public interface AudioFileEncoder {
+	/** Encodes the little-endian (native order) samples between the buffer's position and limit,
+	 * consuming them (the position ends up at the limit, or 1 byte before it for a trailing half sample). */
+	void encode(ByteBuffer pcm) throws IOException;
+
+	/** Completes the file.
+	 * @return false if nothing was encoded, in which case the file may not be valid and should be deleted. */
+	boolean finish() throws IOException;
+}
@@ -5,16 +5,18 @@ import android.util.Log;
 
 import org.beiwe.app.CrashHandler;
 
-import java.io.DataInputStream;
-import java.io.File;
+import java.io.BufferedOutputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.security.InvalidKeyException;
 import java.security.spec.InvalidKeySpecException;
 
 public class AudioFileManager {
+	private static final int WAVE_HEADER_LENGTH = 44;
 
 	public static void delete(String fileName) { TextFileManager.delete(fileName); }
 	
@@ -31,25 +33,48 @@ public class AudioFileManager {
 		}
     }
 
-    /** Reads in the existing temporary audio file and encrypts it. Generates AES keys as needed.
-     * Behavior is to spend as little time writing the file as possible, at the expense of memory.*/
+    /** Encrypts the existing temporary audio file into the named file. Generates AES keys as needed.
+     * The audio is streamed through the cipher a chunk at a time, so even a long wav recording is never
+     * held in memory. The output is the same as ever: the RSA encrypted key line, then the encrypted audio line.
+     * If the encryption fails the partial output is deleted, it must never be uploaded. */
 	public static void encryptAudioFile(String unencryptedTempAudioFilePath, String filename, Context appContext) {
-		if (unencryptedTempAudioFilePath != null) {
-			// If the audio file has been written to, encrypt the audio file
-			byte[] aesKey = EncryptionEngine.newAESKey();
-			String encryptedRSA = null;
-			String encryptedAudio = null;
-			try{encryptedRSA = EncryptionEngine.encryptRSA( aesKey ); 
-				encryptedAudio = EncryptionEngine.encryptAES( readInAudioFile(unencryptedTempAudioFilePath, appContext), aesKey ); }
-			catch (InvalidKeySpecException e) {
-				Log.e("AudioFileManager", "encrypted write operation to the audio file without a keyFile.");
-				CrashHandler.writeCrashlog(e, appContext); }
-	        catch (InvalidKeyException e) {
-	        	Log.e("AudioFileManager", "encrypted write operation to the audio file without an aes key? how is that even...");
-	        	CrashHandler.writeCrashlog(e, appContext); }
-			writePlaintext( encryptedRSA, filename, appContext );
-			writePlaintext( encryptedAudio, filename, appContext );
-		}
+		if (unencryptedTempAudioFilePath == null) { return; }
+		// If the audio file has been written to, encrypt the audio file
+		byte[] aesKey = EncryptionEngine.newAESKey();
+		FileInputStream audioIn = null;
+		OutputStream encryptedOut = null;
+		boolean complete = false;
+		try {
+			String encryptedRSA = EncryptionEngine.encryptRSA( aesKey );
+			audioIn = new FileInputStream( unencryptedTempAudioFilePath );
+			//We use MODE_APPEND because... we know it works.
+			encryptedOut = new BufferedOutputStream( appContext.openFileOutput( filename, Context.MODE_APPEND ) );
+			encryptedOut.write( encryptedRSA.getBytes() );
+			encryptedOut.write( '\n' );
+			EncryptionEngine.encryptAES( audioIn, encryptedOut, aesKey );
+			encryptedOut.write( '\n' );
+			encryptedOut.flush();
+			complete = true; }
+		catch (InvalidKeySpecException e) {
+			Log.e("AudioFileManager", "encrypted write operation to the audio file without a keyFile.");
+			CrashHandler.writeCrashlog(e, appContext); }
+		catch (InvalidKeyException e) {
+			Log.e("AudioFileManager", "encrypted write operation to the audio file without an aes key? how is that even...");
+			CrashHandler.writeCrashlog(e, appContext); }
+		catch (FileNotFoundException e) {
+			Log.e("AudioRecording", "file " + unencryptedTempAudioFilePath + " does not exist");
+			CrashHandler.writeCrashlog(e, appContext); }
+		catch (IOException e) {
+			Log.e("AudioRecording", "error encrypting " + unencryptedTempAudioFilePath + ": " + e.getMessage() );
+			CrashHandler.writeCrashlog(e, appContext); }
+		finally {
+			try { if (audioIn != null) { audioIn.close(); } }
+			catch (IOException e) { e.printStackTrace(); }
+			try { if (encryptedOut != null) { encryptedOut.close(); } }
+			catch (IOException e) {
+				e.printStackTrace();
+				complete = false; }
+			if (!complete && encryptedOut != null) { delete(filename); } }
 	}
 
 	
@@ -73,56 +98,35 @@ public class AudioFileManager {
 	}
     
 	
-	/** Reads a byte array of the current temp audio file's contents.
-	 * @return byte array of file contents. */
-	public static synchronized byte[] readInAudioFile(String unencryptedTempAudioFilePath, Context appContext) {
-		DataInputStream dataInputStream;
-		byte[] data = null;
-		File file = new File(unencryptedTempAudioFilePath);
-		try {  //Read the (data) input stream, into a bytearray.  Catch exceptions.
-			dataInputStream = new DataInputStream( new FileInputStream( file ) );
-			data = new byte[ (int) file.length() ];
-			try{ dataInputStream.readFully(data); }
-			catch (IOException e) {
-				Log.e("DataFileManager", "error reading " + unencryptedTempAudioFilePath);
-				CrashHandler.writeCrashlog(e, appContext); }
-			dataInputStream.close(); }
-		catch (FileNotFoundException e) {
-			Log.e("AudioRecording", "file " + unencryptedTempAudioFilePath + " does not exist");
-			CrashHandler.writeCrashlog(e, appContext); }
-		catch (IOException e) {
-			Log.e("AudioRecording", "could not close " + unencryptedTempAudioFilePath);
-			CrashHandler.writeCrashlog(e, appContext); }
-		return data;
-	}
-	
-	/** Used to transform a raw recording file into a wav file.
-	 * @param inFilename File name of the raw file
-	 * @param outFilename Name of the file to copy it to
-	 * @param sampleRate The sample rate of the provided raw file
-	 * @param bitDepth The bit depth (bits per sample) of the raw file
-	 * @param bufferSize size of the read-in buffer */
-	public static void copyToWaveFile( String inFilename, String outFilename, long sampleRate, int bitDepth, int bufferSize ) {
+	/** Creates a wav file containing only a header, so that audio can be written to it as it is recorded.
+	 * The sizes in the header are 0 until finishWaveFile() fills them in.
+	 * @param filePath the wav file, it is overwritten.
+	 * @param sampleRate The sample rate of the audio
+	 * @param bitDepth The bit depth (bits per sample) of the audio
+	 * @return the output stream, positioned after the header. */
+	public static FileOutputStream startWaveFile( String filePath, long sampleRate, int bitDepth ) throws IOException {
 		int channels = 1;
 		long byteRate = (bitDepth * sampleRate * channels) / 8;
-		byte[] data = new byte[bufferSize];
+		FileOutputStream waveFileOut = new FileOutputStream( filePath );
+		try { writeWaveFileHeader( waveFileOut, 0, 36, sampleRate, channels, byteRate, bitDepth ); }
+		catch ( IOException e ) { waveFileOut.close(); throw e; }
+		return waveFileOut;
+	}
+	
+	/** Fills in the sizes in the header of a wav file created by startWaveFile(), once all the audio has
+	 * been written and the stream closed.  Only the header is rewritten, so this takes no time however long
+	 * the recording is. */
+	public static void finishWaveFile( String filePath ) throws IOException {
+		RandomAccessFile waveFile = new RandomAccessFile( filePath, "rw" );
 		try {
-			FileInputStream rawFileIn = new FileInputStream( inFilename );
-			FileOutputStream waveFileOut = new FileOutputStream( outFilename );
-			long totalAudioLen = rawFileIn.getChannel().size();
-			long totalDataLen = totalAudioLen + 36;
-			writeWaveFileHeader( waveFileOut, totalAudioLen, totalDataLen,
-								 sampleRate, channels, byteRate, bitDepth );
-
-			while( rawFileIn.read( data ) != -1 ) {
-				waveFileOut.write( data );
-			}
-			
-			rawFileIn.close();
-			waveFileOut.close();
+			long totalAudioLen = waveFile.length() - WAVE_HEADER_LENGTH;
+			// RandomAccessFile is big-endian, wav is little-endian.
+			waveFile.seek( 4 );
+			waveFile.writeInt( Integer.reverseBytes( (int) ( totalAudioLen + 36 ) ) );
+			waveFile.seek( 40 );
+			waveFile.writeInt( Integer.reverseBytes( (int) totalAudioLen ) );
 		}
-		catch ( FileNotFoundException e ) { e.printStackTrace(); }
-		catch ( IOException e ) { e.printStackTrace(); }
+		finally { waveFile.close(); }
 	}
 	
 	/**Handles the gory details of writing a wav header to the file.
@@ -138,7 +142,7 @@ public class AudioFileManager {
 			long longSampleRate, int channels, long byteRate, int bitDepth ) throws IOException {
 		/* this was pulled, along with a bunch of other code, from 
 		 * //http://www.edumobile.org/android/audio-recording-in-wav-format-in-android-programming/ */
-		byte[] header = new byte[44];
+		byte[] header = new byte[WAVE_HEADER_LENGTH];
 		header[0] = 'R'; // RIFF/WAVE header
 		header[1] = 'I';
 		header[2] = 'F';
@@ -183,6 +187,6 @@ public class AudioFileManager {
 		header[41] = (byte) ( ( totalAudioLen >> 8 ) & 0xff );
 		header[42] = (byte) ( ( totalAudioLen >> 16 ) & 0xff );
 		header[43] = (byte) ( ( totalAudioLen >> 24 ) & 0xff );
-		audioFile.write( header, 0, 44 );
+		audioFile.write( header, 0, WAVE_HEADER_LENGTH );
 	}
 }
\ No newline at end of file
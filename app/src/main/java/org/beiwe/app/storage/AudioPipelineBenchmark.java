@@ -0,0 +1,141 @@
+package org.beiwe.app.storage;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Debug;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**AudioPipelineBenchmark times the device only stage of the audio file pipeline, AAC encoding (MediaCodec and
+ * MediaMuxer), on synthetic audio.  The pure Java stages (wav and FLAC encoding, the streaming AES encryption
+ * and Base64) are benchmarked on the JVM by AudioPipelineBenchmarkTest.
+ * For each duration (1, 15 and 60 minutes of 44.1kHz mono by default) it reports the throughput, how many times
+ * faster than real time it ran, the peak Java heap in use while it ran (sampled), and the bytes allocated
+ * (process wide, API 23+).  Results go to logcat and the debug log.
+ * Run it from the debug interface, never on the main thread.  Durations without room for their files are skipped. */
+public class AudioPipelineBenchmark {
+	private static final String LOG_TAG = "AudioPipelineBenchmark";
+	private static final int SAMPLE_RATE = 44100;
+	private static final int AAC_BIT_RATE = 128000;
+	private static final long HEAP_SAMPLE_INTERVAL_MILLISECONDS = 5;
+	public static final int[] DEFAULT_MINUTES = { 1, 15, 60 };
+
+	private static final String AAC_FILENAME = "benchmarkAudioAac";
+	// these are deleted at the end of every run, and must never be uploaded.
+	public static final String[] tempFilenames = { AAC_FILENAME };
+
+	/** A stage of the benchmark. @return the number of bytes of input it processed. */
+	private interface Stage { long run() throws Exception; }
+
+	public static synchronized void run(Context appContext, int[] minutes) {
+		for (int duration : minutes) {
+			long aacBytes = duration * 60L * AAC_BIT_RATE / 8;
+			if (appContext.getFilesDir().getUsableSpace() < aacBytes * 2) {
+				report("skipping " + duration + " min, not enough free space");
+				continue;
+			}
+			try { runDuration(appContext, duration); }
+			finally { for (String filename : tempFilenames) { AudioFileManager.delete(filename); } }
+		}
+	}
+
+	private static void runDuration(final Context appContext, int minutes) {
+		final int seconds = minutes * 60;
+		final ByteBuffer second = syntheticSecond();
+		final String directory = appContext.getFilesDir().getAbsolutePath() + "/";
+
+		measure(minutes, "aac encode", new Stage() { @Override public long run() throws Exception {
+			return encode(new AacFileEncoder(directory + AAC_FILENAME, SAMPLE_RATE, AAC_BIT_RATE), second, seconds);
+		} } );
+	}
+
+	/*######################## Stages ########################*/
+
+	private static long encode(AudioFileEncoder encoder, ByteBuffer second, int seconds) throws IOException {
+		for (int i = 0; i < seconds; i++) {
+			second.clear();
+			encoder.encode(second);
+		}
+		encoder.finish();
+		return (long) seconds * second.capacity();
+	}
+
+	/** One second of a 440Hz tone in noise, so the AAC encoder has something realistic to work on. */
+	private static ByteBuffer syntheticSecond() {
+		ByteBuffer second = ByteBuffer.allocateDirect(SAMPLE_RATE * 2).order(ByteOrder.nativeOrder());
+		long seed = 1;
+		for (int i = 0; i < SAMPLE_RATE; i++) {
+			seed = seed * 6364136223846793005L + 1442695040888963407L;
+			int noise = (int) (seed >>> 54) - 512;
+			second.putShort((short) (6000 * Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE) + noise));
+		}
+		return second;
+	}
+
+	/*######################## Measurement ########################*/
+
+	private static void measure(int minutes, String name, Stage stage) {
+		System.gc();
+		HeapSampler sampler = new HeapSampler();
+		Thread samplerThread = new Thread(sampler, "AudioPipelineBenchmark heap sampler");
+		long allocatedBefore = bytesAllocated();
+		samplerThread.start();
+		long start = System.nanoTime();
+		long bytes;
+		try { bytes = stage.run(); }
+		catch (Exception e) {
+			sampler.running = false;
+			report(minutes + " min " + name + " failed: " + e);
+			return;
+		}
+		long elapsedNanos = System.nanoTime() - start;
+		sampler.running = false;
+		try { samplerThread.join(); }
+		catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+		long allocated = bytesAllocated() - allocatedBefore;
+
+		double elapsedSeconds = elapsedNanos / 1e9;
+		String line = minutes + " min " + name + ": " + megabytes(bytes) + "MB in " + Math.round(elapsedSeconds * 1000) + "ms, "
+				+ megabytes(bytes / elapsedSeconds) + "MB/s, " + Math.round(minutes * 60 / elapsedSeconds) + "x real time, "
+				+ "peak heap " + megabytes(sampler.peak) + "MB";
+		if (allocatedBefore >= 0) {
+			line += ", allocated " + megabytes(allocated) + "MB (" + megabytes(allocated / elapsedSeconds) + "MB/s)";
+		}
+		report(line);
+	}
+
+	/** @return the bytes the runtime has allocated since the process started, -1 if we can't know (before API 23). */
+	private static long bytesAllocated() {
+		if (Build.VERSION.SDK_INT < 23) { return -1; }
+		String allocated = Debug.getRuntimeStat("art.gc.bytes-allocated");
+		if (allocated == null) { return -1; }
+		try { return Long.parseLong(allocated); }
+		catch (NumberFormatException e) { return -1; }
+	}
+
+	private static double megabytes(double bytes) { return Math.round(bytes / 1024 / 1024 * 10) / 10.0; }
+
+	private static void report(String line) {
+		Log.i(LOG_TAG, line);
+		TextFileManager.writeDebugLogStatement(LOG_TAG + " " + line);
+	}
+
+	/** Polls the Java heap in use until stopped, the peak of a stage's memory use. */
+	private static class HeapSampler implements Runnable {
+		volatile boolean running = true;
+		volatile long peak = 0;
+
+		@Override
+		public void run() {
+			Runtime runtime = Runtime.getRuntime();
+			while (running) {
+				peak = Math.max(peak, runtime.totalMemory() - runtime.freeMemory());
+				try { Thread.sleep(HEAP_SAMPLE_INTERVAL_MILLISECONDS); }
+				catch (InterruptedException e) { return; }
+			}
+		}
+	}
+}
@@ -9,6 +9,9 @@ import org.spongycastle.crypto.digests.SHA256Digest;
 import org.spongycastle.crypto.generators.PKCS5S2ParametersGenerator;
 import org.spongycastle.crypto.params.KeyParameter;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
@@ -19,12 +22,25 @@ import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.KeyGenerator;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -36,6 +52,52 @@ import javax.crypto.spec.SecretKeySpec;
 public class EncryptionEngine {
 	
 	private static PublicKey RSAkey = null;
+	// a multiple of the AES block size, the plaintext read per chunk when encrypting a stream.
+	private static final int AES_STREAM_BUFFER_SIZE = 64 * 1024;
+	
+	/** Url-safe Base64 without line wrapping.  The app uses android.util.Base64, JVM tests supply their own. */
+	interface Base64Encoder { byte[] encode(byte[] input, int offset, int length); }
+	private static final Base64Encoder urlSafeBase64 = new Base64Encoder() {
+		@Override public byte[] encode(byte[] input, int offset, int length) { return Base64.encode(input, offset, length, Base64.NO_WRAP | Base64.URL_SAFE); }
+	};
+	
+	/** An immutable snapshot of the parameters used for hashing identifiers.  Reading these from
+	 * SharedPreferences on every hash is wasteful, and they only change when device settings are written
+	 * (at registration and on settings updates), which calls refreshHashingParameters().
+	 * The version increases on every refresh, anything derived from a snapshot (the PBKDF2 cache) is
+	 * only valid for that version. */
+	public static final class HashingParameters {
+		public final int version;
+		public final boolean useAnonymizedHashing;
+		public final int iterations;
+		private final byte[] salt;
+		
+		private HashingParameters(int version, boolean useAnonymizedHashing, byte[] salt, int iterations) {
+			this.version = version;
+			this.useAnonymizedHashing = useAnonymizedHashing;
+			this.salt = salt.clone();
+			this.iterations = iterations;
+		}
+	}
+	
+	private static volatile HashingParameters hashingParameters = null;
+	
+	/* PBKDF2 is deliberately expensive, and the same few hundred MAC addresses and phone numbers are
+	 * hashed over and over, so we keep a bounded LRU cache of input to hash.  The cache is only valid for
+	 * the HashingParameters version it was filled with, it is cleared when a new version is seen.
+	 * The cache is not persisted: there is no key on the device that could decrypt it, and writing
+	 * raw MAC addresses and phone numbers to disk in the clear is exactly what hashing is there to prevent. */
+	private static final int PBKDF2_CACHE_SIZE = 1024;
+	private static int pbkdf2CacheVersion = 0;
+	private static final LinkedHashMap<String, String> pbkdf2Cache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+		@Override protected boolean removeEldestEntry(Map.Entry<String, String> eldest) { return size() > PBKDF2_CACHE_SIZE; }
+	};
+	
+	/* The PBKDF2 password is the identifier being hashed, so the HMAC cannot be keyed ahead of time, but
+	 * the generator (digest and HMAC state) is reusable, each thread keeps one instead of allocating it per hash. */
+	private static final ThreadLocal<PKCS5S2ParametersGenerator> pbkdf2Generators = new ThreadLocal<PKCS5S2ParametersGenerator>() {
+		@Override protected PKCS5S2ParametersGenerator initialValue() { return new PKCS5S2ParametersGenerator(new SHA256Digest()); }
+	};
 	
 	/*############################################################################
 	 * ############################### Hashing ###################################
@@ -70,20 +132,58 @@ public class EncryptionEngine {
 		return toBase64String( hash.digest() );		
 	}
 
-	/** Takes a string as input, outputs a PBKDF2 hash.
+	/** Takes a string as input, outputs a PBKDF2 hash.  Results are memoized, see pbkdf2Cache.
 	 * @param input A String to hash.
 	 * @return a Base64 String of the hash result. */
 	public static String PBKDF2Hash (String input) {
-		byte[] salt = PersistentData.getHashSalt();
-		int iterations = PersistentData.getHashIterations();
-		PKCS5S2ParametersGenerator generator = new PKCS5S2ParametersGenerator(new SHA256Digest());
-		generator.init(PBEParametersGenerator.PKCS5PasswordToUTF8Bytes(input.toCharArray()), salt, iterations);
+		HashingParameters parameters = getHashingParameters();
+		String cached = getCachedPBKDF2Hash(input, parameters);
+		if (cached != null) { return cached; }
+		// hash outside of the lock so that a cache miss does not block other threads' cache hits.
+		String hash = uncachedPBKDF2Hash(input, parameters);
+		synchronized (pbkdf2Cache) {
+			// don't cache a result computed with parameters that have been replaced in the meantime.
+			if (parameters.version == pbkdf2CacheVersion) { pbkdf2Cache.put(input, hash); }
+		}
+		return hash;
+	}
+	
+	/** @return the cached PBKDF2 hash of input under these parameters, or null if it is not cached. */
+	private static String getCachedPBKDF2Hash (String input, HashingParameters parameters) {
+		synchronized (pbkdf2Cache) {
+			if (parameters.version != pbkdf2CacheVersion) {
+				pbkdf2Cache.clear();
+				pbkdf2CacheVersion = parameters.version;
+			}
+			return pbkdf2Cache.get(input);
+		}
+	}
+	
+	private static String uncachedPBKDF2Hash (String input, HashingParameters parameters) {
+		PKCS5S2ParametersGenerator generator = pbkdf2Generators.get();
+		generator.init(PBEParametersGenerator.PKCS5PasswordToUTF8Bytes(input.toCharArray()), parameters.salt, parameters.iterations);
 
 		// keySize is 512 because we think it is the size of the digest
 		KeyParameter key = (KeyParameter)generator.generateDerivedMacParameters(512);
 		return toBase64String(key.getKey());
 	}
 	
+	/** @return the current hashing parameters, loading them from PersistentData on first use. */
+	public static HashingParameters getHashingParameters () {
+		HashingParameters parameters = hashingParameters;
+		if (parameters == null) { parameters = refreshHashingParameters(); }
+		return parameters;
+	}
+	
+	/** Re-reads the hashing parameters from PersistentData into a new snapshot with a new version.
+	 * Must be called whenever the salt, iteration count or anonymized hashing setting may have changed. */
+	public static synchronized HashingParameters refreshHashingParameters () {
+		int version = (hashingParameters == null) ? 1 : hashingParameters.version + 1;
+		hashingParameters = new HashingParameters(version, PersistentData.getUseAnonymizedHashing(),
+				PersistentData.getHashSalt(), PersistentData.getHashIterations());
+		return hashingParameters;
+	}
+	
 	/**Converts a phone number into a 64-character hexadecimal string.
 	 * First standardizes the phone numbers by grabbing the last 10 digits, so
 	 * that hopefully, two identical phone numbers will get identical hashes,
@@ -107,7 +207,7 @@ public class EncryptionEngine {
 
 		// Hash the last 10 digits
 
-		if (PersistentData.getUseAnonymizedHashing()) {
+		if (getHashingParameters().useAnonymizedHashing) {
 			return PBKDF2Hash(last10);
 		}
 		else {
@@ -116,7 +216,7 @@ public class EncryptionEngine {
 	}
 
 	public static String hashMAC(String MAC) {
-		if (PersistentData.getUseAnonymizedHashing()) {
+		if (getHashingParameters().useAnonymizedHashing) {
 			return PBKDF2Hash(MAC);
 		}
 		else {
@@ -124,6 +224,96 @@ public class EncryptionEngine {
 		}
 	}
 	
+	/* A small pool for batch hashing, one thread per spare core (at most 4).  Threads time out when idle
+	 * so the pool costs nothing between Wi-Fi scans.  (ForkJoinPool requires API 21, we support 19.) */
+	private static final int HASHING_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+	private static ThreadPoolExecutor hashingExecutor = null;
+	
+	private static synchronized ThreadPoolExecutor getHashingExecutor() {
+		if (hashingExecutor == null) {
+			hashingExecutor = new ThreadPoolExecutor(HASHING_THREADS, HASHING_THREADS, 30, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				@Override public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "batch hashing");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			hashingExecutor.allowCoreThreadTimeOut(true);
+		}
+		return hashingExecutor;
+	}
+	
+	/**Hashes a batch of MAC addresses, e.g. all BSSIDs of a Wi-Fi scan, equivalent to calling hashMAC on each.
+	 * Identifiers are de-duplicated within the batch.  When anonymized (PBKDF2) hashing is enabled cache hits
+	 * are resolved on the calling thread, and only the misses are split across the batch hashing pool.
+	 * @param MACs the identifiers to hash.
+	 * @return the hashes, in the same order as the input. */
+	public static List<String> hashMACs(List<String> MACs) {
+		// de-duplicate, unique holds every distinct identifier once, in first-seen order.
+		Map<String, String> hashes = new HashMap<String, String>();
+		final List<String> unique = new ArrayList<String>();
+		for (String MAC : MACs) {
+			if (!hashes.containsKey(MAC)) {
+				hashes.put(MAC, null);
+				unique.add(MAC);
+			}
+		}
+		
+		HashingParameters parameters = getHashingParameters();
+		if (!parameters.useAnonymizedHashing) {
+			for (String MAC : unique) { hashes.put(MAC, hashMAC(MAC)); }
+			return inOrder(MACs, hashes);
+		}
+		
+		// a scan is mostly MACs we have seen before, those are not worth a trip through the pool.
+		final List<String> misses = new ArrayList<String>();
+		for (String MAC : unique) {
+			String cached = getCachedPBKDF2Hash(MAC, parameters);
+			if (cached != null) { hashes.put(MAC, cached); }
+			else { misses.add(MAC); }
+		}
+		
+		if (misses.size() < 2 || HASHING_THREADS < 2) {
+			for (String MAC : misses) { hashes.put(MAC, PBKDF2Hash(MAC)); }
+		} else {
+			// one task per thread, each hashing an interleaved slice of the misses.
+			List<Future<String[]>> futures = new ArrayList<Future<String[]>>();
+			int slices = Math.min(HASHING_THREADS, misses.size());
+			for (int slice = 0; slice < slices; slice++) {
+				final int first = slice;
+				final int step = slices;
+				futures.add(getHashingExecutor().submit(new Callable<String[]>() {
+					@Override public String[] call() {
+						String[] results = new String[misses.size()];
+						for (int i = first; i < misses.size(); i += step) { results[i] = PBKDF2Hash(misses.get(i)); }
+						return results;
+					}
+				}));
+			}
+			for (int slice = 0; slice < slices; slice++) {
+				String[] results = null;
+				try { results = futures.get(slice).get(); }
+				catch (InterruptedException e) {
+					Log.e("EncryptionEngine", "batch hashing interrupted");
+					Thread.currentThread().interrupt(); }
+				catch (ExecutionException e) { Log.e("EncryptionEngine", "batch hashing failed: " + e.getCause()); }
+				// if a slice failed we hash it on this thread.
+				for (int i = slice; i < misses.size(); i += slices) {
+					hashes.put(misses.get(i), results != null ? results[i] : PBKDF2Hash(misses.get(i)));
+				}
+			}
+		}
+		return inOrder(MACs, hashes);
+	}
+	
+	/** @return the hash of each of MACs, in the same order. */
+	private static List<String> inOrder(List<String> MACs, Map<String, String> hashes) {
+		List<String> ordered = new ArrayList<String>(MACs.size());
+		for (String MAC : MACs) { ordered.add(hashes.get(MAC)); }
+		return ordered;
+	}
+	
 	
 	/*############################################################################
 	 * ############################ Encryption ###################################
@@ -187,8 +377,75 @@ public class EncryptionEngine {
 		//create an iv, 16 bytes of data
 		SecureRandom random = new SecureRandom();
 		IvParameterSpec ivSpec = new IvParameterSpec( random.generateSeed(16) );
+		Cipher cipher = newAESCipher( aesKey, ivSpec );
 		
-		//initialize an AES encryption cipher, we are using CBC mode.
+		//encrypt the data
+		try { return toBase64String( ivSpec.getIV() ) + ":" +
+					 toBase64String( cipher.doFinal( plainText ) ); }
+		catch (IllegalBlockSizeException e) { //not possible, block size is coded to use the pkcs5 spec
+			Log.e("Encryption Engine", "an impossible error ocurred" );
+			e.printStackTrace(); 
+			throw new NullPointerException("device is too stupid to live"); }
+		catch (BadPaddingException e) {
+			Log.e("Encryption Engine", "an unknown error occured in AES padding" );
+			e.printStackTrace(); 
+			throw new NullPointerException("an unknown error occured in AES encryption."); }
+	}
+	
+	/**Encrypts a stream using provided AES key, writing exactly what encryptAES would return for the same data,
+	 * a chunk at a time, so large files (audio) never have to be in memory all at once.
+	 * The url-safe Base64 of the ciphertext is written in multiples of 3 bytes, so the chunks concatenate
+	 * into the same string as encoding it all at once.
+	 * @param plainText read to the end, not closed.
+	 * @param output not closed.
+	 * @throws InvalidKeyException
+	 * @throws InvalidKeySpecException
+	 * @throws IOException on read or write errors of the streams. */
+	public static void encryptAES(InputStream plainText, OutputStream output, byte[] aesKey) throws InvalidKeyException, InvalidKeySpecException, IOException {
+		if (RSAkey == null) readKey(); 
+		SecureRandom random = new SecureRandom();
+		IvParameterSpec ivSpec = new IvParameterSpec( random.generateSeed(16) );
+		Cipher cipher = newAESCipher( aesKey, ivSpec );
+		output.write( toBase64Array( ivSpec.getIV() ) );
+		output.write( ':' );
+		encryptAESStream( plainText, output, cipher, urlSafeBase64 );
+	}
+	
+	/**Writes the Base64 of the encryption of plainText with the initialized cipher, a chunk at a time.
+	 * Has no Android dependencies apart from the encoder, so it can be benchmarked on the JVM. */
+	static void encryptAESStream(InputStream plainText, OutputStream output, Cipher cipher, Base64Encoder base64) throws IOException {
+		byte[] buffer = new byte[AES_STREAM_BUFFER_SIZE];
+		// ciphertext not yet encoded: fewer than 3 carried bytes, the output of one update, and a final block.
+		byte[] encrypted = new byte[2 + AES_STREAM_BUFFER_SIZE + 2 * 16];
+		int carried = 0;
+		int read;
+		try {
+			while ( ( read = plainText.read( buffer ) ) != -1 ) {
+				int total = carried + cipher.update( buffer, 0, read, encrypted, carried );
+				int encodable = total - total % 3;
+				output.write( base64.encode( encrypted, 0, encodable ) );
+				carried = total - encodable;
+				System.arraycopy( encrypted, encodable, encrypted, 0, carried );
+			}
+			int total = carried + cipher.doFinal( encrypted, carried );
+			output.write( base64.encode( encrypted, 0, total ) );
+		}
+		catch (ShortBufferException e) { //not possible, encrypted has room for an update and a final block
+			Log.e("Encryption Engine", "an impossible error ocurred" );
+			e.printStackTrace(); 
+			throw new NullPointerException("AES output buffer too small."); }
+		catch (IllegalBlockSizeException e) { //not possible, block size is coded to use the pkcs5 spec
+			Log.e("Encryption Engine", "an impossible error ocurred" );
+			e.printStackTrace(); 
+			throw new NullPointerException("device is too stupid to live"); }
+		catch (BadPaddingException e) {
+			Log.e("Encryption Engine", "an unknown error occured in AES padding" );
+			e.printStackTrace(); 
+			throw new NullPointerException("an unknown error occured in AES encryption."); }
+	}
+	
+	/**Initializes an AES encryption cipher, we are using CBC mode. */
+	private static Cipher newAESCipher(byte[] aesKey, IvParameterSpec ivSpec) throws InvalidKeyException {
 		SecretKeySpec secretKeySpec = new SecretKeySpec( aesKey, "AES" );
 		Cipher cipher = null;
 		try { cipher = Cipher.getInstance("AES/CBC/PKCS5Padding"); }
@@ -205,18 +462,7 @@ public class EncryptionEngine {
 			Log.e("Encryption Engine", "InvalidAlgorithmParameterException during AES encryption..." );
 			e.printStackTrace();
 			throw new NullPointerException("InvalidAlgorithmParameterException during AES encryption..."); }
-		
-		//encrypt the data
-		try { return toBase64String( ivSpec.getIV() ) + ":" +
-					 toBase64String( cipher.doFinal( plainText ) ); }
-		catch (IllegalBlockSizeException e) { //not possible, block size is coded to use the pkcs5 spec
-			Log.e("Encryption Engine", "an impossible error ocurred" );
-			e.printStackTrace(); 
-			throw new NullPointerException("device is too stupid to live"); }
-		catch (BadPaddingException e) {
-			Log.e("Encryption Engine", "an unknown error occured in AES padding" );
-			e.printStackTrace(); 
-			throw new NullPointerException("an unknown error occured in AES encryption."); }
+		return cipher;
 	}
 	
 	/* #######################################################################
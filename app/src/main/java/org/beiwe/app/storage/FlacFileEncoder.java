@@ -0,0 +1,297 @@
+package org.beiwe.app.storage;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**FlacFileEncoder losslessly compresses mono 16 bit PCM into a FLAC file as it is captured.
+ * Every BLOCK_SIZE samples become one frame, coded as a constant (digital silence), with whichever fixed
+ * polynomial predictor (order 0 to 4) gives the smallest partitioned Rice coded residual, or verbatim if
+ * nothing beats that.  This is the "fixed" subset of FLAC that every decoder supports, speech typically
+ * compresses to around half the size of the wav.
+ * The STREAMINFO block (total samples, frame sizes, MD5 of the audio) is only known at the end, finish()
+ * rewrites it in place.  All buffers are allocated in the constructor. */
+public class FlacFileEncoder implements AudioFileEncoder {
+	private static final int BLOCK_SIZE = 4096;
+	private static final int BLOCK_SIZE_CODE = 12; // 256 * 2^(12 - 8) samples
+	private static final int MAX_FIXED_ORDER = 4;
+	private static final int MAX_PARTITION_ORDER = 6;
+	private static final int MAX_RICE_PARAMETER = 14; // 15 is the escape code
+	private static final int STREAMINFO_OFFSET = 8; // after "fLaC" and the metadata block header
+	private static final int STREAMINFO_LENGTH = 34;
+	private static final int[] CRC8_TABLE = crcTable(0x07, 8);
+	private static final int[] CRC16_TABLE = crcTable(0x8005, 16);
+
+	private final RandomAccessFile file;
+	private final int sampleRate;
+	private final MessageDigest md5;
+	private final int[] block = new int[BLOCK_SIZE];
+	private final int[] residual = new int[BLOCK_SIZE];
+	private final long[] partitionSums = new long[1 << MAX_PARTITION_ORDER];
+	private final byte[] sampleBytes = new byte[BLOCK_SIZE * 2];
+	// a frame never gets bigger than a verbatim frame: 2 bytes a sample, plus the header and footer.
+	private final byte[] frame = new byte[BLOCK_SIZE * 2 + 64];
+	private int blockCount = 0;
+	private long frameNumber = 0;
+	private long totalSamples = 0;
+	private int minFrameSize = 0;
+	private int maxFrameSize = 0;
+
+	// bit writer state, into frame
+	private int position;
+	private long bitBuffer;
+	private int bitCount;
+
+	/** @param path the output file, it is overwritten. */
+	public FlacFileEncoder(String path, int sampleRate) throws IOException {
+		this.sampleRate = sampleRate;
+		MessageDigest digest;
+		try { digest = MessageDigest.getInstance("MD5"); }
+		catch (NoSuchAlgorithmException e) { digest = null; } // an MD5 of 0 means unknown
+		md5 = digest;
+		file = new RandomAccessFile(path, "rw");
+		try {
+			file.setLength(0);
+			file.write(new byte[] { 'f', 'L', 'a', 'C', (byte) 0x80, 0, 0, STREAMINFO_LENGTH }); // last metadata block, STREAMINFO
+			file.write(streamInfo(null));
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public void encode(ByteBuffer pcm) throws IOException {
+		pcm.order(ByteOrder.LITTLE_ENDIAN);
+		while (pcm.remaining() >= 2) {
+			block[blockCount++] = pcm.getShort();
+			if (blockCount == BLOCK_SIZE) { encodeBlock(); }
+		}
+	}
+
+	@Override
+	public boolean finish() throws IOException {
+		try {
+			if (blockCount > 0) { encodeBlock(); }
+			file.seek(STREAMINFO_OFFSET);
+			file.write(streamInfo(md5 == null ? null : md5.digest()));
+		} finally { file.close(); }
+		return totalSamples > 0;
+	}
+
+	private byte[] streamInfo(byte[] digest) {
+		ByteBuffer info = ByteBuffer.allocate(STREAMINFO_LENGTH); // big-endian, like all of FLAC
+		info.putShort((short) BLOCK_SIZE).putShort((short) BLOCK_SIZE);
+		info.put((byte) (minFrameSize >> 16)).putShort((short) minFrameSize);
+		info.put((byte) (maxFrameSize >> 16)).putShort((short) maxFrameSize);
+		// sample rate: 20 bits, channels - 1: 3 bits, bits per sample - 1: 5 bits, total samples: 36 bits
+		info.putLong(((long) sampleRate << 44) | (15L << 36) | totalSamples);
+		if (digest != null) { info.put(digest); }
+		return info.array();
+	}
+
+	/*######################## Frames ########################*/
+
+	private void encodeBlock() throws IOException {
+		int n = blockCount;
+		position = 0;
+		bitBuffer = 0;
+		bitCount = 0;
+		writeBits(0xFFF8, 16); // sync code, fixed block size stream
+		writeBits(n == BLOCK_SIZE ? BLOCK_SIZE_CODE : 7, 4); // 7: block size - 1 follows the frame number
+		writeBits(0, 4); // sample rate: see STREAMINFO
+		writeBits(0, 4); // mono
+		writeBits(4, 3); // 16 bits per sample
+		writeBits(0, 1);
+		writeUTF8(frameNumber);
+		if (n != BLOCK_SIZE) { writeBits(n - 1, 16); }
+		writeBits(crc(CRC8_TABLE, 8, position), 8);
+		writeSubframe(n);
+		alignToByte();
+		writeBits(crc(CRC16_TABLE, 16, position), 16);
+		file.write(frame, 0, position);
+
+		if (md5 != null) {
+			for (int i = 0; i < n; i++) { // the MD5 is of the little-endian samples
+				sampleBytes[2 * i] = (byte) block[i];
+				sampleBytes[2 * i + 1] = (byte) (block[i] >> 8);
+			}
+			md5.update(sampleBytes, 0, 2 * n);
+		}
+		minFrameSize = (frameNumber == 0) ? position : Math.min(minFrameSize, position);
+		maxFrameSize = Math.max(maxFrameSize, position);
+		totalSamples += n;
+		frameNumber++;
+		blockCount = 0;
+	}
+
+	private void writeSubframe(int n) {
+		boolean constant = true;
+		for (int i = 1; i < n && constant; i++) { constant = block[i] == block[0]; }
+		if (constant) {
+			writeBits(0x00, 8); // zero pad, CONSTANT, no wasted bits
+			writeBits(block[0], 16);
+			return;
+		}
+		int bestOrder = -1;
+		long bestBits = 16L * n; // verbatim
+		for (int order = 0; order <= MAX_FIXED_ORDER && order < n; order++) {
+			computeResidual(order, n);
+			long bits = 16L * order + 2 + riceCode(order, n, false);
+			if (bits < bestBits) {
+				bestBits = bits;
+				bestOrder = order;
+			}
+		}
+		if (bestOrder < 0) {
+			writeBits(0x02, 8); // zero pad, VERBATIM, no wasted bits
+			for (int i = 0; i < n; i++) { writeBits(block[i], 16); }
+			return;
+		}
+		writeBits(0x10 | (bestOrder << 1), 8); // zero pad, FIXED of bestOrder, no wasted bits
+		for (int i = 0; i < bestOrder; i++) { writeBits(block[i], 16); } // warm-up samples
+		computeResidual(bestOrder, n);
+		writeBits(0, 2); // Rice coding with 4 bit parameters
+		riceCode(bestOrder, n, true);
+	}
+
+	private void computeResidual(int order, int n) {
+		int[] x = block;
+		switch (order) {
+			case 0: for (int i = 0; i < n; i++) { residual[i] = x[i]; } break;
+			case 1: for (int i = 1; i < n; i++) { residual[i] = x[i] - x[i-1]; } break;
+			case 2: for (int i = 2; i < n; i++) { residual[i] = x[i] - 2*x[i-1] + x[i-2]; } break;
+			case 3: for (int i = 3; i < n; i++) { residual[i] = x[i] - 3*x[i-1] + 3*x[i-2] - x[i-3]; } break;
+			case 4: for (int i = 4; i < n; i++) { residual[i] = x[i] - 4*x[i-1] + 6*x[i-2] - 4*x[i-3] + x[i-4]; } break;
+		}
+	}
+
+	/** Picks the partition order with the smallest Rice coded residual, and writes it if write is set.
+	 * @return the size of the coded residual in bits, not counting the 2 bit coding method. */
+	private long riceCode(int order, int n, boolean write) {
+		// partitions must divide the block evenly, and the first one (which skips the warm-up) can't be empty.
+		int maxPartitionOrder = 0;
+		while (maxPartitionOrder < MAX_PARTITION_ORDER && n % (2 << maxPartitionOrder) == 0 && (n >> (maxPartitionOrder + 1)) > order) {
+			maxPartitionOrder++;
+		}
+		int partitionSize = n >> maxPartitionOrder;
+		for (int partition = 0; partition < (1 << maxPartitionOrder); partition++) {
+			long sum = 0;
+			for (int i = (partition == 0) ? order : partition * partitionSize; i < (partition + 1) * partitionSize; i++) {
+				sum += zigzag(residual[i]);
+			}
+			partitionSums[partition] = sum;
+		}
+		// from the finest partitions to a single one, summing neighbouring partitions as we go.
+		int bestPartitionOrder = 0;
+		long bestBits = Long.MAX_VALUE;
+		for (int partitionOrder = maxPartitionOrder; partitionOrder >= 0; partitionOrder--) {
+			int partitions = 1 << partitionOrder;
+			partitionSize = n >> partitionOrder;
+			long bits = 4;
+			for (int partition = 0; partition < partitions; partition++) {
+				int count = partitionSize - ((partition == 0) ? order : 0);
+				bits += 4 + riceBits(partitionSums[partition], count, riceParameter(partitionSums[partition], count));
+			}
+			if (bits <= bestBits) {
+				bestBits = bits;
+				bestPartitionOrder = partitionOrder;
+			}
+			for (int partition = 0; partition < partitions / 2; partition++) {
+				partitionSums[partition] = partitionSums[2 * partition] + partitionSums[2 * partition + 1];
+			}
+		}
+		if (write) {
+			writeBits(bestPartitionOrder, 4);
+			partitionSize = n >> bestPartitionOrder;
+			for (int partition = 0; partition < (1 << bestPartitionOrder); partition++) {
+				int start = (partition == 0) ? order : partition * partitionSize;
+				int end = (partition + 1) * partitionSize;
+				long sum = 0;
+				for (int i = start; i < end; i++) { sum += zigzag(residual[i]); }
+				int parameter = riceParameter(sum, end - start);
+				writeBits(parameter, 4);
+				for (int i = start; i < end; i++) {
+					int value = zigzag(residual[i]);
+					writeUnary(value >>> parameter);
+					writeBits(value, parameter);
+				}
+			}
+		}
+		return bestBits;
+	}
+
+	private static int zigzag(int value) { return (value << 1) ^ (value >> 31); }
+
+	/** @return the size in bits of count Rice coded values summing to sum, with the given parameter.
+	 * Exact for a single value, otherwise an upper bound within count bits. */
+	private static long riceBits(long sum, int count, int parameter) { return (long) count * (parameter + 1) + (sum >> parameter); }
+
+	private static int riceParameter(long sum, int count) {
+		int best = 0;
+		for (int parameter = 1; parameter <= MAX_RICE_PARAMETER; parameter++) {
+			if (riceBits(sum, count, parameter) < riceBits(sum, count, best)) { best = parameter; }
+		}
+		return best;
+	}
+
+	/*######################## Bits ########################*/
+
+	/** Writes the low bits (at most 32) of value, most significant first. */
+	private void writeBits(long value, int bits) {
+		if (bits == 0) { return; }
+		bitBuffer = (bitBuffer << bits) | (value & ((1L << bits) - 1));
+		bitCount += bits;
+		while (bitCount >= 8) {
+			bitCount -= 8;
+			frame[position++] = (byte) (bitBuffer >>> bitCount);
+		}
+	}
+
+	/** Writes value zeros and then a one. */
+	private void writeUnary(int value) {
+		while (value >= 32) {
+			writeBits(0, 32);
+			value -= 32;
+		}
+		writeBits(1, value + 1);
+	}
+
+	private void alignToByte() { if (bitCount > 0) { writeBits(0, 8 - bitCount); } }
+
+	/** The frame number, in the same variable length coding as UTF-8. */
+	private void writeUTF8(long value) {
+		if (value < 0x80) {
+			writeBits(value, 8);
+			return;
+		}
+		int extraBytes = (value < 0x800) ? 1 : (value < 0x10000) ? 2 : (value < 0x200000) ? 3 : (value < 0x4000000) ? 4 : 5;
+		writeBits(((0xFF00 >> (extraBytes + 1)) & 0xFF) | (value >>> (6 * extraBytes)), 8);
+		for (int i = extraBytes - 1; i >= 0; i--) { writeBits(0x80 | ((value >>> (6 * i)) & 0x3F), 8); }
+	}
+
+	/** @return the CRC (polynomial in the table, initial value 0) of frame[0] to frame[length-1]. */
+	private int crc(int[] table, int width, int length) {
+		int crc = 0;
+		int mask = (1 << width) - 1;
+		for (int i = 0; i < length; i++) {
+			crc = ((crc << 8) ^ table[((crc >>> (width - 8)) ^ frame[i]) & 0xFF]) & mask;
+		}
+		return crc;
+	}
+
+	private static int[] crcTable(int polynomial, int width) {
+		int[] table = new int[256];
+		int topBit = 1 << (width - 1);
+		int mask = (1 << width) - 1;
+		for (int i = 0; i < 256; i++) {
+			int crc = i << (width - 8);
+			for (int bit = 0; bit < 8; bit++) { crc = ((crc & topBit) != 0) ? ((crc << 1) ^ polynomial) : (crc << 1); }
+			table[i] = crc & mask;
+		}
+		return table;
+	}
+}
@@ -2,17 +2,21 @@ package org.beiwe.app.storage;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
+import android.util.Base64;
 import android.util.Log;
 
 import org.beiwe.app.BuildConfig;
 import org.beiwe.app.JSONUtils;
 import org.beiwe.app.R;
+import org.beiwe.app.listeners.PlaceIndex;
 import org.json.JSONArray;
 import org.json.JSONException;
 
 import java.security.SecureRandom;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
 
 /**A class for managing patient login sessions.
  * Uses SharedPreferences in order to save username-password combinations.
@@ -55,6 +59,9 @@ public class PersistentData {
 	private static final String POWER_STATE = "power_state";
 	private static final String ALLOW_UPLOAD_OVER_CELLULAR_DATA = "allow_upload_over_cellular_data";
 	private static final String AMBIENT_AUDIO = "ambient_audio";
+	private static final String AMBIENT_AUDIO_VOICE_ACTIVITY_DETECTION = "ambient_audio_voice_activity_detection";
+	private static final String AMBIENT_AUDIO_FEATURES_ONLY = "ambient_audio_features_only";
+	private static final String MOTION_GATED_DUTY_CYCLING = "motion_gated_duty_cycling";
 
 	private static final String ACCELEROMETER_OFF_DURATION_SECONDS = "accelerometer_off_duration_seconds";
 	private static final String ACCELEROMETER_ON_DURATION_SECONDS = "accelerometer_on_duration_seconds";
@@ -67,6 +74,9 @@ public class PersistentData {
 	private static final String CREATE_NEW_DATA_FILES_FREQUENCY_SECONDS = "create_new_data_files_frequency_seconds";
 	private static final String GPS_OFF_DURATION_SECONDS = "gps_off_duration_seconds";
 	private static final String GPS_ON_DURATION_SECONDS = "gps_on_duration_seconds";
+	private static final String GPS_MIN_UPDATE_INTERVAL_SECONDS = "gps_min_update_interval_seconds";
+	private static final String GPS_MIN_UPDATE_DISTANCE_METERS = "gps_min_update_distance_meters";
+	private static final String GPS_BATCH_DURATION_SECONDS = "gps_batch_duration_seconds";
 	private static final String SECONDS_BEFORE_AUTO_LOGOUT = "seconds_before_auto_logout";
 	private static final String UPLOAD_DATA_FILES_FREQUENCY_SECONDS = "upload_data_files_frequency_seconds";
 	private static final String VOICE_RECORDING_MAX_TIME_LENGTH_SECONDS = "voice_recording_max_time_length_seconds";
@@ -136,9 +146,10 @@ public class PersistentData {
 		if (pref == null) Log.w("LoginManager", "FAILED AT ISREGISTERED");
 		return pref.getBoolean(IS_REGISTERED, false); }
 
-	/**Setter for the IS_REGISTERED value. */
+	/**Setter for the IS_REGISTERED value.  Unregistering deletes the index of the participant's places. */
 	public static void setRegistered(boolean value) {
 		putCommit(IS_REGISTERED, value);
+		if (!value) { PlaceIndex.deleteAll(appContext); }
 	}
 
 	public static void setLastRequestedPermission(String value)  {
@@ -204,6 +215,9 @@ public class PersistentData {
 	public static boolean getPowerStateEnabled(){ return pref.getBoolean(POWER_STATE, false); }
 	public static boolean getAllowUploadOverCellularData(){ return pref.getBoolean(ALLOW_UPLOAD_OVER_CELLULAR_DATA, false); }
 	public static boolean getAmbientAudioCollectionIsEnabled(){ return pref.getBoolean(AMBIENT_AUDIO, false); }
+	public static boolean getAmbientAudioVoiceActivityDetectionEnabled(){ return pref.getBoolean(AMBIENT_AUDIO_VOICE_ACTIVITY_DETECTION, false); }
+	public static boolean getAmbientAudioFeaturesOnlyEnabled(){ return pref.getBoolean(AMBIENT_AUDIO_FEATURES_ONLY, false); }
+	public static boolean getMotionGatedDutyCyclingEnabled(){ return pref.getBoolean(MOTION_GATED_DUTY_CYCLING, false); }
 	
 	public static void setAccelerometerEnabled(boolean enabled) {
 		putCommit(ACCELEROMETER, enabled);
@@ -235,6 +249,15 @@ public class PersistentData {
 	public static void setAmbientAudioCollectionIsEnabled(boolean enabled) {
 		putCommit(AMBIENT_AUDIO, enabled);
 	}
+	public static void setAmbientAudioVoiceActivityDetectionEnabled(boolean enabled) {
+		putCommit(AMBIENT_AUDIO_VOICE_ACTIVITY_DETECTION, enabled);
+	}
+	public static void setAmbientAudioFeaturesOnlyEnabled(boolean enabled) {
+		putCommit(AMBIENT_AUDIO_FEATURES_ONLY, enabled);
+	}
+	public static void setMotionGatedDutyCyclingEnabled(boolean enabled) {
+		putCommit(MOTION_GATED_DUTY_CYCLING, enabled);
+	}
 	
 	/*#####################################################################################
 	################################## Timer Settings #####################################
@@ -252,6 +275,9 @@ public class PersistentData {
 	private static final long DEFAULT_CREATE_NEW_DATA_FILES_PERIOD = 15 * 60;
 	private static final long DEFAULT_GPS_OFF_MINIMUM_DURATION = 5 * 60;
 	private static final long DEFAULT_GPS_ON_DURATION = 5 * 60;
+	private static final long DEFAULT_GPS_MIN_UPDATE_INTERVAL = 0; // as fast as the providers deliver, about 1Hz
+	private static final float DEFAULT_GPS_MIN_UPDATE_DISTANCE = 0;
+	private static final long DEFAULT_GPS_BATCH_DURATION = 0; // write every fix as it arrives
 	private static final long DEFAULT_SECONDS_BEFORE_AUTO_LOGOUT = 5 * 60;
 	private static final long DEFAULT_UPLOAD_DATA_FILES_PERIOD = 60;
 	private static final long DEFAULT_VOICE_RECORDING_MAX_TIME_LENGTH = 4 * 60;
@@ -268,6 +294,9 @@ public class PersistentData {
 	public static long getCreateNewDataFilesFrequencyMilliseconds() { return 1000L * pref.getLong(CREATE_NEW_DATA_FILES_FREQUENCY_SECONDS, DEFAULT_CREATE_NEW_DATA_FILES_PERIOD); }
 	public static long getGpsOffDurationMilliseconds() { return 1000L * pref.getLong(GPS_OFF_DURATION_SECONDS, DEFAULT_GPS_OFF_MINIMUM_DURATION); }
 	public static long getGpsOnDurationMilliseconds() { return 1000L * pref.getLong(GPS_ON_DURATION_SECONDS, DEFAULT_GPS_ON_DURATION); }
+	public static long getGpsMinUpdateIntervalMilliseconds() { return 1000L * pref.getLong(GPS_MIN_UPDATE_INTERVAL_SECONDS, DEFAULT_GPS_MIN_UPDATE_INTERVAL); }
+	public static float getGpsMinUpdateDistanceMeters() { return pref.getFloat(GPS_MIN_UPDATE_DISTANCE_METERS, DEFAULT_GPS_MIN_UPDATE_DISTANCE); }
+	public static long getGpsBatchDurationMilliseconds() { return 1000L * pref.getLong(GPS_BATCH_DURATION_SECONDS, DEFAULT_GPS_BATCH_DURATION); }
 	public static long getMillisecondsBeforeAutoLogout() { return 1000L * pref.getLong(SECONDS_BEFORE_AUTO_LOGOUT, DEFAULT_SECONDS_BEFORE_AUTO_LOGOUT); }
 	public static long getUploadDataFilesFrequencyMilliseconds() { return 1000L * pref.getLong(UPLOAD_DATA_FILES_FREQUENCY_SECONDS, DEFAULT_UPLOAD_DATA_FILES_PERIOD); }
 	public static long getVoiceRecordingMaxTimeLengthMilliseconds() { return 1000L * pref.getLong(VOICE_RECORDING_MAX_TIME_LENGTH_SECONDS, DEFAULT_VOICE_RECORDING_MAX_TIME_LENGTH); }
@@ -306,6 +335,15 @@ public class PersistentData {
 	public static void setGpsOnDurationSeconds(long seconds) {
 		putCommit(GPS_ON_DURATION_SECONDS, seconds);
 	}
+	public static void setGpsMinUpdateIntervalSeconds(long seconds) {
+		putCommit(GPS_MIN_UPDATE_INTERVAL_SECONDS, seconds);
+	}
+	public static void setGpsMinUpdateDistanceMeters(float meters) {
+		putCommit(GPS_MIN_UPDATE_DISTANCE_METERS, meters);
+	}
+	public static void setGpsBatchDurationSeconds(long seconds) {
+		putCommit(GPS_BATCH_DURATION_SECONDS, seconds);
+	}
 	public static void setSecondsBeforeAutoLogout(long seconds) {
 		putCommit(SECONDS_BEFORE_AUTO_LOGOUT, seconds);
 	}
@@ -326,6 +364,13 @@ public class PersistentData {
 	public static long getMostRecentAlarmTime(String identifier) { return pref.getLong( identifier + "-prior_alarm", 0); }
 	//we want default to be 0 so that checks "is this value less than the current expected value" (eg "did this timer event pass already")
 	
+	// the Timer's pending timers, as a JSON array, so that they survive the process being killed.
+	private static final String PENDING_TIMERS_KEY = "pending_timers";
+	public static String getPendingTimers() { return pref.getString(PENDING_TIMERS_KEY, "[]"); }
+	public static void setPendingTimers(String json) {
+		putCommit(PENDING_TIMERS_KEY, json);
+	}
+	
 	/*###########################################################################################
 	################################### Text Strings ############################################
 	###########################################################################################*/
@@ -478,20 +523,31 @@ public class PersistentData {
 		catch (JSONException e) { throw new NullPointerException("getSurveyIds failed, json string was: " + jsonString ); }
 	}
 	
-	public static void addSurveyId(String surveyId) {
+	// an in memory copy of the survey ids, so that checking a broadcast action against them does not parse JSON.
+	private static Set<String> surveyIdSet = null;
+
+	/** @return whether surveyId is the id of a current survey. */
+	public static synchronized boolean isSurveyId(String surveyId) {
+		if (surveyIdSet == null) { surveyIdSet = new HashSet<String>(getSurveyIds()); }
+		return surveyIdSet.contains(surveyId);
+	}
+
+	public static synchronized void addSurveyId(String surveyId) {
 		List<String> list = JSONUtils.jsonArrayToStringList( getSurveyIdsJsonArray() );
 		if ( !list.contains(surveyId) ) {
 			list.add(surveyId);
 			putCommit(SURVEY_IDS, new JSONArray(list).toString() );
+			if (surveyIdSet != null) { surveyIdSet.add(surveyId); }
 		}
 		else { throw new NullPointerException("duplicate survey id added: " + surveyId); } //we ensure uniqueness in the downloader, this should be unreachable.
 	}
 	
-	private static void removeSurveyId(String surveyId) {
+	private static synchronized void removeSurveyId(String surveyId) {
 		List<String> list = JSONUtils.jsonArrayToStringList( getSurveyIdsJsonArray() );
 		if ( list.contains(surveyId) ) {
 			list.remove(surveyId);
 			putCommit(SURVEY_IDS, new JSONArray(list).toString() );
+			if (surveyIdSet != null) { surveyIdSet.remove(surveyId); }
 		}
 		else { throw new NullPointerException("survey id does not exist: " + surveyId); } //we ensure uniqueness in the downloader, this should be unreachable.
 	}
@@ -530,14 +586,35 @@ public class PersistentData {
 		String saltString = pref.getString(HASH_SALT_KEY, null);
 		if(saltString == null) { // create salt if it does not exist
 			byte[] newSalt = SecureRandom.getSeed(64);
-			putCommit(HASH_SALT_KEY, new String(newSalt));
-			return newSalt;
+			String newSaltString = new String(newSalt);
+			putCommit(HASH_SALT_KEY, newSaltString);
+			// return what later reads will return, the raw bytes do not survive the round trip through a String
+			return newSaltString.getBytes();
 		}
 		else {
 			return saltString.getBytes();
 		}
 	}
 
+	private static final String PLACE_INDEX_KEY = "place_index_key";
+
+	// Get the key of the PlaceIndex's keyed hashes of places, created on first use
+	public static byte[] getPlaceIndexKey() {
+		String keyString = pref.getString(PLACE_INDEX_KEY, null);
+		if (keyString == null) {
+			byte[] newKey = new byte[32];
+			new SecureRandom().nextBytes(newKey);
+			keyString = Base64.encodeToString(newKey, Base64.NO_WRAP);
+			putCommit(PLACE_INDEX_KEY, keyString);
+		}
+		return Base64.decode(keyString, Base64.NO_WRAP);
+	}
+
+	public static void clearPlaceIndexKey() {
+		editor.remove(PLACE_INDEX_KEY);
+		editor.commit();
+	}
+
 	// Get iterations for pbkdf2 hashing
 	public static int getHashIterations() {
 		int iterations = pref.getInt(HASH_ITERATIONS_KEY, 0);
@@ -604,6 +681,75 @@ public class PersistentData {
 		return pref.getBoolean(USE_GPS_FUZZING_KEY, false);
 	}
 
+	/*###########################################################################################
+	################################### GPS TRAJECTORY ##########################################
+	###########################################################################################*/
+
+	private static final String GPS_TRAJECTORY_ENABLED_KEY = "gps_trajectory_enabled";
+	private static final String GPS_TRAJECTORY_TOLERANCE_METERS_KEY = "gps_trajectory_tolerance_meters";
+	private static final String GPS_STAY_RADIUS_METERS_KEY = "gps_stay_radius_meters";
+	private static final String GPS_STAY_DWELL_SECONDS_KEY = "gps_stay_dwell_seconds";
+	private static final String GPS_PLACE_INDEX_ENABLED_KEY = "gps_place_index_enabled";
+	private static final float DEFAULT_GPS_TRAJECTORY_TOLERANCE_METERS = 10;
+	private static final float DEFAULT_GPS_STAY_RADIUS_METERS = 50;
+	private static final long DEFAULT_GPS_STAY_DWELL_SECONDS = 5 * 60;
+
+	public static boolean getGpsTrajectoryEnabled() { return pref.getBoolean(GPS_TRAJECTORY_ENABLED_KEY, false); }
+	public static float getGpsTrajectoryToleranceMeters() { return pref.getFloat(GPS_TRAJECTORY_TOLERANCE_METERS_KEY, DEFAULT_GPS_TRAJECTORY_TOLERANCE_METERS); }
+	public static float getGpsStayRadiusMeters() { return pref.getFloat(GPS_STAY_RADIUS_METERS_KEY, DEFAULT_GPS_STAY_RADIUS_METERS); }
+	public static boolean getGpsPlaceIndexEnabled() { return pref.getBoolean(GPS_PLACE_INDEX_ENABLED_KEY, false); }
+	public static long getGpsStayDwellMilliseconds() { return 1000L * pref.getLong(GPS_STAY_DWELL_SECONDS_KEY, DEFAULT_GPS_STAY_DWELL_SECONDS); }
+
+	public static void setGpsTrajectoryEnabled(boolean enabled) {
+		putCommit(GPS_TRAJECTORY_ENABLED_KEY, enabled);
+	}
+	public static void setGpsTrajectoryToleranceMeters(float meters) {
+		putCommit(GPS_TRAJECTORY_TOLERANCE_METERS_KEY, meters);
+	}
+	public static void setGpsStayRadiusMeters(float meters) {
+		putCommit(GPS_STAY_RADIUS_METERS_KEY, meters);
+	}
+	public static void setGpsStayDwellSeconds(long seconds) {
+		putCommit(GPS_STAY_DWELL_SECONDS_KEY, seconds);
+	}
+	public static void setGpsPlaceIndexEnabled(boolean enabled) {
+		putCommit(GPS_PLACE_INDEX_ENABLED_KEY, enabled);
+	}
+
+	/*###########################################################################################
+	#################################### HIGH-WATER MARKS #######################################
+	###########################################################################################*/
+
+	// the _ID of the newest row already recorded from a content provider, -1 before the first query.
+	private static final String CALL_LOG_LAST_RECORDED_ID_KEY = "call_log_last_recorded_id";
+
+	public static long getCallLogLastRecordedID() { return pref.getLong(CALL_LOG_LAST_RECORDED_ID_KEY, -1); }
+	public static void setCallLogLastRecordedID(long id) {
+		putCommit(CALL_LOG_LAST_RECORDED_ID_KEY, id);
+	}
+
+	private static final String SMS_LAST_RECORDED_ID_KEY = "sms_last_recorded_id";
+	private static final String MMS_LAST_RECORDED_ID_KEY = "mms_last_recorded_id";
+	// "table:id:type" keys of the messages recorded above the SMS and MMS marks, as a JSON array.
+	private static final String TEXTS_RECORDED_ABOVE_MARK_KEY = "texts_recorded_above_mark";
+
+	public static long getSmsLastRecordedID() { return pref.getLong(SMS_LAST_RECORDED_ID_KEY, -1); }
+	public static long getMmsLastRecordedID() { return pref.getLong(MMS_LAST_RECORDED_ID_KEY, -1); }
+	public static void setSmsLastRecordedID(long id) {
+		putCommit(SMS_LAST_RECORDED_ID_KEY, id);
+	}
+	public static void setMmsLastRecordedID(long id) {
+		putCommit(MMS_LAST_RECORDED_ID_KEY, id);
+	}
+
+	public static Set<String> getTextsRecordedAboveMark() {
+		try { return new HashSet<String>(JSONUtils.jsonArrayToStringList(new JSONArray(pref.getString(TEXTS_RECORDED_ABOVE_MARK_KEY, "[]")))); }
+		catch (JSONException e) { return new HashSet<String>(); }
+	}
+	public static void setTextsRecordedAboveMark(Set<String> keys) {
+		putCommit(TEXTS_RECORDED_ABOVE_MARK_KEY, new JSONArray(keys).toString());
+	}
+
 	/*###########################################################################################
 	###################################### Call Buttons #########################################
 	###########################################################################################*/
@@ -28,11 +28,27 @@ public class SetDeviceSettings {
 		try { ambientAudioCollectionIsEnabled = deviceSettings.getBoolean("ambient_audio"); }
 		catch (JSONException e) { ambientAudioCollectionIsEnabled = false; }
 		PersistentData.setAmbientAudioCollectionIsEnabled(ambientAudioCollectionIsEnabled);
+		// Voice activity detection mode for ambient audio, added late, and if the server is old it may not be present.
+		boolean ambientAudioVoiceActivityDetectionEnabled;
+		try { ambientAudioVoiceActivityDetectionEnabled = deviceSettings.getBoolean("ambient_audio_voice_activity_detection"); }
+		catch (JSONException e) { ambientAudioVoiceActivityDetectionEnabled = false; }
+		PersistentData.setAmbientAudioVoiceActivityDetectionEnabled(ambientAudioVoiceActivityDetectionEnabled);
+		// Features only mode for ambient audio (no raw audio is kept), added late, and if the server is old it may not be present.
+		boolean ambientAudioFeaturesOnlyEnabled;
+		try { ambientAudioFeaturesOnlyEnabled = deviceSettings.getBoolean("ambient_audio_features_only"); }
+		catch (JSONException e) { ambientAudioFeaturesOnlyEnabled = false; }
+		PersistentData.setAmbientAudioFeaturesOnlyEnabled(ambientAudioFeaturesOnlyEnabled);
 
 		Boolean allowUploadOverCellularData; // This key was added late, and if the server is old it may not be present
 		try { allowUploadOverCellularData = deviceSettings.getBoolean("allow_upload_over_cellular_data");}
 		catch (JSONException e) { allowUploadOverCellularData = false; }
 		PersistentData.setAllowUploadOverCellularData(allowUploadOverCellularData);
+
+		// Stationary/motion gating of the sensor duty cycles, added late, and if the server is old it may not be present.
+		boolean motionGatedDutyCyclingEnabled;
+		try { motionGatedDutyCyclingEnabled = deviceSettings.getBoolean("motion_gated_duty_cycling"); }
+		catch (JSONException e) { motionGatedDutyCyclingEnabled = false; }
+		PersistentData.setMotionGatedDutyCyclingEnabled(motionGatedDutyCyclingEnabled);
 		
 		// Write timer settings
 		int accelerometerOffDuration = deviceSettings.getInt("accelerometer_off_duration_seconds");
@@ -57,6 +73,21 @@ public class SetDeviceSettings {
 		PersistentData.setGpsOffDurationSeconds(gpsOffDurationSeconds);
 		int gpsOnDurationSeconds = deviceSettings.getInt("gps_on_duration_seconds");
 		PersistentData.setGpsOnDurationSeconds(gpsOnDurationSeconds);
+
+		// GPS update rate and batching, these keys were added late, and if the server is old they may not be present.
+		int gpsMinUpdateIntervalSeconds;
+		try { gpsMinUpdateIntervalSeconds = deviceSettings.getInt("gps_min_update_interval_seconds"); }
+		catch (JSONException e) { gpsMinUpdateIntervalSeconds = 0; }
+		PersistentData.setGpsMinUpdateIntervalSeconds(gpsMinUpdateIntervalSeconds);
+		double gpsMinUpdateDistanceMeters;
+		try { gpsMinUpdateDistanceMeters = deviceSettings.getDouble("gps_min_update_distance_meters"); }
+		catch (JSONException e) { gpsMinUpdateDistanceMeters = 0; }
+		PersistentData.setGpsMinUpdateDistanceMeters((float) gpsMinUpdateDistanceMeters);
+		int gpsBatchDurationSeconds;
+		try { gpsBatchDurationSeconds = deviceSettings.getInt("gps_batch_duration_seconds"); }
+		catch (JSONException e) { gpsBatchDurationSeconds = 0; }
+		PersistentData.setGpsBatchDurationSeconds(gpsBatchDurationSeconds);
+
 		int secondsBeforeAutoLogout = deviceSettings.getInt("seconds_before_auto_logout");
 		PersistentData.setSecondsBeforeAutoLogout(secondsBeforeAutoLogout);
 		int uploadDataFilesFrequencySeconds = deviceSettings.getInt("upload_data_files_frequency_seconds");
@@ -86,6 +117,7 @@ public class SetDeviceSettings {
 		try { useAnonymizedHashing = deviceSettings.getBoolean("use_anonymized_hashing"); }
 		catch (JSONException e) { useAnonymizedHashing = false; }
 		PersistentData.setUseAnonymizedHashing(useAnonymizedHashing);
+		EncryptionEngine.refreshHashingParameters();
 
 		// Use GPS Fuzzing
 		boolean useGpsFuzzing; // This key was added late, and if the server is old it may not be present
@@ -93,6 +125,22 @@ public class SetDeviceSettings {
 		catch (JSONException e) { useGpsFuzzing = false; }
 		PersistentData.setUseGpsFuzzing(useGpsFuzzing);
 
+		// Derived GPS trajectory stream, these keys were added late, and if the server is old they may not be present.
+		boolean gpsTrajectoryEnabled;
+		try { gpsTrajectoryEnabled = deviceSettings.getBoolean("gps_trajectory_enabled"); }
+		catch (JSONException e) { gpsTrajectoryEnabled = false; }
+		PersistentData.setGpsTrajectoryEnabled(gpsTrajectoryEnabled);
+		try { PersistentData.setGpsTrajectoryToleranceMeters((float) deviceSettings.getDouble("gps_trajectory_tolerance_meters")); }
+		catch (JSONException e) { } // keep the default
+		try { PersistentData.setGpsStayRadiusMeters((float) deviceSettings.getDouble("gps_stay_radius_meters")); }
+		catch (JSONException e) { }
+		try { PersistentData.setGpsStayDwellSeconds(deviceSettings.getInt("gps_stay_dwell_seconds")); }
+		catch (JSONException e) { }
+		boolean gpsPlaceIndexEnabled;
+		try { gpsPlaceIndexEnabled = deviceSettings.getBoolean("gps_place_index_enabled"); }
+		catch (JSONException e) { gpsPlaceIndexEnabled = false; }
+		PersistentData.setGpsPlaceIndexEnabled(gpsPlaceIndexEnabled);
+
 		// Call button toggles
 		boolean callClinicianButtonEnabled;
 		try { callClinicianButtonEnabled = deviceSettings.getBoolean("call_clinician_button_enabled"); }
@@ -4,14 +4,20 @@ import android.content.Context;
 import android.util.Log;
 
 import org.beiwe.app.CrashHandler;
+import org.beiwe.app.Timer;
 import org.beiwe.app.listeners.AccelerometerListener;
+import org.beiwe.app.listeners.AcousticFeatureRecorder;
 import org.beiwe.app.listeners.AmbientAudioListener;
 import org.beiwe.app.listeners.BluetoothListener;
 import org.beiwe.app.listeners.CallLogger;
 import org.beiwe.app.listeners.GPSListener;
 import org.beiwe.app.listeners.GyroscopeListener;
+import org.beiwe.app.listeners.PlaceIndex;
 import org.beiwe.app.listeners.PowerStateListener;
-import org.beiwe.app.listeners.SmsSentLogger;
+import org.beiwe.app.listeners.SensorDiagnostics;
+import org.beiwe.app.listeners.TextsLogger;
+import org.beiwe.app.listeners.TrajectoryCompressor;
+import org.beiwe.app.listeners.VoiceActivityAmbientRecorder;
 import org.beiwe.app.listeners.WifiListener;
 import org.beiwe.app.survey.AudioRecorderActivity;
 import org.beiwe.app.survey.AudioRecorderEnhancedActivity;
@@ -26,7 +32,9 @@ import java.security.InvalidKeyException;
 import java.security.spec.InvalidKeySpecException;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**The (Text)FileManager.
  * The FileManager is implemented as a Singleton.  More accurately the static object contains several
@@ -48,6 +56,10 @@ public class TextFileManager {
 	
 	//Static instances of the individual FileManager objects.
 	private static TextFileManager GPSFile;
+	private static TextFileManager GPSTrajectoryFile;
+	private static TextFileManager GPSPlacesFile;
+	private static TextFileManager ambientAudioActivityFile;
+	private static TextFileManager ambientAudioFeaturesFile;
 	private static TextFileManager accelFile;
 	private static TextFileManager gyroFile;
 	private static TextFileManager powerStateLog;
@@ -55,6 +67,9 @@ public class TextFileManager {
 	private static TextFileManager textsLog;
 	private static TextFileManager bluetoothLog;
 	private static TextFileManager debugLogFile;
+	private static TextFileManager sensorDiagnostics;
+	private static TextFileManager alarmDiagnostics;
+	private static TextFileManager streamMetrics;
 	
 	private static TextFileManager surveyTimings;
 	private static TextFileManager surveyAnswers;
@@ -94,6 +109,26 @@ public class TextFileManager {
 		return GPSFile;
 	}
 	
+	public static TextFileManager getGPSTrajectoryFile () {
+		checkAvailableWithTimeout("GPSTrajectoryFile");
+		return GPSTrajectoryFile;
+	}
+	
+	public static TextFileManager getGPSPlacesFile () {
+		checkAvailableWithTimeout("GPSPlacesFile");
+		return GPSPlacesFile;
+	}
+	
+	public static TextFileManager getAmbientAudioActivityFile () {
+		checkAvailableWithTimeout("ambientAudioActivityFile");
+		return ambientAudioActivityFile;
+	}
+	
+	public static TextFileManager getAmbientAudioFeaturesFile () {
+		checkAvailableWithTimeout("ambientAudioFeaturesFile");
+		return ambientAudioFeaturesFile;
+	}
+	
 	public static TextFileManager getPowerStateFile () {
 		checkAvailableWithTimeout("powerStateLog");
 		return powerStateLog;
@@ -119,6 +154,21 @@ public class TextFileManager {
 		return wifiLog;
 	}
 	
+	public static TextFileManager getSensorDiagnosticsFile () {
+		checkAvailableWithTimeout("sensorDiagnostics");
+		return sensorDiagnostics;
+	}
+	
+	public static TextFileManager getAlarmDiagnosticsFile () {
+		checkAvailableWithTimeout("alarmDiagnostics");
+		return alarmDiagnostics;
+	}
+	
+	public static TextFileManager getStreamMetricsFile () {
+		checkAvailableWithTimeout("streamMetrics");
+		return streamMetrics;
+	}
+	
 	public static TextFileManager getSurveyTimingsFile () {
 		checkAvailableWithTimeout("surveyTimings");
 		return surveyTimings;
@@ -167,6 +217,18 @@ public class TextFileManager {
 		if (thing.equals("GPSFile")) {
 			return (GPSFile != null);
 		}
+		if (thing.equals("GPSTrajectoryFile")) {
+			return (GPSTrajectoryFile != null);
+		}
+		if (thing.equals("GPSPlacesFile")) {
+			return (GPSPlacesFile != null);
+		}
+		if (thing.equals("ambientAudioActivityFile")) {
+			return (ambientAudioActivityFile != null);
+		}
+		if (thing.equals("ambientAudioFeaturesFile")) {
+			return (ambientAudioFeaturesFile != null);
+		}
 		if (thing.equals("powerStateLog")) {
 			return (powerStateLog != null);
 		}
@@ -182,6 +244,15 @@ public class TextFileManager {
 		if (thing.equals("wifiLog")) {
 			return (wifiLog != null);
 		}
+		if (thing.equals("sensorDiagnostics")) {
+			return (sensorDiagnostics != null);
+		}
+		if (thing.equals("alarmDiagnostics")) {
+			return (alarmDiagnostics != null);
+		}
+		if (thing.equals("streamMetrics")) {
+			return (streamMetrics != null);
+		}
 		if (thing.equals("surveyTimings")) {
 			return (surveyTimings != null);
 		}
@@ -230,6 +301,16 @@ public class TextFileManager {
 	private Boolean isDummy = true;
 	private byte[] AESKey = null;
 	
+	// Per-stream write metrics.  These are updated inside the synchronized write functions but are read
+	// (and reset) by writeStreamMetrics without taking the lock, so that a stalled writer cannot block the
+	// snapshot.  They are reset on every snapshot, each line of the metrics file covers a single interval.
+	private final AtomicLong recordsWritten = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong encryptionNanos = new AtomicLong();
+	private final AtomicLong writeNanos = new AtomicLong();
+	private final AtomicLong recordsDropped = new AtomicLong();
+	private final AtomicLong filesRotated = new AtomicLong();
+	
 	/*###############################################################################
 	########################### Class Initialization ################################
 	###############################################################################*/
@@ -258,6 +339,22 @@ public class TextFileManager {
 		GPSFile = new TextFileManager(
 			appContext, "gps", GPSListener.header, false, false, true, !PersistentData.getGpsEnabled()
 		);
+		GPSTrajectoryFile = new TextFileManager(
+			appContext, "gpsTrajectory", TrajectoryCompressor.header, false, false, true,
+			!(PersistentData.getGpsEnabled() && PersistentData.getGpsTrajectoryEnabled())
+		);
+		GPSPlacesFile = new TextFileManager(
+			appContext, "gpsPlaces", PlaceIndex.header, false, false, true,
+			!(PersistentData.getGpsEnabled() && PersistentData.getGpsPlaceIndexEnabled())
+		);
+		ambientAudioActivityFile = new TextFileManager(
+			appContext, "ambientAudioActivity", VoiceActivityAmbientRecorder.header, false, false, true,
+			!(PersistentData.getAmbientAudioCollectionIsEnabled() && PersistentData.getAmbientAudioVoiceActivityDetectionEnabled())
+		);
+		ambientAudioFeaturesFile = new TextFileManager(
+			appContext, "ambientAudioFeatures", AcousticFeatureRecorder.header, false, false, true,
+			!(PersistentData.getAmbientAudioCollectionIsEnabled() && PersistentData.getAmbientAudioFeaturesOnlyEnabled())
+		);
 		accelFile = new TextFileManager(
 			appContext, "accel", AccelerometerListener.header, false, false, true, !PersistentData.getAccelerometerEnabled()
 		);
@@ -265,7 +362,7 @@ public class TextFileManager {
 			appContext, "gyro", GyroscopeListener.header, false, false, true, !PersistentData.getGyroscopeEnabled()
 		);
 		textsLog = new TextFileManager(
-			appContext, "textsLog", SmsSentLogger.header, false, false, true, !PersistentData.getTextsEnabled()
+			appContext, "textsLog", TextsLogger.header, false, false, true, !PersistentData.getTextsEnabled()
 		);
 		callLog = new TextFileManager(
 			appContext, "callLog", CallLogger.header, false, false, true, !PersistentData.getCallsEnabled()
@@ -276,6 +373,19 @@ public class TextFileManager {
 		bluetoothLog = new TextFileManager(
 			appContext, "bluetoothLog", BluetoothListener.header, false, false, true, !PersistentData.getBluetoothEnabled()
 		);
+		// wifiLogV2 is a rotating stream with a timestamp column, the old wifiLog was one file per scan without one.
+		wifiLog = new TextFileManager(
+			appContext, "wifiLogV2", WifiListener.header, false, false, true, !PersistentData.getWifiEnabled()
+		);
+		sensorDiagnostics = new TextFileManager(
+			appContext, "sensorDiagnostics", SensorDiagnostics.header, false, false, true, false
+		);
+		alarmDiagnostics = new TextFileManager(
+			appContext, "alarmDiagnostics", Timer.alarmDiagnosticsHeader, false, false, true, false
+		);
+		streamMetrics = new TextFileManager(
+			appContext, "streamMetrics", STREAM_METRICS_HEADER, false, false, true, false
+		);
 		// Files created on specific events/written to in one go.
 		surveyTimings = new TextFileManager(
 			appContext, "surveyTimings_", SurveyTimingsRecorder.header, false, false, true, false
@@ -283,9 +393,6 @@ public class TextFileManager {
 		surveyAnswers = new TextFileManager(
 			appContext, "surveyAnswers_", SurveyAnswersRecorder.header, false, false, true, false
 		);
-		wifiLog = new TextFileManager(
-			appContext, "wifiLog", WifiListener.header, false, false, true, !PersistentData.getWifiEnabled()
-		);
 	}
 	
 	/*###############################################################################
@@ -379,6 +486,9 @@ public class TextFileManager {
 			this.fileName = null;
 			return false;
 		}
+		if (!this.persistent) {
+			filesRotated.incrementAndGet();
+		}
 		return true;
 	}
 	
@@ -406,10 +516,12 @@ public class TextFileManager {
 		FileOutputStream outStream;
 		//write the output, we always want mode append
 		outStream = appContext.openFileOutput(this.fileName, Context.MODE_APPEND);
-		outStream.write((data).getBytes());
+		byte[] bytes = data.getBytes();
+		outStream.write(bytes);
 		outStream.write("\n".getBytes());
 		outStream.flush();
 		outStream.close();
+		bytesWritten.addAndGet(bytes.length + 1);
 	}
 	
 	public synchronized void safeWritePlaintext (String data) {
@@ -419,13 +531,17 @@ public class TextFileManager {
 		if (fileName == null) {
 			this.newFile();
 		}
+		long writeStart = System.nanoTime();
 		try {
 			unsafeWritePlaintext(data);
+			recordsWritten.incrementAndGet();
 		} catch (FileNotFoundException e) {
+			recordsDropped.incrementAndGet();
 			Log.e("TextFileManager", "could not find file to write to, " + this.fileName);
 			e.printStackTrace();
 			CrashHandler.writeCrashlog(e, appContext);
 		} catch (IOException e) {
+			recordsDropped.incrementAndGet();
 			if (e.getMessage().toLowerCase().contains("enospc")) { // If the device is out of storage, alert the user
 				Log.e("ENOSPC", "Out of storage space");
 			}
@@ -434,6 +550,7 @@ public class TextFileManager {
 			// removed to prevent excessive sentry errors
 			// CrashHandler.writeCrashlog(e, appContext);
 		}
+		writeNanos.addAndGet(System.nanoTime() - writeStart);
 	}
 	
 	/**Encrypts string data and writes it to a file.
@@ -447,22 +564,80 @@ public class TextFileManager {
 		}
 		if (fileName == null) {  // when newFile fails we are not allowed to write to files.
 			if (!this.newFile()) {
+				recordsDropped.incrementAndGet();
 				return;
 			}
 		}
 
 		try {
-			this.safeWritePlaintext(EncryptionEngine.encryptAES(data, this.AESKey));
+			long encryptionStart = System.nanoTime();
+			String encrypted = EncryptionEngine.encryptAES(data, this.AESKey);
+			encryptionNanos.addAndGet(System.nanoTime() - encryptionStart);
+			this.safeWritePlaintext(encrypted);
 		} catch (InvalidKeyException e) {
+			recordsDropped.incrementAndGet();
 			Log.e("TextFileManager", "encrypted write operation without an AES key: " + this.name + ", " + this.fileName);
 			CrashHandler.writeCrashlog(e, appContext);
 //			throw new NullPointerException("encrypted write operation without an AES key: " + this.fileName );
 		} catch (InvalidKeySpecException e) { //this occurs when an encrypted write operation occurs without an RSA key file, we eat this error because it only happens during registration/initial config.
+			recordsDropped.incrementAndGet();
 			Log.e("TextFileManager", "EncryptionEngine.AES_TOO_EARLY_ERROR: " + this.name + ", " + data);
 			e.printStackTrace();
 		}
 	}
 	
+	/**Encrypts a batch of lines and appends them to the file with a single open and close, for data
+	 * streams that buffer their records (e.g. batched GPS).  Lines that fail to encrypt are dropped.
+	 * @param lines any unicode valid strings */
+	public synchronized void writeEncrypted (List<String> lines) {
+		if (this.isDummy || lines.isEmpty()) {
+			return;
+		}
+		if (!this.encrypted) {
+			throw new NullPointerException(this.name + "is not supposed to have encrypted writes!");
+		}
+		if (fileName == null) {  // when newFile fails we are not allowed to write to files.
+			if (!this.newFile()) {
+				recordsDropped.addAndGet(lines.size());
+				return;
+			}
+		}
+		
+		StringBuilder batch = new StringBuilder();
+		int count = 0;
+		long encryptionStart = System.nanoTime();
+		for (String line : lines) {
+			try {
+				batch.append(EncryptionEngine.encryptAES(line, this.AESKey)).append("\n");
+				count++;
+			} catch (InvalidKeyException e) {
+				recordsDropped.incrementAndGet();
+				Log.e("TextFileManager", "encrypted write operation without an AES key: " + this.name + ", " + this.fileName);
+				CrashHandler.writeCrashlog(e, appContext);
+			} catch (InvalidKeySpecException e) { // see writeEncrypted(String)
+				recordsDropped.incrementAndGet();
+				Log.e("TextFileManager", "EncryptionEngine.AES_TOO_EARLY_ERROR: " + this.name);
+				e.printStackTrace();
+			}
+		}
+		encryptionNanos.addAndGet(System.nanoTime() - encryptionStart);
+		if (count == 0) {
+			return;
+		}
+		batch.setLength(batch.length() - 1); // unsafeWritePlaintext adds the final new line
+		
+		long writeStart = System.nanoTime();
+		try {
+			unsafeWritePlaintext(batch.toString());
+			recordsWritten.addAndGet(count);
+		} catch (IOException e) {
+			recordsDropped.addAndGet(count);
+			Log.e("TextFileManager", "error in the write operation: " + e.getMessage());
+			e.printStackTrace();
+		}
+		writeNanos.addAndGet(System.nanoTime() - writeStart);
+	}
+	
 	/**@return A string of the file contents. */
 	public synchronized String read () {
 		if (this.isDummy) {
@@ -499,6 +674,48 @@ public class TextFileManager {
 	}
 	
 	
+	/*###############################################################################
+	############################## Stream Metrics ###################################
+	###############################################################################*/
+	
+	public static final String STREAM_METRICS_HEADER = "timestamp, stream, interval start, records, bytes, encryption ms, write ms, dropped, files rotated";
+	private static long streamMetricsIntervalStart = System.currentTimeMillis();
+	
+	/** Writes one line per (non-dummy) stream to the streamMetrics file covering the write activity since
+	 * the previous call, then resets the counters.  Streams with no activity are written too, a stream
+	 * that is enabled but has written nothing is exactly what we want to see on the server. */
+	public static void writeStreamMetrics () {
+		long now = System.currentTimeMillis();
+		long intervalStart = streamMetricsIntervalStart;
+		streamMetricsIntervalStart = now;
+		// snapshot everything before writing so the metrics file's own writes land in the next interval.
+		TextFileManager[] streams = {
+			GPSFile, GPSTrajectoryFile, GPSPlacesFile, accelFile, gyroFile, powerStateLog, callLog, textsLog, bluetoothLog, wifiLog,
+			ambientAudioActivityFile, ambientAudioFeaturesFile, surveyTimings, surveyAnswers, sensorDiagnostics, alarmDiagnostics, debugLogFile, streamMetrics
+		};
+		String[] lines = new String[streams.length];
+		for (int i = 0; i < streams.length; i++) {
+			TextFileManager stream = streams[i];
+			if (stream == null || stream.isDummy) {
+				continue;
+			}
+			lines[i] = now + DELIMITER
+				+ stream.name + DELIMITER
+				+ intervalStart + DELIMITER
+				+ stream.recordsWritten.getAndSet(0) + DELIMITER
+				+ stream.bytesWritten.getAndSet(0) + DELIMITER
+				+ stream.encryptionNanos.getAndSet(0) / 1000000.0 + DELIMITER
+				+ stream.writeNanos.getAndSet(0) / 1000000.0 + DELIMITER
+				+ stream.recordsDropped.getAndSet(0) + DELIMITER
+				+ stream.filesRotated.getAndSet(0);
+		}
+		for (String line : lines) {
+			if (line != null) {
+				getStreamMetricsFile().writeEncrypted(line);
+			}
+		}
+	}
+	
 	/*###############################################################################
 	#################### Miscellaneous Utility Functions ############################
 	###############################################################################*/
@@ -544,12 +761,20 @@ public class TextFileManager {
 	public static synchronized void makeNewFilesForEverything () {
 //		Log.d("TextFileManager.java", "makeNewFilesForEverything() called");
 		GPSFile.newFile();
+		GPSTrajectoryFile.newFile();
+		GPSPlacesFile.newFile();
+		ambientAudioActivityFile.newFile();
+		ambientAudioFeaturesFile.newFile();
 		accelFile.newFile();
 		gyroFile.newFile();
 		powerStateLog.newFile();
 		callLog.newFile();
 		textsLog.newFile();
 		bluetoothLog.newFile();
+		wifiLog.newFile();
+		sensorDiagnostics.newFile();
+		alarmDiagnostics.newFile();
+		streamMetrics.newFile();
 		debugLogFile.newFile();
 	}
 	
@@ -571,10 +796,15 @@ public class TextFileManager {
 		files.remove(AudioRecorderActivity.unencryptedTempAudioFileName);
 		files.remove(AudioRecorderEnhancedActivity.unencryptedRawAudioFileName);
 		files.remove(AudioRecorderEnhancedActivity.unencryptedTempAudioFileName); //should be identical to regular audiorecording file, but keep in case it changes.
-		files.remove(AmbientAudioListener.unencryptedTempAudioFilename);
+		for (String tempFilename : AmbientAudioListener.unencryptedTempAudioFilenames) { files.remove(tempFilename); }
+		files.remove(AmbientAudioListener.legacyUnencryptedTempAudioFilename);
+		for (String tempFilename : VoiceActivityAmbientRecorder.unencryptedTempAudioFilenames) { files.remove(tempFilename); }
+		for (String tempFilename : AudioPipelineBenchmark.tempFilenames) { files.remove(tempFilename); }
 		
 		// These files are currently being written to, so they shouldn't be uploaded now
 		files.remove(TextFileManager.getGPSFile().fileName);
+		files.remove(TextFileManager.getGPSTrajectoryFile().fileName);
+		files.remove(TextFileManager.getGPSPlacesFile().fileName);
 		files.remove(TextFileManager.getAccelFile().fileName);
 		files.remove(TextFileManager.getGyroFile().fileName);
 		files.remove(TextFileManager.getPowerStateFile().fileName);
@@ -582,12 +812,17 @@ public class TextFileManager {
 		files.remove(TextFileManager.getTextsLogFile().fileName);
 		files.remove(TextFileManager.getDebugLogFile().fileName);
 		files.remove(TextFileManager.getBluetoothLogFile().fileName);
+		files.remove(TextFileManager.getWifiLogFile().fileName);
+		files.remove(TextFileManager.getSensorDiagnosticsFile().fileName);
+		files.remove(TextFileManager.getStreamMetricsFile().fileName);
+		files.remove(TextFileManager.getAmbientAudioActivityFile().fileName);
+		files.remove(TextFileManager.getAmbientAudioFeaturesFile().fileName);
+		files.remove(TextFileManager.getAlarmDiagnosticsFile().fileName);
 		files.remove(AmbientAudioListener.currentlyBeingWrittenEncryptedFilename);
 		
 		// These files are only occasionally open, but they may be currently open. If they are, don't upload them
 		files.remove(TextFileManager.getSurveyAnswersFile().fileName);
 		files.remove(TextFileManager.getSurveyTimingsFile().fileName);
-		files.remove(TextFileManager.getWifiLogFile().fileName);
 		
 		return files.toArray(new String[files.size()]);
 	}
@@ -615,6 +850,8 @@ public class TextFileManager {
 		TextFileManager.getDebugLogFile().deleteSafely();
 		files.remove(TextFileManager.getKeyFile().fileName);
 		
+		PlaceIndex.deleteAll(appContext);
+		
 		//and delete things
 		for (String file_name: files) {
 //			Log.i("deleting file", file_name);
@@ -0,0 +1,36 @@
+package org.beiwe.app.storage;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**WavFileEncoder writes 16 bit PCM into a wav file as it is captured, via AudioFileManager.startWaveFile()
+ * and finishWaveFile().  The PCM is already in wav's byte order, it goes straight to the file's channel. */
+public class WavFileEncoder implements AudioFileEncoder {
+	private static final int BIT_DEPTH = 16;
+
+	private final String path;
+	private final FileOutputStream waveFileOut;
+	private final FileChannel waveFileChannel;
+	private long bytesEncoded = 0;
+
+	/** @param path the output file, it is overwritten. */
+	public WavFileEncoder(String path, int sampleRate) throws IOException {
+		this.path = path;
+		waveFileOut = AudioFileManager.startWaveFile(path, sampleRate, BIT_DEPTH);
+		waveFileChannel = waveFileOut.getChannel();
+	}
+
+	@Override
+	public void encode(ByteBuffer pcm) throws IOException {
+		while (pcm.hasRemaining()) { bytesEncoded += waveFileChannel.write(pcm); }
+	}
+
+	@Override
+	public boolean finish() throws IOException {
+		waveFileOut.close();
+		AudioFileManager.finishWaveFile(path);
+		return bytesEncoded > 0;
+	}
+}
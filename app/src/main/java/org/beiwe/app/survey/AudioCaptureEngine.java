@@ -0,0 +1,101 @@
+package org.beiwe.app.survey;
+
+import android.media.AudioRecord;
+import android.util.Log;
+
+import org.beiwe.app.storage.AudioFileEncoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**AudioCaptureEngine moves 16 bit mono PCM from an AudioRecord into an AudioFileEncoder.
+ * The one direct ByteBuffer is allocated up front and reused for every read, and exactly the bytes each
+ * read returns are handed to the encoder.  capture() runs on the recording thread until stop() is called
+ * (from any thread), then stops and releases the AudioRecord.
+ * It counts the reads that returned less audio than asked for (underruns), and the times the recording
+ * thread fell so far behind that the AudioRecord's own buffer must have overflowed and audio was lost
+ * (overruns), which it detects by comparing the audio captured to the time elapsed. */
+class AudioCaptureEngine {
+	private static final String LOG_TAG = "AudioCaptureEngine";
+	private static final int BYTES_PER_FRAME = 2;
+
+	private final AudioRecord recorder;
+	private final int sampleRate;
+	private final ByteBuffer buffer;
+	// audio can only have been lost once we are behind by more than the AudioRecord's buffer, allow twice that.
+	private final long overrunThresholdFrames;
+	private volatile boolean stopRequested = false;
+	private boolean released = false;
+
+	private volatile long bytesCaptured = 0;
+	private volatile long underruns = 0;
+	private volatile long overruns = 0;
+	private volatile long framesLost = 0;
+	private volatile int readError = 0;
+
+	/** @param recorder a recording AudioRecord, 16 bit mono, the engine owns it from here on.
+	 * @param bufferSize the size in bytes of each read, and of the AudioRecord's own buffer. */
+	AudioCaptureEngine(AudioRecord recorder, int sampleRate, int bufferSize) {
+		this.recorder = recorder;
+		this.sampleRate = sampleRate;
+		buffer = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.nativeOrder());
+		overrunThresholdFrames = 2L * bufferSize / BYTES_PER_FRAME;
+	}
+
+	/** Captures into the encoder until stop() is called or the AudioRecord fails, then releases the
+	 * AudioRecord.  Does not finish() the encoder. */
+	void capture(AudioFileEncoder encoder) {
+		long startNanos = System.nanoTime();
+		try {
+			while (!stopRequested) {
+				// AudioRecord.read writes from the start of the buffer, and leaves its position alone.
+				buffer.clear();
+				int read = recorder.read(buffer, buffer.capacity());
+				if (read < 0) {
+					readError = read;
+					Log.e(LOG_TAG, "AudioRecord.read error " + read);
+					break;
+				}
+				if (read < buffer.capacity() && !stopRequested) { underruns++; }
+				if (read == 0) { continue; }
+				buffer.limit(read);
+				try { encoder.encode(buffer); }
+				catch (IOException e) { Log.e(LOG_TAG, "could not write audio: " + e.getMessage()); } //swallow error.
+				bytesCaptured += read;
+
+				long expectedFrames = (System.nanoTime() - startNanos) * sampleRate / 1000000000L;
+				long behindFrames = expectedFrames - bytesCaptured / BYTES_PER_FRAME - framesLost;
+				if (behindFrames > overrunThresholdFrames) {
+					overruns++;
+					framesLost += behindFrames;
+				}
+			}
+		} finally { release(); }
+	}
+
+	/** Signals capture() to return, it does so within one read. */
+	void stop() { stopRequested = true; }
+
+	/** Stops and releases the AudioRecord, if capture() was never run it must be called instead. */
+	synchronized void release() {
+		if (released) { return; }
+		released = true;
+		if (recorder.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) { recorder.stop(); }
+		recorder.release();
+	}
+
+	long getBytesCaptured() { return bytesCaptured; }
+	long getUnderruns() { return underruns; }
+	long getOverruns() { return overruns; }
+	/** @return the estimated number of frames dropped by all the overruns. */
+	long getFramesLost() { return framesLost; }
+	/** @return the AudioRecord error that ended the capture, 0 if none did. */
+	int getReadError() { return readError; }
+
+	/** A one line summary, for the logs. */
+	String describe() {
+		return "captured " + bytesCaptured + " bytes at " + sampleRate + "Hz, " + underruns + " underruns, "
+				+ overruns + " overruns (~" + framesLost + " frames lost)" + (readError != 0 ? ", read error " + readError : "");
+	}
+}
@@ -5,49 +5,70 @@ import android.media.AudioRecord;
 import android.media.MediaRecorder;
 import android.os.Bundle;
 import android.util.Log;
+import android.widget.Toast;
 
 import org.beiwe.app.CrashHandler;
+import org.beiwe.app.R;
+import org.beiwe.app.storage.AacFileEncoder;
+import org.beiwe.app.storage.AudioFileEncoder;
 import org.beiwe.app.storage.AudioFileManager;
+import org.beiwe.app.storage.FlacFileEncoder;
 import org.beiwe.app.storage.PersistentData;
+import org.beiwe.app.storage.TextFileManager;
+import org.beiwe.app.storage.WavFileEncoder;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 
 //http://www.edumobile.org/android/audio-recording-in-wav-format-in-android-programming/
 
 public class AudioRecorderEnhancedActivity extends AudioRecorderCommon{
 	//WAV stuff
-	private static final int BIT_DEPTH = 16;
 	private int SAMPLE_RATE = 44100;
 	
+	//Encoding, the "audio_encoding" survey setting.  Recordings are encoded as they are captured.
+	private static final String ENCODING_WAV = "wav"; // uncompressed, the default
+	private static final String ENCODING_FLAC = "flac"; // lossless, about half the size of wav for speech
+	private static final String ENCODING_AAC = "aac"; // lossy, a fifth of the size of 44.1kHz wav at the default bit rate
+	private String AUDIO_ENCODING = ENCODING_WAV;
+	private int AAC_BIT_RATE = 128000;
+	
 	private int BUFFER_SIZE = 0; //constant set in onCreate
 	
 	private static final int RECORDER_CHANNELS = AudioFormat.CHANNEL_IN_MONO;
 	private static final int RECORDER_AUDIO_ENCODING = AudioFormat.ENCODING_PCM_16BIT;
 	private static final int IS_INITIALIZED = AudioRecord.STATE_INITIALIZED;
 	
+	// older versions recorded into this file and copied it into a wav afterwards, it may be left over after an update.
 	public static final String unencryptedRawAudioFileName = "unencryptedRawAudioFile";
-	private static String unencryptedRawAudioFilePath;
 	
 	@Override
-    protected String getFileExtension() { return ".wav"; }
+    protected String getFileExtension() {
+		if (AUDIO_ENCODING.equals(ENCODING_FLAC)) { return ".flac"; }
+		if (AUDIO_ENCODING.equals(ENCODING_AAC)) { return ".mp4"; }
+		return ".wav";
+	}
 
-	private AudioRecord recorder = null;
+	private AudioCaptureEngine captureEngine = null;
 	private Thread recordingThread = null;
 
 	@Override
 	public void onCreate( Bundle savedInstanceState ) {
 		super.onCreate( savedInstanceState );
-		unencryptedRawAudioFilePath = getApplicationContext().getFilesDir().getAbsolutePath() + "/" + unencryptedRawAudioFileName;
+		AudioFileManager.delete(unencryptedRawAudioFileName);
 		//extract sample rate from survey parameters.  If this fails default to the default value (44100).
 		try { JSONObject surveySettings = new JSONObject( PersistentData.getSurveySettings(surveyId) );
 			  SAMPLE_RATE = surveySettings.getInt("sample_rate"); }
 		catch (JSONException e) { e.printStackTrace(); 
 			Log.e("Enhanced audio recording", "WUH-OH, no sample rate found, using default (44100).");
 		}
+		//the encoding and the AAC bit rate were added late, if they are absent (or unknown) record wav as always.
+		try { JSONObject surveySettings = new JSONObject( PersistentData.getSurveySettings(surveyId) );
+			  String encoding = surveySettings.optString("audio_encoding", ENCODING_WAV);
+			  if (encoding.equals(ENCODING_FLAC) || encoding.equals(ENCODING_AAC)) { AUDIO_ENCODING = encoding; }
+			  AAC_BIT_RATE = surveySettings.optInt("aac_bit_rate", AAC_BIT_RATE); }
+		catch (JSONException e) { e.printStackTrace(); }
  
 		BUFFER_SIZE = AudioRecord.getMinBufferSize(SAMPLE_RATE,
 				AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT );
@@ -60,7 +81,7 @@ public class AudioRecorderEnhancedActivity extends AudioRecorderCommon{
 	@Override
 	public void onDestroy() {
 		if ( isFinishing() ) { // If the activity is being finished()...
-			if (recorder != null) { stopRecording(); }
+			if (captureEngine != null) { stopRecording(); }
 		}
 		super.onDestroy();
 	}
@@ -78,62 +99,98 @@ public class AudioRecorderEnhancedActivity extends AudioRecorderCommon{
     protected void startRecording() {
     	super.startRecording();
     	//recording stuff
-		recorder = new AudioRecord( MediaRecorder.AudioSource.MIC,
+		AudioRecord recorder = new AudioRecord( MediaRecorder.AudioSource.MIC,
 				SAMPLE_RATE, RECORDER_CHANNELS, RECORDER_AUDIO_ENCODING, BUFFER_SIZE );
-		if ( recorder.getState() == IS_INITIALIZED ) { recorder.startRecording(); }
-		else { stopRecording(); //if it doesn't work, fail gracefully?
-		       Log.e("enhanced audio", "audio recording failed to initialize?"); } 
-		//Start recording.
+		if ( recorder.getState() != IS_INITIALIZED ) { //if it doesn't work, fail gracefully
+			Log.e("enhanced audio", "audio recording failed to initialize?");
+			recorder.release();
+			super.stopRecording();
+			enableRecordButton();
+			return;
+		}
+		recorder.startRecording();
+		//Start recording, the capture engine owns the recorder from here on.
+		final AudioCaptureEngine engine = new AudioCaptureEngine( recorder, SAMPLE_RATE, BUFFER_SIZE );
+		captureEngine = engine;
 		recordingThread = new Thread( new Runnable() {
-			@Override public void run() { writeAudioDataToFile(); }
+			@Override public void run() {
+				// there is nothing to play back or encrypt if the file could not be created.
+				if ( !writeAudioDataToFile( engine ) ) {
+					runOnUiThread( new Runnable() {
+						@Override public void run() { recordingFailed( engine ); }
+					} );
+					return;
+				}
+				runOnUiThread( new Runnable() {
+					@Override public void run() {
+						//The wav file is complete, can now display the button.
+						displayPlaybackButton();
+						// Encrypt the audio file as soon as recording is finished
+						new EncryptAudioFileTask().execute();
+					}
+				} );
+			}
 		}, "AudioRecorder Thread");
 		recordingThread.start();
 		startRecordingTimeout();
     }
     
-    /** Stop recording, and reset the button to "record" */
+    /** Stop recording, and reset the button to "record".
+     * This only signals the recording thread, which finishes the wav file and then starts the encryption,
+     * so stopping even a long recording does not block the UI. */
     @Override
     public void stopRecording() {
     	super.stopRecording();
-    	if ( recorder != null) {
-    		currentlyRecording = false;
-    		if ( recorder.getState() == IS_INITIALIZED ) { recorder.stop(); }
-    		recorder.release();
-    		recorder = null; //release memory...
+    	if ( captureEngine != null) {
+    		captureEngine.stop();
+    		// The temp file must survive onDestroy until it has been encrypted, EncryptAudioFileTask clears this.
+    		notEncrypting = false;
+    		captureEngine = null;
     		recordingThread = null;
     	}
-    	//TODO: Eli. low priority. is it too much of a hassle to stick these on a separate thread?  These files will get big if they are wav recordings, causing bad UE.
-    	//We need to do this because the the RAW file is not formatted correctly for playback
-    	AudioFileManager.copyToWaveFile( unencryptedRawAudioFilePath, unencryptedTempAudioFilePath,
-                     					 SAMPLE_RATE, BIT_DEPTH, BUFFER_SIZE );
-    	AudioFileManager.delete(unencryptedRawAudioFileName);
-	    //File has been copy, can now display the button.
-	    displayPlaybackButton();
-        // Encrypt the audio file as soon as recording is finished
-        new EncryptAudioFileTask().execute();
-        //TODO: Eli. Low priority. in cases where long audio recordings are taken the with uncompressed files there is the possibility of an out-of-memory error.
     }
     
-    /**Writes data from the AudioRecord to a file.
+    /** The temp audio file could not be created: stop recording (if the user has not already), delete the
+     * temp file, and let the user try again. */
+    private void recordingFailed( AudioCaptureEngine engine ) {
+    	if ( captureEngine == engine ) { stopRecording(); }
+    	// stopRecording expects an encryption to follow, there will be none.
+    	notEncrypting = true;
+    	AudioFileManager.delete(unencryptedTempAudioFileName);
+    	enableRecordButton();
+    	Toast.makeText(getApplicationContext(), R.string.recording_failed_msg, Toast.LENGTH_LONG).show();
+    }
+    
+    /**Encodes data from the AudioRecord straight into the temp audio file, then completes the file
+     * (for wav, fills in the header's sizes).  The capture engine releases the recorder.
      * This function is much harder to run as code outside of enhanced audio recording activity,
      * so we are going to keep it here.
-     * This function blocks until currentlyRecording gets set to false, so run on a separate threod. */
-	private void writeAudioDataToFile() {
-		int recordingStatus = 0;
-		byte data[] = new byte[BUFFER_SIZE];
-		FileOutputStream rawAudioFile = null;
+     * This function blocks until the capture engine is stopped, so run on a separate threod.
+     * @return false if the file could not be created, nothing was recorded. */
+	private boolean writeAudioDataToFile( AudioCaptureEngine engine ) {
+		AudioFileEncoder encoder;
 		//setup file.
-		try { rawAudioFile = new FileOutputStream( unencryptedRawAudioFilePath ); }
-		catch (FileNotFoundException e) { CrashHandler.writeCrashlog(e, getApplicationContext() ); return; }
-		//while recording get audio data chunks.
-		while ( currentlyRecording ) {
-			recordingStatus = recorder.read(data, 0, BUFFER_SIZE);
-			if ( recordingStatus != AudioRecord.ERROR_INVALID_OPERATION ) {
-				try { rawAudioFile.write(data); }
-				catch (IOException e) { e.printStackTrace(); } //swallow error.
-			}
-		}
-		try { rawAudioFile.close(); }
+		try { encoder = newEncoder(); }
+		catch (IOException e) {
+			engine.release();
+			CrashHandler.writeCrashlog(e, getApplicationContext() );
+			return false; }
+		engine.capture( encoder );
+		try { encoder.finish(); }
 		catch (IOException e) { e.printStackTrace(); }
-	}    
+		Log.i("enhanced audio", engine.describe());
+		if (engine.getOverruns() > 0 || engine.getReadError() != 0) {
+			TextFileManager.writeDebugLogStatement("enhanced audio recording " + engine.describe());
+		}
+		return true;
+	}
+	
+	private AudioFileEncoder newEncoder() throws IOException {
+		if (AUDIO_ENCODING.equals(ENCODING_FLAC)) { return new FlacFileEncoder( unencryptedTempAudioFilePath, SAMPLE_RATE ); }
+		if (AUDIO_ENCODING.equals(ENCODING_AAC)) {
+			try { return new AacFileEncoder( unencryptedTempAudioFilePath, SAMPLE_RATE, AAC_BIT_RATE ); }
+			catch (IllegalStateException e) { throw new IOException("could not configure the AAC encoder", e); }
+		}
+		return new WavFileEncoder( unencryptedTempAudioFilePath, SAMPLE_RATE );
+	}
 }
\ No newline at end of file
@@ -11,6 +11,7 @@ import org.beiwe.app.listeners.AmbientAudioListener
 import org.beiwe.app.networking.PostRequest
 import org.beiwe.app.networking.SurveyDownloader
 import org.beiwe.app.session.SessionActivity
+import org.beiwe.app.storage.AudioPipelineBenchmark
 import org.beiwe.app.storage.EncryptionEngine
 import org.beiwe.app.storage.PersistentData
 import org.beiwe.app.storage.TextFileManager
@@ -340,6 +341,11 @@ class DebugInterfaceActivity : SessionActivity() {
         AmbientAudioListener.encryptAmbientAudioFile()
     }
 
+    fun benchmarkAudioPipeline(view: View?) {
+        // the AAC encoding stage, it takes minutes, results go to logcat and the debug log.
+        Thread(Runnable { AudioPipelineBenchmark.run(appContext!!, AudioPipelineBenchmark.DEFAULT_MINUTES) }, "AudioPipelineBenchmark").start()
+    }
+
     //ui operations
     fun loadMainMenu(view: View?) {
         startActivity(Intent(appContext, MainMenuActivity::class.java))
@@ -0,0 +1,155 @@
+package org.beiwe.app;
+
+import org.beiwe.app.WakeupScheduler.Exactness;
+import org.beiwe.app.WakeupScheduler.Task;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Runs the WakeupScheduler against a fake clock, fake wakeup alarms, and an in memory store. */
+public class WakeupSchedulerTest {
+	private long now;
+	private final EnumMap<Exactness, long[]> alarms = new EnumMap<Exactness, long[]>(Exactness.class);
+	private int alarmsSet;
+	private final List<Task> stored = new ArrayList<Task>();
+	private WakeupScheduler scheduler;
+
+	private final WakeupScheduler.Clock clock = new WakeupScheduler.Clock() {
+		@Override public long currentTimeMillis() { return now; }
+	};
+	private final WakeupScheduler.WakeupAlarm alarm = new WakeupScheduler.WakeupAlarm() {
+		@Override public void set(Exactness exactness, long windowStartMillis, long windowEndMillis) {
+			alarms.put(exactness, new long[] { windowStartMillis, windowEndMillis });
+			alarmsSet++;
+		}
+		@Override public void cancel(Exactness exactness) { alarms.remove(exactness); }
+	};
+	private final WakeupScheduler.TaskStore store = new WakeupScheduler.TaskStore() {
+		@Override public void save(Collection<Task> tasks) {
+			stored.clear();
+			stored.addAll(tasks);
+		}
+		@Override public List<Task> load() { return new ArrayList<Task>(stored); }
+	};
+
+	@Before
+	public void setUp() {
+		now = 0;
+		scheduler = new WakeupScheduler(clock, alarm, store);
+	}
+
+	private static List<String> actions(List<Task> tasks) {
+		List<String> actions = new ArrayList<String>();
+		for (Task task : tasks) { actions.add(task.action); }
+		return actions;
+	}
+
+	@Test
+	public void overlappingWindowsShareOneWakeup() {
+		scheduler.schedule("accelerometer on", 60000, 6000, Exactness.WINDOWED);
+		scheduler.schedule("upload", 62000, 300000, Exactness.WINDOWED);
+		scheduler.schedule("wifi", 65000, 30000, Exactness.WINDOWED);
+		// the wakeup window is that of the task with the earliest deadline.
+		assertEquals(60000, alarms.get(Exactness.WINDOWED)[0]);
+		assertEquals(66000, alarms.get(Exactness.WINDOWED)[1]);
+
+		now = 65500;
+		List<Task> due = scheduler.takeDue();
+		assertEquals(3, due.size());
+		assertEquals("accelerometer on", due.get(0).action);
+		assertEquals("wifi", due.get(2).action);
+		assertEquals(0, scheduler.getPendingCount());
+		assertNull(alarms.get(Exactness.WINDOWED));
+		assertEquals(1, scheduler.getWakeupCount());
+		assertEquals(3, scheduler.getTasksRunCount());
+	}
+
+	@Test
+	public void tasksAfterTheWakeupWaitForTheNextOne() {
+		scheduler.schedule("accelerometer off", 60000, 0, Exactness.EXACT);
+		scheduler.schedule("upload", 120000, 60000, Exactness.WINDOWED);
+
+		now = 60000;
+		assertEquals("[accelerometer off]", actions(scheduler.takeDue()).toString());
+		assertTrue(scheduler.isScheduled("upload"));
+		assertNull(alarms.get(Exactness.EXACT));
+		assertEquals(180000, alarms.get(Exactness.WINDOWED)[1]);
+	}
+
+	@Test
+	public void eachExactnessHasItsOwnWakeup() {
+		scheduler.schedule("survey", 65000, 999, Exactness.EXACT);
+		scheduler.schedule("gps off", 60000, 6000, Exactness.IDLE_TOLERANT);
+		scheduler.schedule("upload", 62000, 300000, Exactness.WINDOWED);
+		// exact tasks have no tolerance.
+		assertEquals(65000, alarms.get(Exactness.EXACT)[0]);
+		assertEquals(65000, alarms.get(Exactness.EXACT)[1]);
+		assertEquals(66000, alarms.get(Exactness.IDLE_TOLERANT)[1]);
+		assertEquals(362000, alarms.get(Exactness.WINDOWED)[1]);
+		assertEquals(65000, scheduler.getNextWakeup());
+
+		// any wakeup runs every task that is due, whatever its class.
+		now = 64000;
+		assertEquals("[gps off, upload]", actions(scheduler.takeDue()).toString());
+		assertNull(alarms.get(Exactness.WINDOWED));
+		assertNull(alarms.get(Exactness.IDLE_TOLERANT));
+		assertEquals(65000, alarms.get(Exactness.EXACT)[1]);
+	}
+
+	@Test
+	public void schedulingAnActionAgainReplacesIt() {
+		scheduler.schedule("upload", 60000, 0, Exactness.WINDOWED);
+		scheduler.schedule("upload", 90000, 0, Exactness.WINDOWED);
+		assertEquals(1, scheduler.getPendingCount());
+		assertEquals(90000, scheduler.getTriggerTime("upload"));
+		assertEquals(90000, alarms.get(Exactness.WINDOWED)[1]);
+
+		now = 60000;
+		assertTrue(scheduler.takeDue().isEmpty());
+		assertTrue(scheduler.isScheduled("upload"));
+	}
+
+	@Test
+	public void cancellingTheLastTaskCancelsTheWakeup() {
+		scheduler.schedule("signout", 60000, 0, Exactness.EXACT);
+		scheduler.cancel("signout");
+		assertFalse(scheduler.isScheduled("signout"));
+		assertEquals(-1, scheduler.getTriggerTime("signout"));
+		assertNull(alarms.get(Exactness.EXACT));
+		assertEquals(Long.MAX_VALUE, scheduler.getNextWakeup());
+	}
+
+	@Test
+	public void unchangedWakeupsAreNotSetAgain() {
+		scheduler.schedule("upload", 60000, 6000, Exactness.WINDOWED);
+		int set = alarmsSet;
+		scheduler.schedule("wifi", 62000, 60000, Exactness.WINDOWED);
+		assertEquals(set, alarmsSet);
+	}
+
+	@Test
+	public void pendingTasksSurviveTheProcessBeingKilled() {
+		scheduler.schedule("upload", 60000, 6000, Exactness.WINDOWED);
+		scheduler.schedule("survey", 90000, 0, Exactness.EXACT);
+		scheduler.cancel("survey");
+
+		// a new process, the wakeup that started it is overdue.
+		alarms.clear();
+		now = 70000;
+		WakeupScheduler restarted = new WakeupScheduler(clock, alarm, store);
+		assertTrue(restarted.isScheduled("upload"));
+		assertFalse(restarted.isScheduled("survey"));
+		assertEquals(66000, alarms.get(Exactness.WINDOWED)[1]);
+		assertEquals("[upload]", actions(restarted.takeDue()).toString());
+		assertTrue(stored.isEmpty());
+	}
+}
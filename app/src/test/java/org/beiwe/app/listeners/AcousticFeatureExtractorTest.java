@@ -0,0 +1,93 @@
+package org.beiwe.app.listeners;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Checks that FFT and AcousticFeatureExtractor put a known tone in the right bin and band, and times
+ * AcousticFeatureExtractor.process() on the JVM.  A frame is 32ms of audio, so anything well under
+ * 32,000,000ns per frame keeps up with the recording. */
+public class AcousticFeatureExtractorTest {
+	private static final int SAMPLES = AcousticFeatureExtractor.FRAME_SAMPLES;
+	private static final int RATE = AcousticFeatureExtractor.SAMPLE_RATE;
+	private static final long FRAME_NANOSECONDS = 1000000000L * SAMPLES / RATE;
+	private static final int BENCHMARK_FRAMES = 20000;
+
+	@Test
+	public void fftPutsAToneInItsBin() {
+		int bin = 20;
+		double amplitude = 3;
+		double[] real = new double[SAMPLES];
+		double[] imaginary = new double[SAMPLES];
+		for (int i = 0; i < SAMPLES; i++) { real[i] = amplitude * Math.cos(2 * Math.PI * bin * i / SAMPLES); }
+		new FFT(SAMPLES).transform(real, imaginary);
+
+		for (int k = 0; k < SAMPLES; k++) {
+			double magnitude = Math.hypot(real[k], imaginary[k]);
+			double expected = (k == bin || k == SAMPLES - bin) ? amplitude * SAMPLES / 2 : 0;
+			assertEquals("bin " + k, expected, magnitude, 1e-9 * SAMPLES);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void fftRejectsSizesThatAreNotPowersOfTwo() {
+		new FFT(500);
+	}
+
+	@Test
+	public void aToneLandsInItsBand() {
+		// 1500Hz is exactly bin 48, in the 1000 to 2000Hz band.
+		int hz = 1500;
+		int band = 3;
+		int amplitude = 8192; // -12dB relative to full scale, so -15dB of power for a sine
+		AcousticFeatureExtractor extractor = new AcousticFeatureExtractor();
+		extractor.process(tone(hz, amplitude, 0));
+
+		double expectedDb = 20 * Math.log10(amplitude / 32768.0 / Math.sqrt(2));
+		assertEquals(expectedDb, extractor.getBandEnergyDb(band), 0.5);
+		for (int other = 0; other < AcousticFeatureExtractor.getBandCount(); other++) {
+			if (other == band) { continue; }
+			assertTrue("band " + other + " " + extractor.getBandEnergyDb(other), extractor.getBandEnergyDb(other) < expectedDb - 40);
+		}
+		assertEquals(hz, extractor.getSpectralCentroidHz(), 10);
+		assertEquals(expectedDb, extractor.getRmsDb(), 0.5);
+	}
+
+	@Test
+	public void silenceHasNoFeatures() {
+		AcousticFeatureExtractor extractor = new AcousticFeatureExtractor();
+		extractor.process(new short[SAMPLES]);
+		for (int band = 0; band < AcousticFeatureExtractor.getBandCount(); band++) {
+			assertEquals(-96, extractor.getBandEnergyDb(band), 0);
+		}
+		assertEquals(0, extractor.getSpectralCentroidHz(), 0);
+		assertEquals(0, extractor.getSpeechProbability(), 0);
+	}
+
+	@Test
+	public void benchmarkProcess() {
+		AcousticFeatureExtractor extractor = new AcousticFeatureExtractor();
+		short[] frame = tone(440, 3000, 2048);
+		for (int i = 0; i < BENCHMARK_FRAMES; i++) { extractor.process(frame); } // warm up the JIT
+		long start = System.nanoTime();
+		for (int i = 0; i < BENCHMARK_FRAMES; i++) { extractor.process(frame); }
+		long nanosecondsPerFrame = (System.nanoTime() - start) / BENCHMARK_FRAMES;
+
+		String line = nanosecondsPerFrame + "ns per frame, " + Math.round(100000.0 * nanosecondsPerFrame / FRAME_NANOSECONDS) / 1000.0 + "% of real time";
+		System.out.println("AcousticFeatureExtractor " + line);
+		assertTrue(line, nanosecondsPerFrame < FRAME_NANOSECONDS);
+	}
+
+	/** A frame of a tone plus uniform noise of up to +/- noise, from an LCG so every run gets the same frame. */
+	private static short[] tone(int hz, int amplitude, int noise) {
+		short[] frame = new short[SAMPLES];
+		long seed = 1;
+		for (int i = 0; i < SAMPLES; i++) {
+			seed = seed * 6364136223846793005L + 1442695040888963407L;
+			int offset = (noise == 0) ? 0 : (int) ((seed >>> 33) % (2 * noise + 1)) - noise;
+			frame[i] = (short) (amplitude * Math.sin(2 * Math.PI * hz * i / RATE) + offset);
+		}
+		return frame;
+	}
+}
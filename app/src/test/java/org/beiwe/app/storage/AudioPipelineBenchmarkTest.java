@@ -0,0 +1,232 @@
+package org.beiwe.app.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Times the pure Java stages of the audio file pipeline on synthetic audio, on the JVM: wav and FLAC encoding,
+ * Base64, and the streaming AES encryption used by AudioFileManager.encryptAudioFile.  Each stage reports its
+ * throughput, how many times faster than real time it ran, the peak heap in use (sampled), and the bytes it
+ * allocated.  Runs 1 minute of audio by default, for the 15 and 60 minute soak test run the tests with
+ * -DaudioBenchmarkMinutes=1,15,60.  The AAC stage needs MediaCodec, AudioPipelineBenchmark runs it on a device. */
+public class AudioPipelineBenchmarkTest {
+	private static final int SAMPLE_RATE = 44100;
+	private static final int BASE64_CHUNK_SIZE = 48 * 1024; // a multiple of 3, so the chunks encode independently
+	private static final long HEAP_SAMPLE_INTERVAL_MILLISECONDS = 5;
+	private static final Base64.Encoder urlSafeBase64 = Base64.getUrlEncoder();
+	private static final EncryptionEngine.Base64Encoder base64Encoder = new EncryptionEngine.Base64Encoder() {
+		@Override public byte[] encode(byte[] input, int offset, int length) {
+			return urlSafeBase64.encode(Arrays.copyOfRange(input, offset, offset + length));
+		}
+	};
+
+	private File directory;
+
+	/** A stage of the benchmark. @return the number of bytes of input it processed. */
+	private interface Stage { long run() throws Exception; }
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("audioPipelineBenchmark", "");
+		assertTrue(directory.delete() && directory.mkdir());
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = directory.listFiles();
+		if (files != null) { for (File file : files) { file.delete(); } }
+		directory.delete();
+	}
+
+	@Test
+	public void streamedEncryptionMatchesOneShotEncryption() throws Exception {
+		// not a multiple of the stream buffer, the AES block, or 3.
+		byte[] plainText = new byte[200001];
+		new Random(1).nextBytes(plainText);
+		byte[] key = newAESKey();
+		byte[] iv = new byte[16];
+		new Random(2).nextBytes(iv);
+
+		ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+		EncryptionEngine.encryptAESStream(new ByteArrayInputStream(plainText), streamed, newCipher(key, iv), base64Encoder);
+		byte[] oneShot = urlSafeBase64.encode(newCipher(key, iv).doFinal(plainText));
+		assertArrayEquals(oneShot, streamed.toByteArray());
+	}
+
+	@Test
+	public void benchmarkAudioPipeline() throws Exception {
+		for (String minutes : System.getProperty("audioBenchmarkMinutes", "1").split(",")) {
+			runDuration(Integer.parseInt(minutes.trim()));
+		}
+	}
+
+	private void runDuration(int minutes) throws Exception {
+		final int seconds = minutes * 60;
+		final ByteBuffer second = syntheticSecond();
+		final String wavPath = new File(directory, "benchmark.wav").getPath();
+		final String flacPath = new File(directory, "benchmark.flac").getPath();
+		final File encrypted = new File(directory, "benchmark.encrypted");
+
+		measure(minutes, "wav encode", new Stage() { @Override public long run() throws Exception {
+			return encode(new WavFileEncoder(wavPath, SAMPLE_RATE), second, seconds);
+		} } );
+		measure(minutes, "flac encode", new Stage() { @Override public long run() throws Exception {
+			return encode(new FlacFileEncoder(flacPath, SAMPLE_RATE), second, seconds);
+		} } );
+		measure(minutes, "base64 wav", new Stage() { @Override public long run() throws Exception {
+			return base64(wavPath);
+		} } );
+		measure(minutes, "encrypt wav", new Stage() { @Override public long run() throws Exception {
+			return encrypt(wavPath, encrypted);
+		} } );
+		measure(minutes, "encrypt flac", new Stage() { @Override public long run() throws Exception {
+			return encrypt(flacPath, encrypted);
+		} } );
+	}
+
+	/*######################## Stages ########################*/
+
+	private static long encode(AudioFileEncoder encoder, ByteBuffer second, int seconds) throws IOException {
+		for (int i = 0; i < seconds; i++) {
+			second.clear();
+			encoder.encode(second);
+		}
+		encoder.finish();
+		return (long) seconds * second.capacity();
+	}
+
+	private static long base64(String path) throws IOException {
+		byte[] chunk = new byte[BASE64_CHUNK_SIZE];
+		long total = 0;
+		InputStream in = new FileInputStream(path);
+		try {
+			int read;
+			while ((read = in.read(chunk)) != -1) {
+				base64Encoder.encode(chunk, 0, read);
+				total += read;
+			}
+		} finally { in.close(); }
+		return total;
+	}
+
+	private static long encrypt(String path, File encrypted) throws Exception {
+		byte[] iv = new byte[16];
+		new SecureRandom().nextBytes(iv);
+		InputStream in = new FileInputStream(path);
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(encrypted));
+		try { EncryptionEngine.encryptAESStream(in, out, newCipher(newAESKey(), iv), base64Encoder); }
+		finally {
+			in.close();
+			out.close();
+		}
+		encrypted.delete();
+		return new File(path).length();
+	}
+
+	private static byte[] newAESKey() throws Exception {
+		KeyGenerator generator = KeyGenerator.getInstance("AES");
+		generator.init(128);
+		return generator.generateKey().getEncoded();
+	}
+
+	private static Cipher newCipher(byte[] key, byte[] iv) throws Exception {
+		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+		return cipher;
+	}
+
+	/** One second of a 440Hz tone in noise, so the FLAC encoder has something realistic to work on. */
+	private static ByteBuffer syntheticSecond() {
+		ByteBuffer second = ByteBuffer.allocateDirect(SAMPLE_RATE * 2).order(ByteOrder.nativeOrder());
+		long seed = 1;
+		for (int i = 0; i < SAMPLE_RATE; i++) {
+			seed = seed * 6364136223846793005L + 1442695040888963407L;
+			int noise = (int) (seed >>> 54) - 512;
+			second.putShort((short) (6000 * Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE) + noise));
+		}
+		return second;
+	}
+
+	/*######################## Measurement ########################*/
+
+	/** Runs the stage and reports on it.  Fails if the stage runs slower than real time, which would make
+	 * the app fall behind the recording. */
+	private static void measure(int minutes, String name, Stage stage) throws Exception {
+		System.gc();
+		HeapSampler sampler = new HeapSampler();
+		Thread samplerThread = new Thread(sampler, "AudioPipelineBenchmarkTest heap sampler");
+		long allocatedBefore = bytesAllocated();
+		samplerThread.start();
+		long start = System.nanoTime();
+		long bytes;
+		try { bytes = stage.run(); }
+		finally {
+			sampler.running = false;
+			samplerThread.join();
+		}
+		long elapsedNanos = System.nanoTime() - start;
+		long allocated = bytesAllocated() - allocatedBefore;
+
+		double elapsedSeconds = elapsedNanos / 1e9;
+		double realTimeFactor = minutes * 60 / elapsedSeconds;
+		String line = minutes + " min " + name + ": " + megabytes(bytes) + "MB in " + Math.round(elapsedSeconds * 1000) + "ms, "
+				+ megabytes(bytes / elapsedSeconds) + "MB/s, " + Math.round(realTimeFactor) + "x real time, "
+				+ "peak heap " + megabytes(sampler.peak) + "MB";
+		if (allocatedBefore >= 0) {
+			line += ", allocated " + megabytes(allocated) + "MB (" + megabytes(allocated / elapsedSeconds) + "MB/s)";
+		}
+		System.out.println("AudioPipelineBenchmark " + line);
+		assertTrue(line, realTimeFactor > 1);
+	}
+
+	/** @return the bytes this thread has allocated, -1 if the JVM can't tell us. */
+	private static long bytesAllocated() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) { return -1; }
+		return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static double megabytes(double bytes) { return Math.round(bytes / 1024 / 1024 * 10) / 10.0; }
+
+	/** Polls the heap in use until stopped, the peak of a stage's memory use. */
+	private static class HeapSampler implements Runnable {
+		volatile boolean running = true;
+		volatile long peak = 0;
+
+		@Override
+		public void run() {
+			Runtime runtime = Runtime.getRuntime();
+			while (running) {
+				peak = Math.max(peak, runtime.totalMemory() - runtime.freeMemory());
+				try { Thread.sleep(HEAP_SAMPLE_INTERVAL_MILLISECONDS); }
+				catch (InterruptedException e) { return; }
+			}
+		}
+	}
+}